@@ -5,6 +5,9 @@ import com.intellij.openapi.diagnostic.Logger;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 
 import jetbrains.buildServer.agent.BuildAgentConfigurationEx;
@@ -15,18 +18,34 @@ import org.jetbrains.annotations.NotNull;
 
 public class OrkaAgent {
     private static final Logger LOG = Loggers.AGENT;
+    private static final String STAGING_FILE_NAME = "." + CommonConstants.METADATA_FILE_PREFIX + ".staging";
 
     public OrkaAgent(@NotNull final BuildAgentConfigurationEx configuration) throws IOException {
         super();
         LOG.info("OrkaAgent plugin initializing...");
-        LOG.info("OrkaAgent plugin check temp dir");
 
         File currentDir = new File("").getAbsoluteFile();
-        File dir = new File("/tmp/");
-        File tempMetadataFile = FileUtil.findFile(this.getFilter(CommonConstants.METADATA_FILE_PREFIX), dir);
+        File currentMetadataFile = new File(currentDir, CommonConstants.METADATA_FILE_PREFIX);
+        File metadataFile = new File(CommonConstants.METADATA_FILE_PATH);
+        if (metadataFile.isFile()) {
+            this.updateConfiguration(metadataFile, configuration);
+            this.consume(metadataFile, currentMetadataFile);
+        } else if (currentMetadataFile.isFile()) {
+            LOG.info("OrkaAgent plugin using metadata from current dir");
+            this.updateConfiguration(currentMetadataFile, configuration);
+        } else {
+            this.scanForMetadata(currentDir, currentMetadataFile, configuration);
+        }
+    }
+
+    private void scanForMetadata(File currentDir, File currentMetadataFile, BuildAgentConfigurationEx configuration)
+            throws IOException {
+        LOG.info("OrkaAgent plugin check temp dir");
+        File tempMetadataFile = FileUtil.findFile(this.getFilter(CommonConstants.METADATA_FILE_PREFIX),
+                new File("/tmp/"));
         if (tempMetadataFile != null) {
             this.updateConfiguration(tempMetadataFile, configuration);
-            FileUtil.copy(tempMetadataFile, new File(currentDir, CommonConstants.METADATA_FILE_PREFIX));
+            this.consume(tempMetadataFile, currentMetadataFile);
         } else {
             LOG.info("OrkaAgent plugin check current dir");
             File metadataFile = FileUtil.findFile(this.getFilter(CommonConstants.METADATA_FILE_PREFIX), currentDir);
@@ -38,6 +57,18 @@ public class OrkaAgent {
         }
     }
 
+    private void consume(File metadataFile, File target) throws IOException {
+        File staging = new File(target.getParentFile(), STAGING_FILE_NAME);
+        Files.copy(metadataFile.toPath(), staging.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        try {
+            Files.move(staging.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(staging.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(metadataFile.toPath());
+    }
+
     private FileFilter getFilter(final String prefix) {
         return new FileFilter() {
             @Override
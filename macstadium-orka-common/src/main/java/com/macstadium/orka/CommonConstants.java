@@ -5,5 +5,6 @@ public class CommonConstants {
     public static final String INSTANCE_ID_PARAM_NAME = "cloud.orka.instance.id";
     public static final String STARTING_INSTANCE_ID_PARAM_NAME = "cloud.orka.startingInstanceId";
     public static final String METADATA_FILE_PREFIX = "orka_metadata_file";
+    public static final String METADATA_FILE_PATH = "/tmp/" + METADATA_FILE_PREFIX;
     public static final String STARTING_INSTANCE_ID_CONFIG_PARAM = "teamcity.agent.startingInstanceId";
 }
@@ -0,0 +1,79 @@
+package com.macstadium.orka;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The output of the agent start command, as it arrives. Only the last characters are kept, and every
+ * complete line is checked against messages that mean the agent cannot start, so that a failure is
+ * reported without waiting for the command to time out. Missing files and denied permissions only count
+ * when the shell reports them for agent.sh itself or for moving the instance metadata in place.
+ */
+public class AgentOutput {
+    static final int MAX_LENGTH = 8 * 1024;
+    private static final List<Pattern> FAILURE_PATTERNS = Arrays.asList(
+            Pattern.compile("agent\\.sh: (No such file or directory|Permission denied)\\s*$"),
+            Pattern.compile("^zsh:\\d+: (no such file or directory|permission denied): .*agent\\.sh\\s*$"),
+            Pattern.compile("^mv: .*: (No such file or directory|Permission denied)\\s*$"),
+            Pattern.compile("command not found"),
+            Pattern.compile("Java not found"),
+            Pattern.compile("Unable to locate a Java Runtime"),
+            Pattern.compile("Cannot start TeamCity agent", Pattern.CASE_INSENSITIVE));
+
+    private final StringBuilder output = new StringBuilder();
+    private final StringBuilder line = new StringBuilder();
+    private int truncated;
+    private String failure;
+
+    public synchronized void append(@NotNull CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n' || c == '\r') {
+                this.checkLine();
+            } else if (this.line.length() < MAX_LENGTH) {
+                this.line.append(c);
+            }
+        }
+        this.output.append(text);
+        if (this.output.length() > MAX_LENGTH) {
+            int excess = this.output.length() - MAX_LENGTH;
+            this.output.delete(0, excess);
+            this.truncated += excess;
+        }
+    }
+
+    private void checkLine() {
+        if (this.failure == null && this.line.length() > 0) {
+            String text = this.line.toString();
+            if (FAILURE_PATTERNS.stream().anyMatch(p -> p.matcher(text).find())) {
+                this.failure = text.trim();
+            }
+        }
+        this.line.setLength(0);
+    }
+
+    /**
+     * Returns the first line that matched a failure message, or null.
+     */
+    @Nullable
+    public synchronized String getFailure() {
+        return this.failure;
+    }
+
+    /**
+     * Checks the last line even if it was not terminated, once the command is done.
+     */
+    public synchronized void finish() {
+        this.checkLine();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return this.truncated > 0 ? String.format("[%s characters truncated]%n%s", this.truncated, this.output)
+                : this.output.toString();
+    }
+}
@@ -0,0 +1,54 @@
+package com.macstadium.orka;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Futures completed when the agent of a starting instance registers with the server, matched by the
+ * instance id the agent reports in its configuration parameters.
+ */
+public class AgentRegistrations {
+    private final Map<String, CompletableFuture<Void>> pending =
+            new ConcurrentHashMap<String, CompletableFuture<Void>>();
+
+    /**
+     * Starts waiting for the agent of the instance. Must be called before the agent is started, so that a
+     * fast registration is not missed.
+     */
+    @NotNull
+    public CompletableFuture<Void> expect(@NotNull String instanceId) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        CompletableFuture<Void> previous = this.pending.put(instanceId, future);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        future.whenComplete((result, error) -> this.pending.remove(instanceId, future));
+        return future;
+    }
+
+    public boolean registered(@NotNull String instanceId) {
+        CompletableFuture<Void> future = this.pending.get(instanceId);
+        return future != null && future.complete(null);
+    }
+
+    public void fail(@NotNull String instanceId, @NotNull Throwable cause) {
+        CompletableFuture<Void> future = this.pending.get(instanceId);
+        if (future != null) {
+            future.completeExceptionally(cause);
+        }
+    }
+
+    public void cancel(@NotNull String instanceId) {
+        CompletableFuture<Void> future = this.pending.get(instanceId);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    public void cancelAll() {
+        this.pending.values().forEach(future -> future.cancel(false));
+    }
+}
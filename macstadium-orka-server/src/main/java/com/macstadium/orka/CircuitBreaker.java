@@ -0,0 +1,63 @@
+package com.macstadium.orka;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Stops sending requests to an Orka cluster after consecutive failures or slow calls. Once the open
+ * interval has passed, a single trial request is let through: the circuit closes if it succeeds and opens
+ * again otherwise.
+ */
+public class CircuitBreaker {
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openInterval;
+    private final LongSupplier clock;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    public CircuitBreaker(int failureThreshold, long openInterval, LongSupplier clock) {
+        this.failureThreshold = failureThreshold;
+        this.openInterval = openInterval;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns whether a request may be sent, without taking the trial request of a half open circuit.
+     */
+    public synchronized boolean isAvailable() {
+        return this.state == State.CLOSED
+                || (this.state == State.OPEN && this.clock.getAsLong() - this.openedAt >= this.openInterval);
+    }
+
+    public synchronized boolean tryAcquire() {
+        if (this.state == State.CLOSED) {
+            return true;
+        }
+        if (this.state == State.OPEN && this.clock.getAsLong() - this.openedAt >= this.openInterval) {
+            this.state = State.HALF_OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void success() {
+        this.state = State.CLOSED;
+        this.failures = 0;
+    }
+
+    public synchronized void failure() {
+        this.failures++;
+        if (this.state == State.HALF_OPEN || this.failures >= this.failureThreshold) {
+            this.state = State.OPEN;
+            this.openedAt = this.clock.getAsLong();
+        }
+    }
+
+    synchronized State getState() {
+        return this.state;
+    }
+}
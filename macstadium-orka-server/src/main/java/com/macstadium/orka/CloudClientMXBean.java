@@ -0,0 +1,39 @@
+package com.macstadium.orka;
+
+import java.util.Map;
+
+/**
+ * Live state and tunables of an Orka cloud profile, registered as
+ * {@code com.macstadium.orka:type=CloudClient,profile=PROFILE_ID}. Changes to the tunables last until the profile
+ * is edited or the server restarts.
+ */
+public interface CloudClientMXBean {
+    int getDeploying();
+
+    /**
+     * Returns the number of tasks waiting for a worker thread of the profile, or -1 if the executor does not tell.
+     */
+    int getExecutorQueueDepth();
+
+    /**
+     * Returns the average latency of the API calls to each Orka cluster in milliseconds.
+     */
+    Map<String, Double> getApiLatencies();
+
+    Map<String, Boolean> getClusterAvailability();
+
+    int getSshRetries();
+
+    void setSshRetries(int retries);
+
+    int getSshRetryIntervalSeconds();
+
+    void setSshRetryIntervalSeconds(int seconds);
+
+    int getCleanupIntervalSeconds();
+
+    /**
+     * Reschedules the removal of failed instances with the new interval.
+     */
+    void setCleanupIntervalSeconds(int seconds);
+}
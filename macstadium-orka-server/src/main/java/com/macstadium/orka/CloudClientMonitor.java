@@ -0,0 +1,78 @@
+package com.macstadium.orka;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+
+public class CloudClientMonitor implements CloudClientMXBean {
+    private final OrkaCloudClient client;
+
+    public CloudClientMonitor(@NotNull OrkaCloudClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public int getDeploying() {
+        return this.client.getClusters().getAll().stream().mapToInt(c -> c.getDeploying().get()).sum();
+    }
+
+    @Override
+    public int getExecutorQueueDepth() {
+        return this.client.getExecutorQueueDepth();
+    }
+
+    @Override
+    public Map<String, Double> getApiLatencies() {
+        Map<String, Double> result = new TreeMap<String, Double>();
+        this.client.getClusters().getAll().forEach(c -> result.put(c.getName(), c.getLatency()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Boolean> getClusterAvailability() {
+        Map<String, Boolean> result = new TreeMap<String, Boolean>();
+        this.client.getClusters().getAll().forEach(c -> result.put(c.getName(), c.isAvailable()));
+        return result;
+    }
+
+    @Override
+    public int getSshRetries() {
+        return this.client.getSshRetries();
+    }
+
+    @Override
+    public void setSshRetries(int retries) {
+        if (retries < 1) {
+            throw new IllegalArgumentException("SSH retries must be 1 or more");
+        }
+        this.client.setSshRetries(retries);
+    }
+
+    @Override
+    public int getSshRetryIntervalSeconds() {
+        return this.client.getSshRetryInterval();
+    }
+
+    @Override
+    public void setSshRetryIntervalSeconds(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("The SSH retry interval must be 0 or more");
+        }
+        this.client.setSshRetryInterval(seconds);
+    }
+
+    @Override
+    public int getCleanupIntervalSeconds() {
+        return (int) TimeUnit.MILLISECONDS.toSeconds(this.client.getCleanupInterval());
+    }
+
+    @Override
+    public void setCleanupIntervalSeconds(int seconds) {
+        if (seconds < 1) {
+            throw new IllegalArgumentException("The cleanup interval must be 1 second or more");
+        }
+        this.client.setCleanupInterval(TimeUnit.SECONDS.toMillis(seconds));
+    }
+}
@@ -0,0 +1,27 @@
+package com.macstadium.orka;
+
+import java.util.Map;
+
+/**
+ * Live state and tunables of an Orka cloud image, registered as
+ * {@code com.macstadium.orka:type=CloudImage,profile=PROFILE_ID,image=IMAGE_ID}.
+ */
+public interface CloudImageMXBean {
+    int getInstanceCount();
+
+    Map<String, Integer> getInstanceCountsByStatus();
+
+    int getIdleVmCount();
+
+    int getPendingDeletions();
+
+    boolean isDeploymentPaused();
+
+    int getInstanceLimit();
+
+    /**
+     * Changes the maximum number of instances until the profile is edited or the server restarts. Use -1 to have
+     * no limit.
+     */
+    void setInstanceLimit(int instanceLimit);
+}
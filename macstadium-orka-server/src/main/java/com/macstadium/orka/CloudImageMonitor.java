@@ -0,0 +1,52 @@
+package com.macstadium.orka;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jetbrains.annotations.NotNull;
+
+public class CloudImageMonitor implements CloudImageMXBean {
+    private final OrkaCloudImage image;
+
+    public CloudImageMonitor(@NotNull OrkaCloudImage image) {
+        this.image = image;
+    }
+
+    @Override
+    public int getInstanceCount() {
+        return this.image.getInstances().size();
+    }
+
+    @Override
+    public Map<String, Integer> getInstanceCountsByStatus() {
+        Map<String, Integer> result = new TreeMap<String, Integer>();
+        this.image.getInstances().forEach(i -> result.merge(i.getStatus().name(), 1, Integer::sum));
+        return result;
+    }
+
+    @Override
+    public int getIdleVmCount() {
+        return this.image.getIdleVms().size();
+    }
+
+    @Override
+    public int getPendingDeletions() {
+        DeletionQueue deletionQueue = this.image.getDeletionQueue();
+        return deletionQueue != null ? deletionQueue.getDepth() : 0;
+    }
+
+    @Override
+    public boolean isDeploymentPaused() {
+        return this.image.getDeployQuarantine().isActive();
+    }
+
+    @Override
+    public int getInstanceLimit() {
+        return this.image.getInstanceLimit();
+    }
+
+    @Override
+    public void setInstanceLimit(int instanceLimit) {
+        this.image.setInstanceLimit(instanceLimit);
+    }
+}
@@ -0,0 +1,200 @@
+package com.macstadium.orka;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+import jetbrains.buildServer.log.Loggers;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Shares the VM capacity of an Orka cluster between all the cloud profiles that use the same endpoint.
+ * Each profile is guaranteed a share of the capacity proportional to its weight, and may borrow the share
+ * other profiles do not use, unless one of them recently needed it and was refused. Borrowed capacity is
+ * returned as the borrowing instances are removed, running instances are never stopped to give it back.
+ * Idle VMs kept for reuse are given back right away: when a profile is refused its share, a profile above
+ * its share is asked to delete its least recently used idle VM.
+ * <p>
+ * Checks only read counters and do not wait for other profiles. The number of VMs of a profile is read
+ * from its image, so that it stays consistent with the instances and idle VMs it holds.
+ */
+public class ClusterQuota {
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
+    private static final Map<String, ClusterQuota> QUOTAS = new ConcurrentHashMap<String, ClusterQuota>();
+    private static final long DEMAND_WINDOW = TimeUnit.MINUTES.toMillis(1);
+
+    private final String endpoint;
+    private final List<Member> members = new CopyOnWriteArrayList<Member>();
+    private final LongSupplier clock;
+
+    ClusterQuota(String endpoint, LongSupplier clock) {
+        this.endpoint = endpoint;
+        this.clock = clock;
+    }
+
+    /**
+     * Registers a profile with the quota of its Orka endpoint. A capacity of 0 or less leaves the capacity to
+     * the other profiles, the smallest positive capacity of all profiles is used.
+     */
+    @NotNull
+    public static Member register(@NotNull String endpoint, @NotNull String name, int capacity, int weight,
+            @NotNull IntSupplier usage) {
+        Member[] member = new Member[1];
+        QUOTAS.compute(normalize(endpoint), (key, quota) -> {
+            ClusterQuota result = quota != null ? quota : new ClusterQuota(key, System::currentTimeMillis);
+            member[0] = result.add(name, capacity, weight, usage);
+            return result;
+        });
+        return member[0];
+    }
+
+    static String normalize(String endpoint) {
+        String result = endpoint == null ? "" : endpoint.trim().toLowerCase(Locale.ROOT);
+        while (result.endsWith("/")) {
+            result = result.substring(0, result.length() - 1);
+        }
+        return result;
+    }
+
+    Member add(String name, int capacity, int weight, IntSupplier usage) {
+        Member member = new Member(this, name, capacity, Math.max(1, weight), usage);
+        this.members.add(member);
+        LOG.debug(String.format("Registered profile: %s with endpoint: %s, capacity: %s and weight: %s", name,
+                this.endpoint, capacity, member.weight));
+        return member;
+    }
+
+    void remove(Member member) {
+        this.members.remove(member);
+        QUOTAS.computeIfPresent(this.endpoint,
+                (key, quota) -> quota == this && quota.members.isEmpty() ? null : quota);
+    }
+
+    public int getCapacity() {
+        return this.members.stream().mapToInt(m -> m.capacity).filter(c -> c > 0).min().orElse(0);
+    }
+
+    public int getUsed() {
+        return this.members.stream().mapToInt(Member::getUsed).sum();
+    }
+
+    int getShare(Member member) {
+        int totalWeight = this.members.stream().mapToInt(m -> m.weight).sum();
+        return (int) Math.floor((double) this.getCapacity() * member.weight / totalWeight);
+    }
+
+    private boolean canAcquire(Member member, boolean recordDemand) {
+        int capacity = this.getCapacity();
+        if (capacity <= 0) {
+            return true;
+        }
+        int used = member.getUsed();
+        int share = this.getShare(member);
+        if (this.getUsed() >= capacity) {
+            if (recordDemand && used < share) {
+                member.lastRefused = this.clock.getAsLong();
+                this.reclaim(member);
+            }
+            return false;
+        }
+        if (used < share) {
+            return true;
+        }
+        long now = this.clock.getAsLong();
+        return this.members.stream().noneMatch(m -> m != member && m.isWaiting(now));
+    }
+
+    private void reclaim(Member waiting) {
+        this.members.stream().filter(m -> m != waiting && m.getUsed() > this.getShare(m)).filter(Member::reclaim)
+                .findFirst().ifPresent(m -> LOG.debug(String.format(
+                        "Profile: %s gave back an idle VM for profile: %s", m.name, waiting.name)));
+    }
+
+    private synchronized boolean tryAcquire(Member member) {
+        if (!this.canAcquire(member, true)) {
+            return false;
+        }
+        member.pending++;
+        return true;
+    }
+
+    private synchronized void acquired(Member member) {
+        member.pending = Math.max(0, member.pending - 1);
+    }
+
+    public static class Member {
+        private final ClusterQuota quota;
+        private final String name;
+        private final int capacity;
+        private final int weight;
+        private final IntSupplier usage;
+        private volatile int pending;
+        private volatile long lastRefused = -DEMAND_WINDOW;
+        private volatile BooleanSupplier reclaimer;
+
+        Member(ClusterQuota quota, String name, int capacity, int weight, IntSupplier usage) {
+            this.quota = quota;
+            this.name = name;
+            this.capacity = capacity;
+            this.weight = weight;
+            this.usage = usage;
+        }
+
+        /**
+         * Sets how the profile gives back an idle VM, returning whether it had one.
+         */
+        public void setReclaimer(BooleanSupplier reclaimer) {
+            this.reclaimer = reclaimer;
+        }
+
+        boolean reclaim() {
+            BooleanSupplier reclaimer = this.reclaimer;
+            return reclaimer != null && reclaimer.getAsBoolean();
+        }
+
+        int getUsed() {
+            return this.usage.getAsInt() + this.pending;
+        }
+
+        boolean isWaiting(long now) {
+            return now - this.lastRefused < DEMAND_WINDOW && this.getUsed() < this.quota.getShare(this);
+        }
+
+        /**
+         * Returns whether a new VM could be started, without reserving it.
+         */
+        public boolean canAcquire() {
+            return this.quota.canAcquire(this, false);
+        }
+
+        /**
+         * Reserves a new VM. The reservation must be confirmed with {@link #acquired()} once the VM is counted
+         * by the usage of the profile.
+         */
+        public boolean tryAcquire() {
+            boolean result = this.quota.tryAcquire(this);
+            if (!result) {
+                LOG.debug(String.format("Orka cluster capacity reached for profile: %s, used: %s of %s", this.name,
+                        this.quota.getUsed(), this.quota.getCapacity()));
+            }
+            return result;
+        }
+
+        public void acquired() {
+            this.quota.acquired(this);
+        }
+
+        public void unregister() {
+            this.quota.remove(this);
+        }
+    }
+}
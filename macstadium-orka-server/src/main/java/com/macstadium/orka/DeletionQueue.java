@@ -0,0 +1,203 @@
+package com.macstadium.orka;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+import jetbrains.buildServer.log.Loggers;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * VMs that failed to be deleted, retried with an exponential backoff and jitter until they are deleted or
+ * run out of attempts. The queue is written to disk on every change, so that the VMs are still deleted after
+ * a server restart instead of holding Orka capacity forever. The clients of a profile share its queue, so that
+ * the VMs left by a disposed client are deleted by the next one.
+ */
+public class DeletionQueue {
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
+    static final long BASE_BACKOFF = TimeUnit.SECONDS.toMillis(15);
+    static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(30);
+    static final int MAX_ATTEMPTS = 20;
+    private static final double JITTER = 0.2;
+    private static final Map<File, DeletionQueue> QUEUES = new ConcurrentHashMap<File, DeletionQueue>();
+
+    @Nullable
+    private final File file;
+    private final LongSupplier clock;
+    private final Random random;
+    private final Gson gson = new Gson();
+    private final Map<String, Item> items = new LinkedHashMap<String, Item>();
+
+    public DeletionQueue(@Nullable File file, LongSupplier clock, Random random) {
+        this.file = file;
+        this.clock = clock;
+        this.random = random;
+        this.load();
+    }
+
+    @NotNull
+    public static DeletionQueue open(@NotNull File file) {
+        return QUEUES.computeIfAbsent(file.getAbsoluteFile(),
+                f -> new DeletionQueue(f, System::currentTimeMillis, new Random()));
+    }
+
+    /**
+     * Queues a VM for deletion, due right away. A VM that is already queued keeps its attempts.
+     */
+    public synchronized void add(@NotNull String vmId, @NotNull String namespace) {
+        if (this.items.containsKey(vmId)) {
+            return;
+        }
+        long now = this.clock.getAsLong();
+        this.items.put(vmId, new Item(vmId, namespace, now));
+        LOG.debug(String.format("Queued vm: %s for deletion, queue depth: %s", vmId, this.items.size()));
+        this.save();
+    }
+
+    public synchronized boolean contains(@NotNull String vmId) {
+        return this.items.containsKey(vmId);
+    }
+
+    @NotNull
+    public synchronized List<Item> due() {
+        long now = this.clock.getAsLong();
+        return this.items.values().stream().filter(i -> i.nextAttempt <= now).collect(Collectors.toList());
+    }
+
+    public synchronized void deleted(@NotNull Item item) {
+        if (this.items.remove(item.vmId) != null) {
+            this.save();
+        }
+    }
+
+    /**
+     * Schedules the next attempt of a failed deletion. Returns false and drops the VM once it ran out of
+     * attempts.
+     */
+    public synchronized boolean failed(@NotNull Item item, @Nullable String error) {
+        if (!this.items.containsKey(item.vmId)) {
+            return false;
+        }
+        item.attempts++;
+        item.lastError = error;
+        if (item.attempts >= MAX_ATTEMPTS) {
+            this.items.remove(item.vmId);
+            this.save();
+            return false;
+        }
+        item.nextAttempt = this.clock.getAsLong() + this.getBackoff(item.attempts);
+        this.save();
+        return true;
+    }
+
+    long getBackoff(int attempts) {
+        long backoff = Math.min(BASE_BACKOFF << Math.min(attempts - 1, 30), MAX_BACKOFF);
+        double jitter = 1 + JITTER * (2 * this.random.nextDouble() - 1);
+        return (long) (backoff * jitter);
+    }
+
+    public synchronized int getDepth() {
+        return this.items.size();
+    }
+
+    /**
+     * Returns when the oldest queued VM was queued, 0 if the queue is empty.
+     */
+    public synchronized long getOldestQueuedAt() {
+        return this.items.values().stream().mapToLong(i -> i.queuedAt).min().orElse(0);
+    }
+
+    /**
+     * Returns how long the oldest queued VM has been waiting for deletion in milliseconds, 0 if none is.
+     */
+    public synchronized long getOldestAge() {
+        long oldest = this.getOldestQueuedAt();
+        return oldest == 0 ? 0 : this.clock.getAsLong() - oldest;
+    }
+
+    private void load() {
+        if (this.file == null || !this.file.isFile()) {
+            return;
+        }
+        try {
+            String json = new String(Files.readAllBytes(this.file.toPath()), StandardCharsets.UTF_8);
+            Item[] items = this.gson.fromJson(json, Item[].class);
+            if (items != null) {
+                Arrays.stream(items).filter(i -> i != null && i.vmId != null)
+                        .forEach(i -> this.items.put(i.vmId, i));
+            }
+            LOG.info(String.format("Loaded %s VMs to delete from %s", this.items.size(), this.file));
+        } catch (IOException | JsonSyntaxException e) {
+            LOG.warn(String.format("Failed to load VMs to delete from %s", this.file), e);
+        }
+    }
+
+    private void save() {
+        if (this.file == null) {
+            return;
+        }
+        try {
+            File directory = this.file.getParentFile();
+            if (directory != null) {
+                Files.createDirectories(directory.toPath());
+            }
+            File temp = new File(this.file.getPath() + ".tmp");
+            String json = this.gson.toJson(new ArrayList<Item>(this.items.values()));
+            Files.write(temp.toPath(), json.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn(String.format("Failed to save VMs to delete to %s", this.file), e);
+        }
+    }
+
+    public static class Item {
+        private String vmId;
+        private String namespace;
+        private long queuedAt;
+        private long nextAttempt;
+        private int attempts;
+        private String lastError;
+
+        Item(String vmId, String namespace, long queuedAt) {
+            this.vmId = vmId;
+            this.namespace = namespace;
+            this.queuedAt = queuedAt;
+            this.nextAttempt = queuedAt;
+        }
+
+        public String getVmId() {
+            return this.vmId;
+        }
+
+        public String getNamespace() {
+            return this.namespace;
+        }
+
+        public int getAttempts() {
+            return this.attempts;
+        }
+
+        public String getLastError() {
+            return this.lastError;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.macstadium.orka;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.clouds.QuotaException;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.serverSide.agentPools.AgentPoolManager;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Forecasts demand for Orka agents from build queue events and starts instances ahead of the
+ * TeamCity cloud scheduler, so that deploy and boot time overlap with queue wait.
+ */
+public class DemandForecaster {
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
+    private static final long ARRIVAL_WINDOW = TimeUnit.MINUTES.toMillis(5);
+    private static final long MAX_QUEUED_AGE = TimeUnit.HOURS.toMillis(6);
+    private static final long DEFAULT_LEAD_TIME = TimeUnit.MINUTES.toMillis(2);
+    private static final double LEAD_TIME_WEIGHT = 0.3;
+
+    private final OrkaCloudClient client;
+    @Nullable
+    private final AgentPoolManager poolManager;
+    private final int maxSpareInstances;
+    private final LongSupplier clock;
+
+    private final Map<Long, QueuedBuild> queuedBuilds = new ConcurrentHashMap<Long, QueuedBuild>();
+    private final Deque<QueuedBuild> arrivals = new ConcurrentLinkedDeque<QueuedBuild>();
+    private volatile double leadTime = DEFAULT_LEAD_TIME;
+
+    public DemandForecaster(@NotNull OrkaCloudClient client, @Nullable AgentPoolManager poolManager,
+            int maxSpareInstances) {
+        this(client, poolManager, maxSpareInstances, System::currentTimeMillis);
+    }
+
+    DemandForecaster(@NotNull OrkaCloudClient client, @Nullable AgentPoolManager poolManager, int maxSpareInstances,
+            LongSupplier clock) {
+        this.client = client;
+        this.poolManager = poolManager;
+        this.maxSpareInstances = maxSpareInstances;
+        this.clock = clock;
+    }
+
+    public boolean isEnabled() {
+        return this.maxSpareInstances > 0;
+    }
+
+    public void buildQueued(@NotNull SQueuedBuild queuedBuild) {
+        SBuildType buildType = queuedBuild.getBuildType();
+        QueuedBuild build = new QueuedBuild(buildType != null ? buildType.getProjectId() : null,
+                this.clock.getAsLong());
+        this.queuedBuilds.put(queuedBuild.getBuildPromotion().getId(), build);
+        this.arrivals.addLast(build);
+    }
+
+    public void buildDequeued(long promotionId) {
+        this.queuedBuilds.remove(promotionId);
+    }
+
+    public void recordBringUp(long durationMillis) {
+        this.leadTime = LEAD_TIME_WEIGHT * durationMillis + (1 - LEAD_TIME_WEIGHT) * this.leadTime;
+    }
+
+    public void evaluate() {
+        if (!this.isEnabled()) {
+            return;
+        }
+        this.prune();
+        Map<Integer, Set<String>> poolProjects = new HashMap<Integer, Set<String>>();
+        this.client.getImages().forEach(image -> this.evaluate((OrkaCloudImage) image, poolProjects));
+    }
+
+    int getForecast(@NotNull OrkaCloudImage image) {
+        this.prune();
+        return this.getForecast(image, new HashMap<Integer, Set<String>>());
+    }
+
+    private void evaluate(OrkaCloudImage image, Map<Integer, Set<String>> poolProjects) {
+        int demand = Math.min(this.getForecast(image, poolProjects), this.maxSpareInstances);
+        int deficit = demand - this.getSupply(image);
+        if (deficit <= 0) {
+            return;
+        }
+
+        LOG.debug(String.format("Pre-provisioning %s instances for image %s", deficit, image.getId()));
+        for (int i = 0; i < deficit && this.client.canStartNewInstance(image); i++) {
+            try {
+                this.client.preProvisionInstance(image);
+            } catch (QuotaException e) {
+                LOG.debug("Pre-provisioning stopped, quota reached", e);
+                return;
+            }
+        }
+    }
+
+    private int getForecast(OrkaCloudImage image, Map<Integer, Set<String>> poolProjects) {
+        Set<String> projects = poolProjects.computeIfAbsent(image.getAgentPoolId(), this::getPoolProjects);
+        long queued = this.queuedBuilds.values().stream().filter(b -> this.isCompatible(b, projects)).count();
+        long recent = this.arrivals.stream().filter(b -> this.isCompatible(b, projects)).count();
+        double expected = (double) recent / ARRIVAL_WINDOW * this.leadTime;
+        return (int) (queued + Math.ceil(expected));
+    }
+
+    private int getSupply(OrkaCloudImage image) {
+        return (int) image.getInstances().stream().map(i -> (OrkaCloudInstance) i).filter(i -> {
+            InstanceStatus status = i.getStatus();
+            return status == InstanceStatus.SCHEDULED_TO_START || status == InstanceStatus.STARTING
+                    || (status == InstanceStatus.RUNNING && !i.isBusy());
+        }).count();
+    }
+
+    /**
+     * Returns whether the build counts towards the demand of an image. Without a known pool every recorded build
+     * counts, as the client records only builds its images can run; a pool without projects matches no build.
+     */
+    private boolean isCompatible(QueuedBuild build, @Nullable Set<String> projects) {
+        return projects == null || build.projectId != null && projects.contains(build.projectId);
+    }
+
+    @Nullable
+    private Set<String> getPoolProjects(Integer poolId) {
+        if (this.poolManager == null || poolId == null || poolId < 0) {
+            return null;
+        }
+        Set<String> projects = this.poolManager.getPoolProjects(poolId);
+        return projects != null ? projects : Collections.emptySet();
+    }
+
+    private void prune() {
+        long now = this.clock.getAsLong();
+        QueuedBuild oldest;
+        while ((oldest = this.arrivals.peekFirst()) != null && now - oldest.queuedAt > ARRIVAL_WINDOW) {
+            this.arrivals.remove(oldest);
+        }
+        this.queuedBuilds.values().removeIf(b -> now - b.queuedAt > MAX_QUEUED_AGE);
+    }
+
+    private static class QueuedBuild {
+        @Nullable
+        private final String projectId;
+        private final long queuedAt;
+
+        QueuedBuild(@Nullable String projectId, long queuedAt) {
+            this.projectId = projectId;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
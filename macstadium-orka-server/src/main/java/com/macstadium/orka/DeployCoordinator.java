@@ -0,0 +1,208 @@
+package com.macstadium.orka;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+import jetbrains.buildServer.log.Loggers;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Groups concurrent deployments of an image into bursts. Deployments are collected for a short window and
+ * nodes are selected for the whole batch at once, so that the burst is spread by the capacity left after
+ * each of its VMs. With waves enabled, each node receives at most the wave size of deployments at a time,
+ * so that a burst does not saturate node disk I/O; otherwise all of them are released together.
+ * The time until the agent of every instance of a burst has registered is recorded separately for bursts
+ * deployed in waves and bursts deployed all at once.
+ */
+public class DeployCoordinator {
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
+    static final long BATCH_WINDOW = TimeUnit.SECONDS.toMillis(1);
+    private static final String DEFAULT_NODE = "";
+
+    public interface Deployment {
+        /**
+         * Deploys the VM, on the node if one was selected. Returns a stage completed once the agent of the
+         * instance has registered or failed to, or null if the instance is not coming up.
+         */
+        @Nullable
+        CompletionStage<?> deploy(@Nullable String node);
+    }
+
+    private final ScheduledExecutorService executor;
+    private final NodePlacement nodePlacement;
+    private final int waveSize;
+    private final long waveDelay;
+    private final LongSupplier clock;
+    private final Map<String, Batch> batches = new HashMap<String, Batch>();
+    private final Statistics wavesStatistics = new Statistics();
+    private final Statistics allAtOnceStatistics = new Statistics();
+
+    public DeployCoordinator(@NotNull ScheduledExecutorService executor, @NotNull NodePlacement nodePlacement,
+            int waveSize, long waveDelay) {
+        this(executor, nodePlacement, waveSize, waveDelay, System::currentTimeMillis);
+    }
+
+    DeployCoordinator(@NotNull ScheduledExecutorService executor, @NotNull NodePlacement nodePlacement,
+            int waveSize, long waveDelay, LongSupplier clock) {
+        this.executor = executor;
+        this.nodePlacement = nodePlacement;
+        this.waveSize = waveSize;
+        this.waveDelay = waveDelay;
+        this.clock = clock;
+    }
+
+    public boolean isWavesEnabled() {
+        return this.waveSize > 0;
+    }
+
+    public void submit(@NotNull OrkaCloudImage image, @NotNull Deployment deployment) {
+        this.submit(image, -1, deployment);
+    }
+
+    /**
+     * Submits the deployment of a VM with the CPU, or with the CPU of the VM config of the profile if it is
+     * negative, so that its node has room for it.
+     */
+    public synchronized void submit(@NotNull OrkaCloudImage image, int cpu, @NotNull Deployment deployment) {
+        long now = this.clock.getAsLong();
+        Batch batch = this.batches.get(image.getId());
+        if (batch == null) {
+            batch = new Batch(now);
+            this.batches.put(image.getId(), batch);
+            Batch scheduled = batch;
+            this.executor.schedule(() -> this.release(image, scheduled), BATCH_WINDOW, TimeUnit.MILLISECONDS);
+        }
+        batch.size++;
+        batch.remaining.incrementAndGet();
+        batch.pending.add(new Pending(deployment, cpu));
+    }
+
+    @NotNull
+    public Statistics getWavesStatistics() {
+        return this.wavesStatistics;
+    }
+
+    @NotNull
+    public Statistics getAllAtOnceStatistics() {
+        return this.allAtOnceStatistics;
+    }
+
+    private void release(OrkaCloudImage image, Batch batch) {
+        List<Pending> pending;
+        synchronized (this) {
+            this.batches.remove(image.getId(), batch);
+            pending = new ArrayList<Pending>(batch.pending);
+            batch.pending.clear();
+        }
+
+        List<String> nodes = this.nodePlacement.selectNodes(
+                pending.stream().map(p -> p.cpu).collect(Collectors.toList()));
+        Map<String, List<Runnable>> perNode = new LinkedHashMap<String, List<Runnable>>();
+        for (int i = 0; i < pending.size(); i++) {
+            String node = nodes.get(i);
+            Deployment deployment = pending.get(i).deployment;
+            perNode.computeIfAbsent(node != null ? node : DEFAULT_NODE, k -> new ArrayList<Runnable>())
+                    .add(() -> this.deploy(batch, deployment, node));
+        }
+        batch.waves = this.isWavesEnabled() && perNode.values().stream().anyMatch(d -> d.size() > this.waveSize);
+
+        LOG.debug(String.format("Releasing %s deployments of image %s to %s nodes", pending.size(), image.getId(),
+                perNode.size()));
+        perNode.values().forEach(deployments -> {
+            for (int i = 0; i < deployments.size(); i++) {
+                long delay = this.isWavesEnabled() ? (i / this.waveSize) * this.waveDelay : 0;
+                if (delay == 0) {
+                    this.executor.submit(deployments.get(i));
+                } else {
+                    this.executor.schedule(deployments.get(i), delay, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+    }
+
+    private void deploy(Batch batch, Deployment deployment, @Nullable String node) {
+        CompletionStage<?> registration = null;
+        try {
+            registration = deployment.deploy(node);
+        } finally {
+            if (registration != null) {
+                registration.whenComplete((result, error) -> this.instanceUp(batch));
+            } else {
+                this.instanceUp(batch);
+            }
+        }
+    }
+
+    private void instanceUp(Batch batch) {
+        if (batch.remaining.decrementAndGet() == 0) {
+            long duration = this.clock.getAsLong() - batch.startedAt;
+            Statistics statistics = batch.waves ? this.wavesStatistics : this.allAtOnceStatistics;
+            statistics.record(batch.size, duration);
+            LOG.info(String.format("Burst of %s instances deployed %s was up in %sms. "
+                    + "Average burst time in waves: %sms, all at once: %sms", batch.size,
+                    batch.waves ? "in waves" : "all at once", duration, this.wavesStatistics.getAverageMillis(),
+                    this.allAtOnceStatistics.getAverageMillis()));
+        }
+    }
+
+    private static class Batch {
+        private final long startedAt;
+        private final List<Pending> pending = new ArrayList<Pending>();
+        private final AtomicInteger remaining = new AtomicInteger();
+        private volatile int size;
+        private volatile boolean waves;
+
+        Batch(long startedAt) {
+            this.startedAt = startedAt;
+        }
+    }
+
+    private static class Pending {
+        private final Deployment deployment;
+        private final int cpu;
+
+        Pending(Deployment deployment, int cpu) {
+            this.deployment = deployment;
+            this.cpu = cpu;
+        }
+    }
+
+    public static class Statistics {
+        private final AtomicLong bursts = new AtomicLong();
+        private final AtomicLong instances = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+
+        void record(int instances, long millis) {
+            this.bursts.incrementAndGet();
+            this.instances.addAndGet(instances);
+            this.totalMillis.addAndGet(millis);
+        }
+
+        public long getBursts() {
+            return this.bursts.get();
+        }
+
+        public long getInstances() {
+            return this.instances.get();
+        }
+
+        public long getAverageMillis() {
+            long bursts = this.bursts.get();
+            return bursts == 0 ? 0 : this.totalMillis.get() / bursts;
+        }
+    }
+}
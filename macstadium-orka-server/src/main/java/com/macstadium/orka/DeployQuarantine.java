@@ -0,0 +1,59 @@
+package com.macstadium.orka;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import jetbrains.buildServer.clouds.CloudErrorInfo;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Pauses the deployments of an image after consecutive failures, so that a broken VM config or an expired
+ * token does not turn into a tight deploy loop against Orka. Each further failure doubles the pause, up to
+ * a maximum. Once the pause is over, deployments are tried again, and the first success ends the quarantine.
+ */
+public class DeployQuarantine {
+    static final int FAILURE_THRESHOLD = 3;
+    static final long BASE_COOLDOWN = TimeUnit.MINUTES.toMillis(1);
+    static final long MAX_COOLDOWN = TimeUnit.MINUTES.toMillis(30);
+
+    private final LongSupplier clock;
+    private int failures;
+    private long until;
+    @Nullable
+    private String lastError;
+
+    public DeployQuarantine(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    public synchronized void failed(@Nullable String error) {
+        this.failures++;
+        this.lastError = error;
+        if (this.failures >= FAILURE_THRESHOLD) {
+            int doublings = Math.min(this.failures - FAILURE_THRESHOLD, 30);
+            long cooldown = Math.min(BASE_COOLDOWN << doublings, MAX_COOLDOWN);
+            this.until = this.clock.getAsLong() + cooldown;
+        }
+    }
+
+    public synchronized void succeeded() {
+        this.failures = 0;
+        this.until = 0;
+        this.lastError = null;
+    }
+
+    public synchronized boolean isActive() {
+        return this.failures >= FAILURE_THRESHOLD && this.clock.getAsLong() < this.until;
+    }
+
+    @Nullable
+    public synchronized CloudErrorInfo getErrorInfo() {
+        if (!this.isActive()) {
+            return null;
+        }
+        return new CloudErrorInfo(String.format("Deployments paused until %s after %s consecutive failures",
+                new Date(this.until), this.failures), this.lastError != null ? this.lastError : "");
+    }
+}
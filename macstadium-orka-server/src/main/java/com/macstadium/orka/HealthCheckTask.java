@@ -0,0 +1,110 @@
+package com.macstadium.orka;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.macstadium.orka.client.VMResponse;
+import com.macstadium.orka.client.VMsResponse;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import jetbrains.buildServer.clouds.CloudErrorInfo;
+import jetbrains.buildServer.clouds.CloudImage;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.log.Loggers;
+
+/**
+ * Checks RUNNING instances against a single listing of the namespace VMs of each cluster, so the number of
+ * API calls does not grow with the number of instances. A cluster that cannot be listed leaves its instances
+ * unchecked. Instances whose VM is gone are released, instances whose
+ * VM has failed are marked for termination.
+ */
+public class HealthCheckTask implements Runnable {
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
+    private static final int MAX_MISSES = 2;
+    private static final String FAILED_STATUS = "Failed";
+
+    private final OrkaCloudClient client;
+    private final Map<String, Integer> misses = new HashMap<String, Integer>();
+
+    public HealthCheckTask(OrkaCloudClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public void run() {
+        LOG.debug("Running instance health check...");
+        Set<String> checked = new HashSet<String>();
+        this.client.getImages().forEach(image -> this.checkInstances(image, checked));
+        this.misses.keySet().retainAll(checked);
+        LOG.debug("Instance health check completed.");
+    }
+
+    private void checkInstances(CloudImage image, Set<String> checked) {
+        List<OrkaCloudInstance> instances = image.getInstances().stream().map(i -> (OrkaCloudInstance) i)
+                .filter(i -> i.getStatus() == InstanceStatus.RUNNING && !i.isMarkedForTermination())
+                .collect(Collectors.toList());
+        OrkaCloudImage orkaImage = (OrkaCloudImage) image;
+        for (OrkaCluster cluster : this.client.getClusters().getAll()) {
+            List<OrkaCloudInstance> owned = instances.stream().filter(i -> cluster.owns(i.getInstanceId()))
+                    .collect(Collectors.toList());
+            if (!owned.isEmpty()) {
+                this.checkInstances(orkaImage, cluster, owned, checked);
+            }
+        }
+    }
+
+    private void checkInstances(OrkaCloudImage image, OrkaCluster cluster, List<OrkaCloudInstance> instances,
+            Set<String> checked) {
+        Map<String, VMResponse> vms;
+        try {
+            VMsResponse response = this.client.getVMs(cluster, image.getNamespace());
+            if (!response.isSuccessful()) {
+                LOG.info(String.format("Failed to list VMs of cluster: %s in namespace: %s and message: %s",
+                        cluster, image.getNamespace(), response.getMessage()));
+                return;
+            }
+            vms = response.getVMs().stream().filter(vm -> vm.getName() != null).collect(Collectors
+                    .toMap(vm -> cluster.getInstanceId(vm.getName()), Function.identity(), (first, second) -> first));
+        } catch (IOException e) {
+            LOG.info(String.format("Failed to list VMs of cluster: %s in namespace: %s", cluster,
+                    image.getNamespace()), e);
+            return;
+        }
+
+        instances.forEach(instance -> {
+            checked.add(instance.getInstanceId());
+            this.checkInstance(image, instance, vms.get(instance.getInstanceId()));
+        });
+    }
+
+    private void checkInstance(OrkaCloudImage image, OrkaCloudInstance instance, VMResponse vm) {
+        String instanceId = instance.getInstanceId();
+        if (vm == null) {
+            int count = this.misses.merge(instanceId, 1, Integer::sum);
+            if (count >= MAX_MISSES && instance.getStatus() == InstanceStatus.RUNNING) {
+                LOG.info(String.format("VM %s no longer exists, releasing instance", instanceId));
+                this.misses.remove(instanceId);
+                instance.setErrorInfo(new CloudErrorInfo("VM no longer exists"));
+                instance.setStatus(InstanceStatus.STOPPED);
+                image.terminateInstance(instanceId);
+                this.client.vmRemoved(instanceId);
+            }
+            return;
+        }
+
+        this.misses.remove(instanceId);
+        if (FAILED_STATUS.equalsIgnoreCase(vm.getStatus())) {
+            LOG.info(String.format("VM %s is in %s status, marking instance for termination", instanceId,
+                    vm.getStatus()));
+            instance.setStatus(InstanceStatus.ERROR);
+            instance.setErrorInfo(new CloudErrorInfo("VM failed", vm.getStatus()));
+            instance.setMarkedForTermination(true);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.macstadium.orka;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The instances of an image, found by the ID the plugin assigned when the instance was started and, once the
+ * VM is deployed, by the Orka VM name as well. Both keys map to the same instance and are bound and removed
+ * together, so a lookup by either ID never misses while the instance switches to its VM name.
+ */
+class InstanceIndex {
+    private final Map<String, OrkaCloudInstance> byId = new ConcurrentHashMap<String, OrkaCloudInstance>();
+    private final Map<OrkaCloudInstance, Boolean> instances = new ConcurrentHashMap<OrkaCloudInstance, Boolean>();
+
+    @Nullable
+    OrkaCloudInstance get(@NotNull String id) {
+        return this.byId.get(id);
+    }
+
+    @NotNull
+    Collection<OrkaCloudInstance> values() {
+        return Collections.unmodifiableSet(this.instances.keySet());
+    }
+
+    int size() {
+        return this.instances.size();
+    }
+
+    synchronized void add(@NotNull OrkaCloudInstance instance) {
+        this.instances.put(instance, Boolean.TRUE);
+        this.byId.put(instance.getPluginId(), instance);
+        this.byId.put(instance.getInstanceId(), instance);
+    }
+
+    /**
+     * Switches an instance to its VM name, keeping the ID the plugin assigned. Returns false if the instance
+     * was removed, in which case it is not added back.
+     */
+    synchronized boolean bind(@NotNull OrkaCloudInstance instance, @NotNull String vmId) {
+        boolean indexed = this.instances.containsKey(instance);
+        if (indexed) {
+            if (!instance.getInstanceId().equals(instance.getPluginId())) {
+                this.byId.remove(instance.getInstanceId(), instance);
+            }
+            this.byId.put(vmId, instance);
+        }
+        instance.assignInstanceId(vmId);
+        return indexed;
+    }
+
+    /**
+     * Removes the instance with the given ID under both of its IDs.
+     */
+    @Nullable
+    synchronized OrkaCloudInstance remove(@NotNull String id) {
+        OrkaCloudInstance instance = this.byId.get(id);
+        if (instance == null) {
+            return null;
+        }
+        this.instances.remove(instance);
+        this.byId.remove(instance.getPluginId(), instance);
+        this.byId.remove(instance.getInstanceId(), instance);
+        return instance;
+    }
+
+    synchronized void clear() {
+        this.byId.clear();
+        this.instances.clear();
+    }
+}
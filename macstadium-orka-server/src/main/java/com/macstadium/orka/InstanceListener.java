@@ -0,0 +1,13 @@
+package com.macstadium.orka;
+
+import jetbrains.buildServer.clouds.InstanceStatus;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Notified when an instance of an image changes status, on the thread that made the change.
+ */
+public interface InstanceListener {
+    void statusChanged(@NotNull OrkaCloudInstance instance, @NotNull InstanceStatus from,
+            @NotNull InstanceStatus to);
+}
@@ -0,0 +1,135 @@
+package com.macstadium.orka;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import jetbrains.buildServer.log.Loggers;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps the running instances and idle VMs of a disposed client for the client that replaces it, so that
+ * editing a cloud profile does not lose its warm capacity. Handoffs are keyed by endpoint and image, and are
+ * adopted only when the settings they depend on are unchanged. A handoff that is not adopted in time, or does
+ * not match, is given back to its fallback, which deletes the idle VMs; running instances are then found
+ * again through their agents.
+ */
+public class InstanceRegistry {
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
+    static final long HANDOFF_TTL = TimeUnit.MINUTES.toMillis(2);
+    private static final InstanceRegistry INSTANCE = new InstanceRegistry(
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "Orka instance registry");
+                thread.setDaemon(true);
+                return thread;
+            }), HANDOFF_TTL);
+
+    private final ScheduledExecutorService executor;
+    private final long ttl;
+    private final Map<String, Handoff> handoffs = new HashMap<String, Handoff>();
+
+    InstanceRegistry(ScheduledExecutorService executor, long ttl) {
+        this.executor = executor;
+        this.ttl = ttl;
+    }
+
+    @NotNull
+    public static InstanceRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    @NotNull
+    public static String getKey(String endpoint, String namespace, String vmName) {
+        return String.format("%s|%s|%s", ClusterQuota.normalize(endpoint), namespace, vmName);
+    }
+
+    public void release(@NotNull String key, @NotNull Handoff handoff) {
+        Handoff previous;
+        synchronized (this) {
+            previous = this.handoffs.put(key, handoff);
+            handoff.expiry = this.executor.schedule(() -> this.expire(key, handoff), this.ttl,
+                    TimeUnit.MILLISECONDS);
+        }
+        LOG.debug(String.format("Released %s instances and %s idle VMs for: %s", handoff.instances.size(),
+                handoff.idleVms.size(), key));
+        if (previous != null) {
+            previous.expiry.cancel(false);
+            this.executor.execute(previous.fallback);
+        }
+    }
+
+    /**
+     * Takes the handoff for the key if its fingerprint matches. A handoff that does not match is given back to
+     * its fallback.
+     */
+    @Nullable
+    public Handoff adopt(@NotNull String key, @NotNull String fingerprint) {
+        Handoff handoff;
+        synchronized (this) {
+            handoff = this.handoffs.remove(key);
+        }
+        if (handoff == null) {
+            return null;
+        }
+        handoff.expiry.cancel(false);
+        if (!handoff.fingerprint.equals(fingerprint)) {
+            LOG.info(String.format("Settings changed for: %s, not adopting the instances of the previous client",
+                    key));
+            this.executor.execute(handoff.fallback);
+            return null;
+        }
+        return handoff;
+    }
+
+    private void expire(String key, Handoff handoff) {
+        synchronized (this) {
+            if (!this.handoffs.remove(key, handoff)) {
+                return;
+            }
+        }
+        LOG.info(String.format("No client adopted the instances released for: %s", key));
+        handoff.fallback.run();
+    }
+
+    public static class Handoff {
+        private final String fingerprint;
+        private final List<OrkaCloudInstance> instances;
+        private final List<PooledVm> idleVms;
+        private final Map<String, String> nodes;
+        private final Runnable fallback;
+        private volatile ScheduledFuture<?> expiry;
+
+        public Handoff(@NotNull String fingerprint, @NotNull List<OrkaCloudInstance> instances,
+                @NotNull List<PooledVm> idleVms, @NotNull Map<String, String> nodes, @NotNull Runnable fallback) {
+            this.fingerprint = fingerprint;
+            this.instances = Collections.unmodifiableList(instances);
+            this.idleVms = Collections.unmodifiableList(idleVms);
+            this.nodes = Collections.unmodifiableMap(nodes);
+            this.fallback = fallback;
+        }
+
+        @NotNull
+        public List<OrkaCloudInstance> getInstances() {
+            return this.instances;
+        }
+
+        @NotNull
+        public List<PooledVm> getIdleVms() {
+            return this.idleVms;
+        }
+
+        @Nullable
+        public String getNode(@NotNull String vmId) {
+            return this.nodes.get(vmId);
+        }
+    }
+}
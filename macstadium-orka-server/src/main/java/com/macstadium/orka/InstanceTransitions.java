@@ -0,0 +1,47 @@
+package com.macstadium.orka;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+import jetbrains.buildServer.clouds.InstanceStatus;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The status changes an instance may go through. An instance only moves towards being stopped: once it is
+ * scheduled to stop, a late agent registration or deployment step can no longer mark it as running, and a
+ * stopped instance stays stopped.
+ */
+final class InstanceTransitions {
+    private static final Map<InstanceStatus, Set<InstanceStatus>> ALLOWED =
+            new EnumMap<InstanceStatus, Set<InstanceStatus>>(InstanceStatus.class);
+
+    static {
+        allow(InstanceStatus.SCHEDULED_TO_START, InstanceStatus.STARTING, InstanceStatus.RUNNING,
+                InstanceStatus.SCHEDULED_TO_STOP, InstanceStatus.STOPPING, InstanceStatus.STOPPED,
+                InstanceStatus.ERROR);
+        allow(InstanceStatus.STARTING, InstanceStatus.RUNNING, InstanceStatus.SCHEDULED_TO_STOP,
+                InstanceStatus.STOPPING, InstanceStatus.STOPPED, InstanceStatus.ERROR);
+        allow(InstanceStatus.RUNNING, InstanceStatus.SCHEDULED_TO_STOP, InstanceStatus.STOPPING,
+                InstanceStatus.STOPPED, InstanceStatus.ERROR);
+        allow(InstanceStatus.SCHEDULED_TO_STOP, InstanceStatus.STOPPING, InstanceStatus.STOPPED,
+                InstanceStatus.ERROR);
+        allow(InstanceStatus.STOPPING, InstanceStatus.STOPPED, InstanceStatus.ERROR);
+        allow(InstanceStatus.ERROR, InstanceStatus.SCHEDULED_TO_STOP, InstanceStatus.STOPPING,
+                InstanceStatus.STOPPED);
+    }
+
+    private InstanceTransitions() {
+    }
+
+    private static void allow(InstanceStatus from, InstanceStatus... to) {
+        ALLOWED.put(from, Collections.unmodifiableSet(EnumSet.of(to[0], to)));
+    }
+
+    static boolean isAllowed(@NotNull InstanceStatus from, @NotNull InstanceStatus to) {
+        return ALLOWED.getOrDefault(from, Collections.emptySet()).contains(to);
+    }
+}
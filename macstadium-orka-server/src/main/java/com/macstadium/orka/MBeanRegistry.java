@@ -0,0 +1,84 @@
+package com.macstadium.orka;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import jetbrains.buildServer.log.Loggers;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Registers the MBeans of the plugin with the platform MBean server. A client created for an edited profile
+ * replaces the MBeans of the previous client, which then leaves them registered when it is disposed.
+ */
+public class MBeanRegistry {
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
+    static final String DOMAIN = "com.macstadium.orka";
+
+    private static final Map<ObjectName, Object> REGISTERED = new ConcurrentHashMap<ObjectName, Object>();
+
+    private MBeanRegistry() {
+    }
+
+    @Nullable
+    public static ObjectName getClientName(@Nullable String profileId) {
+        return getName(String.format("%s:type=CloudClient,profile=%s", DOMAIN, ObjectName.quote(
+                String.valueOf(profileId))));
+    }
+
+    @Nullable
+    public static ObjectName getImageName(@Nullable String profileId, @NotNull String imageId) {
+        return getName(String.format("%s:type=CloudImage,profile=%s,image=%s", DOMAIN,
+                ObjectName.quote(String.valueOf(profileId)), ObjectName.quote(imageId)));
+    }
+
+    private static ObjectName getName(String name) {
+        try {
+            return new ObjectName(name);
+        } catch (MalformedObjectNameException e) {
+            LOG.info(String.format("Invalid MBean name: %s", name), e);
+            return null;
+        }
+    }
+
+    public static synchronized void register(@Nullable ObjectName name, @NotNull Object mbean) {
+        if (name == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mbean, name);
+            REGISTERED.put(name, mbean);
+            LOG.debug(String.format("Registered MBean: %s", name));
+        } catch (JMException e) {
+            LOG.info(String.format("Failed to register MBean: %s", name), e);
+        }
+    }
+
+    public static synchronized void unregister(@Nullable ObjectName name, @NotNull Object mbean) {
+        if (name == null || !REGISTERED.remove(name, mbean)) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            LOG.debug(String.format("Unregistered MBean: %s", name));
+        } catch (InstanceNotFoundException e) {
+            LOG.debug(String.format("MBean already unregistered: %s", name));
+        } catch (JMException e) {
+            LOG.info(String.format("Failed to unregister MBean: %s", name), e);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.macstadium.orka;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.text.StringUtil;
+import com.macstadium.orka.client.NodeResponse;
+import com.macstadium.orka.client.OrkaClient;
+import com.macstadium.orka.client.OrkaNode;
+import com.macstadium.orka.client.OrkaVMConfig;
+import com.macstadium.orka.client.VMConfigResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import jetbrains.buildServer.log.Loggers;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Chooses the Orka node for new deployments. Node data is cached and updated optimistically after
+ * each placement, so that concurrent deployments do not all land on the node that looked emptiest.
+ */
+public class NodePlacement {
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
+    private static final long NODES_TTL = TimeUnit.SECONDS.toMillis(30);
+    private static final String READY_PHASE = "READY";
+
+    private final OrkaClient orkaClient;
+    private final String namespace;
+    private final String vmConfig;
+    private final PlacementStrategy strategy;
+    @Nullable
+    private final String targetNode;
+    private final LongSupplier clock;
+
+    private List<OrkaNode> nodes = Collections.emptyList();
+    private long nodesLoadedAt;
+    private boolean loaded;
+    private boolean refreshing;
+    private int vmCpu;
+    private final Map<String, Integer> reservedCpu = new HashMap<String, Integer>();
+    private final Map<String, String> instanceNodes = new ConcurrentHashMap<String, String>();
+
+    public NodePlacement(@NotNull OrkaClient orkaClient, @NotNull String namespace, @NotNull String vmConfig,
+            @NotNull PlacementStrategy strategy, @Nullable String targetNode) {
+        this(orkaClient, namespace, vmConfig, strategy, targetNode, System::currentTimeMillis);
+    }
+
+    NodePlacement(@NotNull OrkaClient orkaClient, @NotNull String namespace, @NotNull String vmConfig,
+            @NotNull PlacementStrategy strategy, @Nullable String targetNode, LongSupplier clock) {
+        this.orkaClient = orkaClient;
+        this.namespace = namespace;
+        this.vmConfig = vmConfig;
+        this.strategy = strategy;
+        this.targetNode = StringUtil.isEmpty(targetNode) ? null : targetNode.trim();
+        this.clock = clock;
+    }
+
+    public boolean isEnabled() {
+        return this.targetNode != null || this.strategy != PlacementStrategy.NONE;
+    }
+
+    @Nullable
+    public String selectNode() {
+        return this.selectNode(-1);
+    }
+
+    /**
+     * Selects the node for a VM with the CPU, or with the CPU of the VM config of the profile if it is negative.
+     */
+    @Nullable
+    public String selectNode(int cpu) {
+        if (this.targetNode != null) {
+            return this.targetNode;
+        }
+        if (this.strategy == PlacementStrategy.NONE || !this.refreshIfNeeded()) {
+            return null;
+        }
+        synchronized (this) {
+            return this.pickNode(cpu);
+        }
+    }
+
+    /**
+     * Selects nodes for a batch of deployments with a single look up of the node capacity, one for each CPU.
+     */
+    @NotNull
+    public List<String> selectNodes(@NotNull List<Integer> cpus) {
+        List<String> result = new ArrayList<String>(cpus.size());
+        if (this.targetNode != null || this.strategy == PlacementStrategy.NONE || !this.refreshIfNeeded()) {
+            cpus.forEach(cpu -> result.add(this.targetNode));
+            return result;
+        }
+        synchronized (this) {
+            cpus.forEach(cpu -> result.add(this.pickNode(cpu)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the most free CPU of a node new VMs may be placed on, or -1 if the nodes could not be read.
+     */
+    public int getMaxAvailableCpu() {
+        if (!this.refreshIfNeeded()) {
+            return -1;
+        }
+        synchronized (this) {
+            return this.nodes.stream().filter(n -> READY_PHASE.equalsIgnoreCase(n.getPhase())
+                    && (this.targetNode == null || this.targetNode.equals(n.getName())))
+                    .mapToInt(this::getAvailableCpu).max().orElse(0);
+        }
+    }
+
+    private String pickNode(int cpu) {
+        int required = this.getCpu(cpu);
+        Optional<OrkaNode> node = this.nodes.stream()
+                .filter(n -> READY_PHASE.equalsIgnoreCase(n.getPhase()) && this.getAvailableCpu(n) >= required)
+                .min(this.getComparator());
+        if (!node.isPresent()) {
+            LOG.debug(String.format("No node with %s free CPU found, leaving placement to Orka", required));
+            return null;
+        }
+
+        String name = node.get().getName();
+        this.reservedCpu.merge(name, required, Integer::sum);
+        LOG.debug(String.format("Placing vm %s on node %s using strategy %s", this.vmConfig, name, this.strategy));
+        return name;
+    }
+
+    public void placed(@NotNull String instanceId, @Nullable String node) {
+        if (node != null) {
+            this.instanceNodes.put(instanceId, node);
+        }
+    }
+
+    /**
+     * Gives back the CPU reserved on the node for a VM that could not be deployed.
+     */
+    public synchronized void deployFailed(@Nullable String node, int cpu) {
+        if (node != null && this.targetNode == null) {
+            int reserved = this.getCpu(cpu);
+            this.reservedCpu.computeIfPresent(node, (k, v) -> v - reserved > 0 ? v - reserved : null);
+        }
+    }
+
+    private int getCpu(int cpu) {
+        return cpu >= 0 ? cpu : this.vmCpu;
+    }
+
+    public void release(@NotNull String instanceId) {
+        this.instanceNodes.remove(instanceId);
+    }
+
+    @Nullable
+    public String getNode(@NotNull String instanceId) {
+        return this.instanceNodes.get(instanceId);
+    }
+
+    private Comparator<OrkaNode> getComparator() {
+        Comparator<OrkaNode> mostAvailable = Comparator.comparingInt((OrkaNode n) -> this.getAvailableCpu(n))
+                .reversed();
+        switch (this.strategy) {
+            case PACK:
+                return Comparator.comparingInt((OrkaNode n) -> this.getAvailableCpu(n));
+            case SPREAD:
+                return Comparator.comparingLong((OrkaNode n) -> this.getPlacedCount(n)).thenComparing(mostAvailable);
+            case LEAST_LOADED:
+            default:
+                return mostAvailable;
+        }
+    }
+
+    private int getAvailableCpu(OrkaNode node) {
+        return node.getAvailableCpu() - this.reservedCpu.getOrDefault(node.getName(), 0);
+    }
+
+    private long getPlacedCount(OrkaNode node) {
+        return this.instanceNodes.values().stream().filter(n -> n.equals(node.getName())).count();
+    }
+
+    /**
+     * Reads the nodes without holding the lock, so that placements keep using the current snapshot while the
+     * Orka API responds. Only one caller refreshes a loaded snapshot at a time.
+     */
+    private boolean refreshIfNeeded() {
+        long now = this.clock.getAsLong();
+        synchronized (this) {
+            if (this.loaded && (this.refreshing || now - this.nodesLoadedAt < NODES_TTL)) {
+                return true;
+            }
+            this.refreshing = true;
+        }
+        try {
+            NodeResponse response = this.orkaClient.getNodes(this.namespace);
+            if (!response.isSuccessful()) {
+                LOG.debug(String.format("Failed to get nodes: %s", response.getMessage()));
+            } else {
+                int cpu = this.getVmCpu();
+                synchronized (this) {
+                    this.nodes = response.getNodes();
+                    if (cpu >= 0) {
+                        this.vmCpu = cpu;
+                    }
+                    this.reservedCpu.clear();
+                    this.nodesLoadedAt = now;
+                    this.loaded = true;
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("Failed to get nodes", e);
+        } finally {
+            synchronized (this) {
+                this.refreshing = false;
+            }
+        }
+        synchronized (this) {
+            return this.loaded;
+        }
+    }
+
+    /**
+     * Returns the CPU of the configured VM config, or -1 if the configs could not be read.
+     */
+    private int getVmCpu() throws IOException {
+        VMConfigResponse response = this.orkaClient.getVMConfigs();
+        if (!response.isSuccessful()) {
+            LOG.debug(String.format("Failed to get VM configs: %s", response.getMessage()));
+            return -1;
+        }
+        return response.getConfigs().stream().filter(c -> this.vmConfig.equals(c.getName())).findFirst()
+                .map(OrkaVMConfig::getCPU).orElse(0);
+    }
+}
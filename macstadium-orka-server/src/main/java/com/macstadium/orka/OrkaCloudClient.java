@@ -5,22 +5,43 @@ import com.intellij.openapi.util.text.StringUtil;
 import com.macstadium.orka.client.DeletionResponse;
 import com.macstadium.orka.client.DeploymentResponse;
 import com.macstadium.orka.client.OrkaClient;
+import com.macstadium.orka.client.VMActionResponse;
 import com.macstadium.orka.client.VMResponse;
+import com.macstadium.orka.client.VMsResponse;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
+import javax.management.ObjectName;
+
 import jetbrains.buildServer.Used;
 import jetbrains.buildServer.clouds.CloudClientEx;
 import jetbrains.buildServer.clouds.CloudClientParameters;
@@ -35,13 +56,34 @@ import jetbrains.buildServer.clouds.QuotaException;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.AgentDescription;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.agentPools.AgentPoolManager;
 import jetbrains.buildServer.serverSide.executors.ExecutorServices;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.util.EventDispatcher;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public class OrkaCloudClient extends BuildServerAdapter implements CloudClientEx {
     private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
+    private static final long FORECAST_INTERVAL = TimeUnit.SECONDS.toMillis(15);
+    private static final long FORECAST_DEBOUNCE = TimeUnit.SECONDS.toMillis(1);
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 3;
+    private static final long CIRCUIT_OPEN_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    private static final long SLOW_CALL_THRESHOLD = TimeUnit.SECONDS.toMillis(30);
+    private static final long DELETION_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+    private static final long DISPOSE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    private static final int DISPOSE_THREADS = 8;
+    private static final String WORKER_THREADS_PROPERTY = "teamcity.orka.worker.threads";
+    private static final long CLEANUP_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+    public static final int SSH_RETRIES = 12;
+    public static final int SSH_RETRY_INTERVAL = 10;
 
     @NotNull
     private final List<OrkaCloudImage> images = new ArrayList<OrkaCloudImage>();
@@ -49,22 +91,83 @@ public class OrkaCloudClient extends BuildServerAdapter implements CloudClientEx
     private final String agentDirectory;
     private OrkaClient orkaClient;
     private final ScheduledExecutorService scheduledExecutorService;
+    private final ExecutorService workerExecutor;
     private ScheduledFuture<?> removedFailedInstancesScheduledTask;
+    private final DeletionQueue deletionQueue;
+    private ScheduledFuture<?> deletionScheduledTask;
     private CloudErrorInfo errorInfo;
     private final RemoteAgent remoteAgent;
     private final SSHUtil sshUtil;
-    private Map<String, String> nodeMappings;
+    private final DemandForecaster demandForecaster;
+    private final VMConfigSelector vmConfigSelector;
+    private final ReusePolicy reusePolicy;
+    private final OrkaClusters clusters;
+    private final Tracer tracer = Tracer.getInstance();
+    private ScheduledFuture<?> evictIdleVmsScheduledTask;
+    private ScheduledFuture<?> healthCheckScheduledTask;
+    private final RecyclePolicy recyclePolicy;
+    private final RecycleInstancesTask recycleInstancesTask;
+    private ScheduledFuture<?> recycleInstancesScheduledTask;
+    private final long healthCheckInterval;
+    private final long registrationTimeout;
+    private final AgentRegistrations registrations = new AgentRegistrations();
+    private final AtomicBoolean forecastScheduled = new AtomicBoolean();
+    private final Map<Thread, OrkaCloudInstance> workers = new ConcurrentHashMap<Thread, OrkaCloudInstance>();
+    private final Set<Future<?>> workerTasks = ConcurrentHashMap.newKeySet();
+    private volatile boolean disposed;
+    @Nullable
+    private final InstanceRegistry registry;
+    @Nullable
+    private final String endpoint;
+    private final String handoffFingerprint;
+    private ScheduledFuture<?> forecastScheduledTask;
+    private volatile ScheduledFuture<?> debouncedForecastTask;
+    private volatile long cleanupInterval = CLEANUP_INTERVAL;
+    private volatile int sshRetries = SSH_RETRIES;
+    private volatile int sshRetryInterval = SSH_RETRY_INTERVAL;
+    private final Map<ObjectName, Object> mbeans = new HashMap<ObjectName, Object>();
+    @Nullable
+    private EventDispatcher<BuildServerListener> serverEvents;
+    @Nullable
+    private final AgentPoolManager agentPoolManager;
+    @Nullable
+    private final String profileId;
+    @Nullable
+    private final String projectId;
 
-    public OrkaCloudClient(@NotNull final CloudClientParameters params, ExecutorServices executorServices) {
+    public OrkaCloudClient(@NotNull final CloudClientParameters params, @NotNull final String projectId,
+            ExecutorServices executorServices, @NotNull final EventDispatcher<BuildServerListener> serverEvents,
+            @NotNull final AgentPoolManager agentPoolManager, @Nullable final File deletionQueueFile) {
         this.initializeOrkaClient(params);
         this.agentDirectory = params.getParameter(OrkaConstants.AGENT_DIRECTORY);
         this.images.add(this.createImage(params));
+        this.deletionQueue = this.createDeletionQueue(deletionQueueFile);
         this.scheduledExecutorService = executorServices.getNormalExecutorService();
-        this.remoteAgent = new RemoteAgent();
+        this.workerExecutor = createWorkerExecutor(TeamCityProperties.getInteger(WORKER_THREADS_PROPERTY, 16));
+        this.remoteAgent = new RemoteAgent(this.workerExecutor);
         this.sshUtil = new SSHUtil();
-        this.nodeMappings = this.getNodeMappings(params.getParameter(OrkaConstants.NODE_MAPPINGS));
+        this.agentPoolManager = agentPoolManager;
+        this.demandForecaster = new DemandForecaster(this, agentPoolManager, this.getPrewarmInstances(params));
+        this.vmConfigSelector = this.createVMConfigSelector(params);
+        this.reusePolicy = ReusePolicy.fromParameters(params);
+        this.clusters = this.createClusters(params);
+        this.healthCheckInterval = this.getHealthCheckInterval(params);
+        this.recyclePolicy = RecyclePolicy.fromParameters(params);
+        this.recycleInstancesTask = new RecycleInstancesTask(this, this.recyclePolicy);
+        this.registrationTimeout = this.getRegistrationTimeout(params);
+        this.registry = InstanceRegistry.getInstance();
+        this.endpoint = params.getParameter(OrkaConstants.ORKA_ENDPOINT);
+        this.handoffFingerprint = getHandoffFingerprint(params);
+        this.profileId = params.getProfileId();
+        this.projectId = projectId;
 
+        this.adoptHandoffs();
         this.initializeBackgroundTasks();
+        this.registerClusterQuota(params);
+        this.images.forEach(image -> PoolChangeFeed.getInstance().register(image, projectId));
+        this.registerMBeans(params.getProfileId());
+        this.serverEvents = serverEvents;
+        serverEvents.addListener(this);
     }
 
     @Used("Tests")
@@ -72,14 +175,167 @@ public class OrkaCloudClient extends BuildServerAdapter implements CloudClientEx
             ScheduledExecutorService scheduledExecutorService, RemoteAgent remoteAgent, SSHUtil sshUtil) {
         this.agentDirectory = params.getParameter(OrkaConstants.AGENT_DIRECTORY);
         this.images.add(this.createImage(params));
+        this.deletionQueue = this.createDeletionQueue(null);
         this.scheduledExecutorService = scheduledExecutorService;
+        this.workerExecutor = scheduledExecutorService;
         this.orkaClient = client;
         this.remoteAgent = remoteAgent;
         this.sshUtil = sshUtil;
-        this.nodeMappings = this.getNodeMappings(params.getParameter(OrkaConstants.NODE_MAPPINGS));
+        this.agentPoolManager = null;
+        this.demandForecaster = new DemandForecaster(this, null, this.getPrewarmInstances(params));
+        this.vmConfigSelector = this.createVMConfigSelector(params);
+        this.reusePolicy = ReusePolicy.fromParameters(params);
+        this.clusters = this.createClusters(params);
+        this.healthCheckInterval = this.getHealthCheckInterval(params);
+        this.recyclePolicy = RecyclePolicy.fromParameters(params);
+        this.recycleInstancesTask = new RecycleInstancesTask(this, this.recyclePolicy);
+        this.registrationTimeout = this.getRegistrationTimeout(params);
+        this.registry = null;
+        this.endpoint = null;
+        this.handoffFingerprint = getHandoffFingerprint(params);
+        this.profileId = params.getProfileId();
+        this.projectId = null;
+    }
+
+    /**
+     * Returns a digest of the settings an instance or idle VM depends on. The instances of a previous client are
+     * adopted only when these are unchanged. The settings include credentials, so only their digest is kept.
+     */
+    static String getHandoffFingerprint(CloudClientParameters params) {
+        return OrkaResourceCache.hash(String.join("\n", Objects.toString(params.getProfileId()),
+                Objects.toString(params.getParameter(OrkaConstants.TOKEN)),
+                Objects.toString(params.getParameter(OrkaConstants.VM_USER)),
+                Objects.toString(params.getParameter(OrkaConstants.VM_PASSWORD)),
+                Objects.toString(params.getParameter(OrkaConstants.AGENT_DIRECTORY)),
+                Objects.toString(params.getParameter(OrkaConstants.NODE_MAPPINGS)),
+                Objects.toString(params.getParameter(OrkaConstants.CLUSTERS)),
+                Objects.toString(params.getParameter(OrkaConstants.CLUSTER_TOKENS)),
+                Objects.toString(params.getParameter(OrkaConstants.REUSE_PARK_MODE))));
+    }
+
+    private void adoptHandoffs() {
+        if (this.registry == null) {
+            return;
+        }
+        for (OrkaCloudImage image : this.images) {
+            InstanceRegistry.Handoff handoff = this.registry.adopt(
+                    InstanceRegistry.getKey(this.endpoint, image.getNamespace(), image.getName()),
+                    this.handoffFingerprint);
+            if (handoff == null) {
+                continue;
+            }
+            for (OrkaCloudInstance previous : handoff.getInstances()) {
+                OrkaCloudInstance instance = image.adoptInstance(previous);
+                this.clusters.forInstance(instance.getInstanceId()).getNodePlacement()
+                        .placed(instance.getInstanceId(), instance.getNode());
+            }
+            for (PooledVm vm : handoff.getIdleVms()) {
+                this.clusters.forInstance(vm.getId()).getNodePlacement().placed(vm.getId(),
+                        handoff.getNode(vm.getId()));
+                if (this.reusePolicy.isEnabled()) {
+                    image.offerIdleVm(vm);
+                } else {
+                    this.deleteIdleVM(image, vm);
+                }
+            }
+            LOG.info(String.format("Adopted %s running instances and %s idle VMs of image: %s from the previous client",
+                    handoff.getInstances().size(), handoff.getIdleVms().size(), image.getName()));
+        }
+    }
+
+    private DeletionQueue createDeletionQueue(@Nullable File file) {
+        DeletionQueue queue = file != null ? DeletionQueue.open(file)
+                : new DeletionQueue(null, System::currentTimeMillis, new Random());
+        this.images.forEach(image -> image.setDeletionQueue(queue));
+        return queue;
     }
 
-    private Map<String, String> getNodeMappings(String mappingsData) {
+    private int getPrewarmInstances(CloudClientParameters params) {
+        String prewarmInstances = params.getParameter(OrkaConstants.PREWARM_INSTANCES);
+        return StringUtil.isEmpty(prewarmInstances) ? 0 : Integer.parseInt(prewarmInstances.trim());
+    }
+
+    private VMConfigSelector createVMConfigSelector(CloudClientParameters params) {
+        return new VMConfigSelector(params.getParameter(OrkaConstants.VM_NAME),
+                VMConfigSelector.parse(params.getParameter(OrkaConstants.VM_CONFIGS)));
+    }
+
+    private long getHealthCheckInterval(CloudClientParameters params) {
+        String interval = params.getParameter(OrkaConstants.HEALTH_CHECK_INTERVAL);
+        return TimeUnit.SECONDS.toMillis(StringUtil.isEmpty(interval) ? OrkaConstants.DEFAULT_HEALTH_CHECK_INTERVAL
+                : Integer.parseInt(interval.trim()));
+    }
+
+    private long getRegistrationTimeout(CloudClientParameters params) {
+        String timeout = params.getParameter(OrkaConstants.AGENT_REGISTRATION_TIMEOUT);
+        return TimeUnit.MINUTES.toMillis(StringUtil.isEmpty(timeout)
+                ? OrkaConstants.DEFAULT_AGENT_REGISTRATION_TIMEOUT : Integer.parseInt(timeout.trim()));
+    }
+
+    /**
+     * Registers the images with the quota of each cluster endpoint, counting only the VMs on that cluster. The
+     * capacity of an endpoint is set by the profiles that use it as their primary endpoint.
+     */
+    private void registerClusterQuota(CloudClientParameters params) {
+        String capacity = params.getParameter(OrkaConstants.CLUSTER_CAPACITY);
+        String weight = params.getParameter(OrkaConstants.CLUSTER_WEIGHT);
+        Map<String, String> endpoints = new HashMap<String, String>();
+        endpoints.put(OrkaConstants.PRIMARY_CLUSTER, params.getParameter(OrkaConstants.ORKA_ENDPOINT));
+        OrkaClusters.parse(params.getParameter(OrkaConstants.CLUSTERS), params.getParameter(
+                OrkaConstants.CLUSTER_TOKENS)).forEach(s -> endpoints.put(s.getName(), s.getEndpoint()));
+        this.images.forEach(image -> this.clusters.getAll().forEach(cluster -> {
+            ClusterQuota.Member quota = ClusterQuota.register(endpoints.get(cluster.getName()),
+                    image.getNamespace() + "/" + image.getName(),
+                    StringUtil.isEmpty(capacity) || !OrkaConstants.PRIMARY_CLUSTER.equals(cluster.getName()) ? 0
+                            : Integer.parseInt(capacity.trim()),
+                    StringUtil.isEmpty(weight) ? 1 : Integer.parseInt(weight.trim()),
+                    () -> image.getUsedSlots(cluster::owns));
+            quota.setReclaimer(() -> this.reclaimIdleVM(image, cluster));
+            image.setClusterQuota(cluster.getName(), quota);
+        }));
+    }
+
+    private OrkaClusters createClusters(CloudClientParameters params) {
+        List<OrkaCluster> result = new ArrayList<OrkaCluster>();
+        result.add(this.createCluster(params, OrkaConstants.PRIMARY_CLUSTER, true, this.orkaClient,
+                getNodeMappings(params.getParameter(OrkaConstants.NODE_MAPPINGS)),
+                this.getCapacity(params.getParameter(OrkaConstants.PRIMARY_CLUSTER_CAPACITY)),
+                params.getParameter(OrkaConstants.PLACEMENT_NODE)));
+        for (OrkaClusters.Settings settings : OrkaClusters.parse(params.getParameter(OrkaConstants.CLUSTERS),
+                params.getParameter(OrkaConstants.CLUSTER_TOKENS))) {
+            try {
+                result.add(this.createCluster(params, settings.getName(), false,
+                        new OrkaClient(settings.getEndpoint(), settings.getToken()), settings.getNodeMappings(),
+                        settings.getCapacity(), null));
+            } catch (IOException e) {
+                LOG.info(String.format("Cannot initialize Orka cluster: %s", settings.getName()), e);
+            }
+        }
+        return new OrkaClusters(result);
+    }
+
+    private OrkaCluster createCluster(CloudClientParameters params, String name, boolean primary,
+            OrkaClient client, Map<String, String> nodeMappings, int capacity, @Nullable String targetNode) {
+        OrkaCloudImage image = this.images.get(0);
+        NodePlacement nodePlacement = new NodePlacement(client, image.getNamespace(), image.getName(),
+                PlacementStrategy.fromString(params.getParameter(OrkaConstants.PLACEMENT_STRATEGY)), targetNode);
+        String waveSize = params.getParameter(OrkaConstants.DEPLOY_WAVE_SIZE);
+        String waveDelay = params.getParameter(OrkaConstants.DEPLOY_WAVE_DELAY);
+        DeployCoordinator deployCoordinator = new DeployCoordinator(this.scheduledExecutorService, nodePlacement,
+                StringUtil.isEmpty(waveSize) ? 0 : Integer.parseInt(waveSize.trim()),
+                TimeUnit.SECONDS.toMillis(StringUtil.isEmpty(waveDelay) ? OrkaConstants.DEFAULT_DEPLOY_WAVE_DELAY
+                        : Integer.parseInt(waveDelay.trim())));
+        CircuitBreaker circuitBreaker = new CircuitBreaker(CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_INTERVAL,
+                System::currentTimeMillis);
+        return new OrkaCluster(name, primary, client, nodeMappings, capacity, SLOW_CALL_THRESHOLD, circuitBreaker,
+                nodePlacement, deployCoordinator);
+    }
+
+    private int getCapacity(String capacity) {
+        return StringUtil.isEmpty(capacity) ? OrkaCluster.UNLIMITED : Integer.parseInt(capacity.trim());
+    }
+
+    public static Map<String, String> getNodeMappings(String mappingsData) {
         if (StringUtil.isNotEmpty(mappingsData)) {
             String[] mappings = mappingsData.split("\\r?\\n|\\r");
             return Arrays.stream(mappings).map(m -> m.split(";"))
@@ -102,11 +358,30 @@ public class OrkaCloudClient extends BuildServerAdapter implements CloudClientEx
     }
 
     private void initializeBackgroundTasks() {
-        RemoveFailedInstancesTask removeFailedInstancesTask = new RemoveFailedInstancesTask(this);
         int initialDelay = 60 * 1000;
-        int delay = 5 * initialDelay;
-        this.removedFailedInstancesScheduledTask = this.scheduledExecutorService
-                .scheduleWithFixedDelay(removeFailedInstancesTask, initialDelay, delay, TimeUnit.MILLISECONDS);
+        this.removedFailedInstancesScheduledTask = this.scheduledExecutorService.scheduleWithFixedDelay(
+                new RemoveFailedInstancesTask(this), initialDelay, this.cleanupInterval, TimeUnit.MILLISECONDS);
+        this.deletionScheduledTask = this.scheduledExecutorService.scheduleWithFixedDelay(this::processDeletions,
+                DELETION_INTERVAL, DELETION_INTERVAL, TimeUnit.MILLISECONDS);
+
+        if (this.demandForecaster.isEnabled()) {
+            this.forecastScheduledTask = this.scheduledExecutorService.scheduleWithFixedDelay(
+                    this.demandForecaster::evaluate, FORECAST_INTERVAL, FORECAST_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        if (this.healthCheckInterval > 0) {
+            this.healthCheckScheduledTask = this.scheduledExecutorService.scheduleWithFixedDelay(
+                    new HealthCheckTask(this), this.healthCheckInterval, this.healthCheckInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+        if (this.recyclePolicy.isEnabled()) {
+            this.recycleInstancesScheduledTask = this.scheduledExecutorService.scheduleWithFixedDelay(
+                    this.recycleInstancesTask, initialDelay, initialDelay, TimeUnit.MILLISECONDS);
+        }
+        if (this.reusePolicy.isEnabled()) {
+            this.evictIdleVmsScheduledTask = this.scheduledExecutorService.scheduleWithFixedDelay(
+                    () -> this.evictIdleVMs(System.currentTimeMillis()), initialDelay, initialDelay,
+                    TimeUnit.MILLISECONDS);
+        }
     }
 
     private OrkaCloudImage createImage(CloudClientParameters params) {
@@ -117,7 +392,7 @@ public class OrkaCloudClient extends BuildServerAdapter implements CloudClientEx
         String agentPoolId = params.getParameter(CloudImageParameters.AGENT_POOL_ID_FIELD);
         String instanceLimit = params.getParameter(OrkaConstants.INSTANCE_LIMIT);
         int limit = StringUtil.isEmpty(instanceLimit) ? OrkaConstants.UNLIMITED_INSTANCES
-                : Integer.parseInt(instanceLimit);
+                : Integer.parseInt(instanceLimit.trim());
 
         LOG.debug(String.format("OrkaCloudClient createImage with vm: %s, user: %s, poolId: %s, instanceLimit: %s", vm,
                 vmUser, agentPoolId, instanceLimit));
@@ -171,9 +446,9 @@ public class OrkaCloudClient extends BuildServerAdapter implements CloudClientEx
 
                 LOG.debug(String.format("createInstanceFromExistingAgent instance found %s.", vmResponse));
                 OrkaCloudInstance cloudInstance = image.startNewInstance(instanceId);
-                cloudInstance.setStatus(InstanceStatus.RUNNING);
-                cloudInstance.setHost(this.getRealHost(vmResponse.getIP()));
+                cloudInstance.setHost(this.clusters.forInstance(instanceId).getRealHost(vmResponse.getIP()));
                 cloudInstance.setPort(vmResponse.getSSH());
+                cloudInstance.setStatus(InstanceStatus.RUNNING);
                 return cloudInstance;
             }
 
@@ -195,7 +470,9 @@ public class OrkaCloudClient extends BuildServerAdapter implements CloudClientEx
     }
 
     public boolean canStartNewInstance(@NotNull final CloudImage image) {
-        return ((OrkaCloudImage) image).canStartNewInstance();
+        OrkaCloudImage orkaImage = (OrkaCloudImage) image;
+        return orkaImage.canStartNewInstance()
+                && (!orkaImage.getIdleVms().isEmpty() || this.clusters.hasAvailableCluster(this.images));
     }
 
     @Nullable
@@ -206,49 +483,388 @@ public class OrkaCloudClient extends BuildServerAdapter implements CloudClientEx
     @NotNull
     public CloudInstance startNewInstance(@NotNull final CloudImage image, @NotNull final CloudInstanceUserData data)
             throws QuotaException {
-        String instanceId = UUID.randomUUID().toString();
-        OrkaCloudImage cloudImage = (OrkaCloudImage) image;
-        OrkaCloudInstance instance = cloudImage.startNewInstance(instanceId);
-        LOG.debug(String.format("startNewInstance with temp id: %s", instanceId));
+        return this.startInstance((OrkaCloudImage) image, data);
+    }
+
+    /**
+     * Starts an instance TeamCity did not ask for, to serve forecast demand or replace a recycled instance. It has
+     * no user data, so its agent does not carry the starting instance id TeamCity sets for the instances it
+     * starts. TeamCity matches the agent to the instance through {@link #findInstanceByAgent}, using the instance
+     * and image ids written to the metadata file, and authorizes it as an agent of this cloud profile.
+     */
+    @NotNull
+    OrkaCloudInstance preProvisionInstance(@NotNull final OrkaCloudImage image) throws QuotaException {
+        return this.startInstance(image, null);
+    }
+
+    private OrkaCloudInstance startInstance(@NotNull final OrkaCloudImage cloudImage,
+            @Nullable final CloudInstanceUserData data) throws QuotaException {
+        VMConfigSelector.Demand demand = this.vmConfigSelector.isEnabled() ? this.vmConfigSelector.claim() : null;
+        PooledVm idleVm = this.takeIdleVM(cloudImage, demand);
+        if (idleVm != null) {
+            OrkaCloudInstance instance = cloudImage.startReusedInstance(idleVm);
+            instance.setNode(this.clusters.forInstance(idleVm.getId()).getNodePlacement().getNode(idleVm.getId()));
+            Tracer.Trace trace = this.tracer.start(idleVm.getId(), this.profileId, this.projectId);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(String.format("startNewInstance reusing vm: %s", idleVm));
+            }
+
+            this.submitWorker(instance, () -> this.reuseVM(cloudImage, instance, data, trace));
+
+            return instance;
+        }
+
+        OrkaCluster cluster;
+        OrkaCloudInstance instance;
+        try {
+            cluster = this.selectCluster(cloudImage);
+            instance = cloudImage.startNewInstance(cluster.getInstanceId(UUID.randomUUID().toString()),
+                    cluster.getName());
+        } catch (QuotaException e) {
+            if (demand != null) {
+                this.vmConfigSelector.unclaim(demand);
+            }
+            throw e;
+        }
+        String instanceId = instance.getInstanceId();
+        String vmConfig = this.vmConfigSelector.select(demand, cluster);
+        instance.setVmConfig(vmConfig);
+        Tracer.Trace trace = this.tracer.start(instanceId, this.profileId, this.projectId);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("startNewInstance with temp id: %s on cluster: %s with vm config: %s", instanceId,
+                    cluster, vmConfig));
+        }
 
-        this.scheduledExecutorService.submit(() -> this.setUpVM(cloudImage, instance, data));
+        int cpu = this.vmConfigSelector.getCpu(cluster, vmConfig);
+        cluster.getDeploying().incrementAndGet();
+        cluster.getDeployCoordinator().submit(cloudImage, cpu, node -> {
+            CompletableFuture<Void> registration = new CompletableFuture<Void>();
+            this.submitWorker(instance, () -> {
+                CompletableFuture<Void> agent = null;
+                try {
+                    agent = this.setUpVM(cloudImage, instance, data, trace, cluster, node);
+                } finally {
+                    if (agent != null) {
+                        agent.whenComplete((result, error) -> registration.complete(null));
+                    } else {
+                        registration.complete(null);
+                    }
+                }
+            }, () -> {
+                LOG.debug(String.format("Deployment of instance %s aborted, the client is disposed", instanceId));
+                cluster.getDeploying().decrementAndGet();
+                cluster.getNodePlacement().deployFailed(node, cpu);
+                this.tracer.end(trace);
+                cloudImage.terminateInstance(instanceId);
+                registration.complete(null);
+            });
+            return registration;
+        });
 
         return instance;
     }
 
-    private void setUpVM(OrkaCloudImage image, OrkaCloudInstance instance, @NotNull final CloudInstanceUserData data) {
-        try {
-            LOG.debug(
-                    String.format("setUpVM deploying vm: %s, in namespace: %s", image.getName(), image.getNamespace()));
-            DeploymentResponse response = this.deployVM(image.getName(), image.getNamespace());
-            if (!response.isSuccessful()) {
+    @NotNull
+    private OrkaCluster selectCluster(OrkaCloudImage image) throws QuotaException {
+        Set<OrkaCluster> full = this.clusters.getAll().stream().filter(c -> !image.canAcquire(c.getName()))
+                .collect(Collectors.toSet());
+        OrkaCluster available = this.clusters.select(this.images, full);
+        // reserving on a full cluster records the demand, so that other profiles give back their idle VMs
+        OrkaCluster cluster = available != null || full.isEmpty() ? available
+                : this.clusters.select(this.images, Collections.emptySet());
+        if (cluster == null) {
+            throw new QuotaException(String.format("No Orka cluster is available for image: %s", image.getName()));
+        }
+        return cluster;
+    }
+
+    @Nullable
+    private CompletableFuture<Void> setUpVM(OrkaCloudImage image, OrkaCloudInstance instance,
+            @Nullable final CloudInstanceUserData data, @Nullable final Tracer.Trace trace, OrkaCluster cluster,
+            @Nullable final String node) {
+        try (Tracer.Scope scope = this.activate(trace); Tracer.Span span = Tracer.span("setUpVM")) {
+            try {
+                return this.deployAndStartAgent(image, instance, data, trace, span, cluster, node);
+            } catch (IOException | InterruptedException e) {
+                span.fail(e);
+                LOG.debug("setUpVM error", e);
+                instance.setStatus(InstanceStatus.ERROR);
+                instance.setErrorInfo(new CloudErrorInfo(e.getMessage(), e.toString(), e));
+                this.tracer.end(trace);
+                this.terminateNonInitilizedInstance(instance);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Returns the future completed once the agent of the deployed instance registers or fails to, or null if no
+     * agent was started.
+     */
+    @Nullable
+    private CompletableFuture<Void> deployAndStartAgent(OrkaCloudImage image, OrkaCloudInstance instance,
+            @Nullable final CloudInstanceUserData data, @Nullable final Tracer.Trace trace, Tracer.Span span,
+            OrkaCluster cluster, @Nullable String node) throws IOException, InterruptedException {
+        Set<OrkaCluster> tried = new HashSet<OrkaCluster>();
+        String vmConfig = instance.getVmConfig() != null ? instance.getVmConfig() : image.getName();
+        DeploymentResponse response;
+        while (true) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(String.format("setUpVM deploying vm: %s, in namespace: %s, on cluster: %s",
+                        vmConfig, image.getNamespace(), cluster));
+            }
+            tried.add(cluster);
+            OrkaCluster failover;
+            try (Tracer.Span deploySpan = Tracer.span("deployVM")) {
+                deploySpan.message("vm: %s, namespace: %s, cluster: %s, node: %s", vmConfig,
+                        image.getNamespace(), cluster, node);
+                response = this.deployVM(cluster, vmConfig, image.getNamespace(), node);
+                if (response.isSuccessful()) {
+                    image.getDeployQuarantine().succeeded();
+                    break;
+                }
                 LOG.debug(String.format("setUpVM deployment errors: %s", response.getMessage()));
-                image.terminateInstance(instance.getInstanceId());
-                return;
+                span.message("deployment failed: %s", response.getMessage());
+                cluster.getNodePlacement().deployFailed(node, this.vmConfigSelector.getCpu(cluster, vmConfig));
+                failover = this.clusters.select(this.images, tried);
+                if (failover == null) {
+                    image.getDeployQuarantine().failed(response.getMessage());
+                    this.tracer.end(trace);
+                    image.terminateInstance(instance.getInstanceId());
+                    return null;
+                }
+            } catch (IOException e) {
+                cluster.getNodePlacement().deployFailed(node, this.vmConfigSelector.getCpu(cluster, vmConfig));
+                failover = this.clusters.select(this.images, tried);
+                if (failover == null) {
+                    image.getDeployQuarantine().failed(e.getMessage());
+                    throw e;
+                }
+                LOG.debug(String.format("setUpVM deployment error on cluster: %s", cluster), e);
+                span.message("deployment failed on cluster %s: %s", cluster, e.getMessage());
+            } finally {
+                cluster.getDeploying().decrementAndGet();
             }
+            failover.getDeploying().incrementAndGet();
+            cluster = failover;
+            node = null;
+        }
 
-            String instanceId = response.getName();
-            String host = this.getRealHost(response.getIP());
-            int sshPort = response.getSSH();
+        String instanceId = cluster.getInstanceId(response.getName());
+        String host = cluster.getRealHost(response.getIP());
+        int sshPort = response.getSSH();
+        this.tracer.alias(trace, instanceId);
 
+        if (LOG.isDebugEnabled()) {
             LOG.debug(String.format("setUpVM instanceId: %s, host: %s, port: %s", instanceId, host, sshPort));
+        }
+
+        instance.setInstanceId(instanceId);
+        instance.setHost(host);
+        instance.setPort(sshPort);
+        instance.setNode(node);
+        cluster.getNodePlacement().placed(instanceId, node);
+        if (this.disposed
+                || !instance.compareAndSetStatus(InstanceStatus.SCHEDULED_TO_START, InstanceStatus.STARTING)) {
+            LOG.info(String.format("Instance %s was stopped while its VM was deployed, deleting vm", instanceId));
+            this.tracer.end(trace);
+            this.terminateInstance(instance);
+            return null;
+        }
 
-            instance.setStatus(InstanceStatus.STARTING);
-            instance.setInstanceId(instanceId);
-            instance.setHost(host);
-            instance.setPort(sshPort);
+        LOG.debug("setUpVM waiting for SSH to be enabled");
+        this.waitForVM(host, sshPort);
+        return this.startAgent(image, instance, data, trace, true);
+    }
+
+    private void reuseVM(OrkaCloudImage image, OrkaCloudInstance instance, @Nullable final CloudInstanceUserData data,
+            @Nullable final Tracer.Trace trace) {
+        try (Tracer.Scope scope = this.activate(trace); Tracer.Span span = Tracer.span("reuseVM")) {
+            try {
+                instance.setStatus(InstanceStatus.STARTING);
+                if (this.reusePolicy.getParkMode() != ParkMode.NONE) {
+                    this.unparkVM(instance);
+                }
+                this.startAgent(image, instance, data, trace, false);
+            } catch (IOException | InterruptedException e) {
+                span.fail(e);
+                LOG.debug("reuseVM error", e);
+                instance.setStatus(InstanceStatus.ERROR);
+                instance.setErrorInfo(new CloudErrorInfo(e.getMessage(), e.toString(), e));
+                this.tracer.end(trace);
+                this.terminateInstance(instance);
+            }
+        }
+    }
 
-            LOG.debug("setUpVM waiting for SSH to be enabled");
-            this.waitForVM(host, sshPort);
-            this.remoteAgent.startAgent(instanceId, image.getId(), host, sshPort, image.getUser(), image.getPassword(),
-                    this.agentDirectory, data);
-            instance.setStatus(InstanceStatus.RUNNING);
-        } catch (IOException | InterruptedException e) {
-            LOG.debug("setUpVM error", e);
-            instance.setStatus(InstanceStatus.ERROR);
-            instance.setErrorInfo(new CloudErrorInfo(e.getMessage(), e.toString(), e));
-            this.terminateNonInitilizedInstance(instance);
+    /**
+     * Starts the agent without waiting for the start command. The instance becomes RUNNING once its agent
+     * registers, and is terminated if the command fails or the agent does not register in time.
+     */
+    private CompletableFuture<Void> startAgent(OrkaCloudImage image, OrkaCloudInstance instance,
+            @Nullable final CloudInstanceUserData data, @Nullable final Tracer.Trace trace, boolean deployed)
+            throws IOException {
+        String instanceId = instance.getInstanceId();
+        CompletableFuture<Void> registration = this.awaitRegistration(instance, trace, deployed);
+        this.remoteAgent.startAgent(instanceId, image.getId(), instance.getHost(), instance.getPort(),
+                image.getUser(), image.getPassword(), this.agentDirectory, data, result -> {
+                    instance.setAgentOutput(result.getOutput());
+                    if (result.getFailure() != null) {
+                        this.registrations.fail(instanceId, new IOException(result.getFailure()));
+                    }
+                });
+        if (trace != null) {
+            trace.begin("agentRegistration");
         }
+        return registration;
+    }
+
+    private CompletableFuture<Void> awaitRegistration(OrkaCloudInstance instance, @Nullable final Tracer.Trace trace,
+            boolean deployed) {
+        String instanceId = instance.getInstanceId();
+        CompletableFuture<Void> registration = this.registrations.expect(instanceId);
+        ScheduledFuture<?> deadline = this.registrationTimeout <= 0 ? null
+                : this.scheduledExecutorService.schedule(() -> this.registrations.fail(instanceId,
+                        new TimeoutException(String.format("Agent did not register within %s minutes",
+                                TimeUnit.MILLISECONDS.toMinutes(this.registrationTimeout)))),
+                        this.registrationTimeout, TimeUnit.MILLISECONDS);
+        registration.whenComplete((result, error) -> {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            if (error == null) {
+                if (!instance.compareAndSetStatus(InstanceStatus.STARTING, InstanceStatus.RUNNING)) {
+                    LOG.debug(String.format("Agent of instance %s registered while the instance is %s",
+                            instanceId, instance.getStatus()));
+                    return;
+                }
+                if (deployed) {
+                    this.demandForecaster
+                            .recordBringUp(System.currentTimeMillis() - instance.getStartedTime().getTime());
+                }
+            } else if (!registration.isCancelled()) {
+                LOG.info(String.format("Agent of instance %s did not register: %s, terminating instance", instanceId,
+                        error.getMessage()));
+                instance.setStatus(InstanceStatus.ERROR);
+                String output = instance.getAgentOutput();
+                instance.setErrorInfo(new CloudErrorInfo("Agent did not register", StringUtil.isEmpty(output)
+                        ? error.getMessage() : error.getMessage() + System.lineSeparator() + output, error));
+                this.tracer.end(trace);
+                this.terminateInstance(instance);
+            }
+        });
+        return registration;
+    }
+
+    private Tracer.Scope activate(@Nullable Tracer.Trace trace) {
+        return trace != null ? trace.activate() : () -> {
+        };
+    }
+
+    @Nullable
+    private PooledVm takeIdleVM(OrkaCloudImage image, @Nullable VMConfigSelector.Demand demand) {
+        long now = System.currentTimeMillis();
+        PooledVm vm;
+        while ((vm = image.takeIdleVm(v -> this.vmConfigSelector.fits(demand, this.clusters.forInstance(v.getId()),
+                v.getVmConfig()))) != null) {
+            if (this.reusePolicy.canReuse(vm, now)) {
+                return vm;
+            }
+            this.deleteIdleVM(image, vm);
+        }
+        return null;
+    }
+
+    private boolean recycleVM(OrkaCloudImage image, OrkaCloudInstance instance) {
+        String cleanupScript = this.reusePolicy.getCleanupScript();
+        if (StringUtil.isNotEmpty(cleanupScript) && !this.remoteAgent.runScript(instance.getHost(),
+                instance.getPort(), image.getUser(), image.getPassword(), cleanupScript)) {
+            LOG.debug(String.format("Cleanup failed for instance: %s, deleting vm", instance.getInstanceId()));
+            return false;
+        }
+
+        if (this.reusePolicy.getParkMode() != ParkMode.NONE && !this.parkVM(instance)) {
+            return false;
+        }
+
+        image.offerIdleVm(new PooledVm(instance.getInstanceId(), instance.getNamespace(), instance.getHost(),
+                instance.getPort(), instance.getVmCreatedTime(), instance.getBuildCount(), instance.getVmConfig()));
+        instance.setStatus(InstanceStatus.STOPPED);
+        image.terminateInstance(instance.getInstanceId());
+        return true;
+    }
+
+    private boolean parkVM(OrkaCloudInstance instance) {
+        ParkMode mode = this.reusePolicy.getParkMode();
+        String vmId = instance.getInstanceId();
+        String vmName = OrkaCluster.getVmName(vmId);
+        LOG.debug(String.format("Parking vm: %s with mode: %s", vmId, mode));
+        try {
+            VMActionResponse response = this.clusters.forInstance(vmId).call(c -> mode == ParkMode.SUSPEND
+                    ? c.suspendVM(vmName, instance.getNamespace()) : c.stopVM(vmName, instance.getNamespace()), true);
+            if (response.isSuccessful()) {
+                return true;
+            }
+            LOG.debug(String.format("Failed to park vm: %s and message: %s, deleting vm", vmId,
+                    response.getMessage()));
+        } catch (IOException e) {
+            LOG.debug(String.format("Failed to park vm: %s, deleting vm", vmId), e);
+        }
+        return false;
+    }
+
+    private void unparkVM(OrkaCloudInstance instance) throws IOException, InterruptedException {
+        ParkMode mode = this.reusePolicy.getParkMode();
+        String vmId = instance.getInstanceId();
+        String vmName = OrkaCluster.getVmName(vmId);
+        OrkaCluster cluster = this.clusters.forInstance(vmId);
+        try (Tracer.Span span = Tracer.span("unparkVM")) {
+            span.message("vm: %s, mode: %s", vmId, mode);
+            VMActionResponse response = cluster.call(c -> mode == ParkMode.SUSPEND
+                    ? c.resumeVM(vmName, instance.getNamespace()) : c.startVM(vmName, instance.getNamespace()), true);
+            if (!response.isSuccessful()) {
+                throw new IOException(String.format("Failed to resume vm: %s, %s", vmId, response.getMessage()));
+            }
+            VMResponse vm = this.getVM(vmId, instance.getNamespace());
+            if (vm.isSuccessful() && vm.getIP() != null && vm.getSSH() > 0) {
+                instance.setHost(cluster.getRealHost(vm.getIP()));
+                instance.setPort(vm.getSSH());
+            }
+            this.waitForVM(instance.getHost(), instance.getPort());
+        }
+    }
+
+    private boolean reclaimIdleVM(OrkaCloudImage image, OrkaCluster cluster) {
+        PooledVm vm = image.takeLeastRecentIdleVm(idleVm -> cluster.owns(idleVm.getId()));
+        if (vm == null) {
+            return false;
+        }
+        LOG.info(String.format("Giving back idle vm: %s to the Orka cluster", vm.getId()));
+        this.deleteIdleVM(image, vm);
+        return true;
+    }
+
+    void evictIdleVMs(long now) {
+        this.images.forEach(image -> image.getIdleVms().stream().filter(vm -> !this.reusePolicy.canReuse(vm, now))
+                .filter(image::removeIdleVm).forEach(vm -> this.deleteIdleVM(image, vm)));
+    }
+
+    private void deleteIdleVM(OrkaCloudImage image, PooledVm vm) {
+        this.scheduledExecutorService.submit(() -> {
+            LOG.debug(String.format("Deleting idle vm: %s", vm));
+            try {
+                DeletionResponse response = this.deleteVM(vm.getId(), vm.getNamespace());
+                if (response.isSuccessful()) {
+                    return;
+                }
+                LOG.info(String.format("Failed to delete idle VM: %s and message: %s", vm.getId(),
+                        response.getMessage()));
+            } catch (IOException e) {
+                LOG.info(String.format("Failed to delete idle VM: %s", vm.getId()), e);
+            }
+            this.deletionQueue.add(vm.getId(), vm.getNamespace());
+            PoolChangeFeed.getInstance().imageChanged(image);
+        });
     }
 
     private void terminateNonInitilizedInstance(@NotNull final OrkaCloudInstance instance) {
@@ -263,22 +879,88 @@ public class OrkaCloudClient extends BuildServerAdapter implements CloudClientEx
         }
     }
 
-    private DeploymentResponse deployVM(String vmName, String namespace) throws IOException {
-        return this.orkaClient.deployVM(vmName, namespace);
+    private DeploymentResponse deployVM(OrkaCluster cluster, String vmName, String namespace, @Nullable String node)
+            throws IOException {
+        return cluster.call(c -> node != null ? c.deployVM(vmName, namespace, node) : c.deployVM(vmName, namespace),
+                false);
     }
 
     DeletionResponse deleteVM(String vmId, String namespace) throws IOException {
-        return this.orkaClient.deleteVM(vmId, namespace);
+        DeletionResponse response = this.clusters.forInstance(vmId)
+                .call(c -> c.deleteVM(OrkaCluster.getVmName(vmId), namespace), true);
+        if (response.isSuccessful()) {
+            this.vmRemoved(vmId);
+        }
+        return response;
+    }
+
+    VMResponse getVM(String vmId, String namespace) throws IOException {
+        return this.clusters.forInstance(vmId).call(c -> c.getVM(OrkaCluster.getVmName(vmId), namespace), true);
+    }
+
+    VMsResponse getVMs(OrkaCluster cluster, String namespace) throws IOException {
+        return cluster.call(c -> c.getVMs(namespace), true);
     }
 
-    VMResponse getVM(String vmName, String namespace) throws IOException {
-        return this.orkaClient.getVM(vmName, namespace);
+    OrkaClusters getClusters() {
+        return this.clusters;
+    }
+
+    void vmRemoved(String vmId) {
+        this.clusters.forInstance(vmId).getNodePlacement().release(vmId);
     }
 
     private void waitForVM(String host, int sshPort) throws InterruptedException, IOException {
-        int retries = 12;
-        int secondsBetweenRetries = 10;
-        this.sshUtil.waitForSSH(host, sshPort, retries, secondsBetweenRetries);
+        this.sshUtil.waitForSSH(host, sshPort, this.sshRetries, this.sshRetryInterval);
+    }
+
+    private void registerMBeans(String profileId) {
+        this.mbeans.put(MBeanRegistry.getClientName(profileId), new CloudClientMonitor(this));
+        this.images.forEach(image -> this.mbeans.put(MBeanRegistry.getImageName(profileId, image.getId()),
+                new CloudImageMonitor(image)));
+        this.mbeans.forEach(MBeanRegistry::register);
+    }
+
+    /**
+     * Returns the number of deployments, reuses and terminations waiting for a worker thread of the client.
+     */
+    int getExecutorQueueDepth() {
+        return this.workerExecutor instanceof ThreadPoolExecutor
+                ? ((ThreadPoolExecutor) this.workerExecutor).getQueue().size()
+                : -1;
+    }
+
+    int getSshRetries() {
+        return this.sshRetries;
+    }
+
+    void setSshRetries(int sshRetries) {
+        LOG.debug(String.format("SSH retries changed from %s to %s", this.sshRetries, sshRetries));
+        this.sshRetries = sshRetries;
+    }
+
+    int getSshRetryInterval() {
+        return this.sshRetryInterval;
+    }
+
+    void setSshRetryInterval(int sshRetryInterval) {
+        LOG.debug(String.format("SSH retry interval changed from %ss to %ss", this.sshRetryInterval,
+                sshRetryInterval));
+        this.sshRetryInterval = sshRetryInterval;
+    }
+
+    long getCleanupInterval() {
+        return this.cleanupInterval;
+    }
+
+    synchronized void setCleanupInterval(long cleanupInterval) {
+        LOG.debug(String.format("Cleanup interval changed from %sms to %sms", this.cleanupInterval, cleanupInterval));
+        this.cleanupInterval = cleanupInterval;
+        if (this.removedFailedInstancesScheduledTask != null && !this.disposed) {
+            this.removedFailedInstancesScheduledTask.cancel(false);
+            this.removedFailedInstancesScheduledTask = this.scheduledExecutorService.scheduleWithFixedDelay(
+                    new RemoveFailedInstancesTask(this), cleanupInterval, cleanupInterval, TimeUnit.MILLISECONDS);
+        }
     }
 
     public void restartInstance(@NotNull final CloudInstance instance) {
@@ -286,18 +968,32 @@ public class OrkaCloudClient extends BuildServerAdapter implements CloudClientEx
 
     public void terminateInstance(@NotNull final CloudInstance instance) {
         OrkaCloudInstance orkaInstance = (OrkaCloudInstance) instance;
-        this.scheduledExecutorService.submit(() -> {
+        this.registrations.cancel(instance.getInstanceId());
+        if (this.disposed) {
+            this.handOff(orkaInstance);
+            return;
+        }
+        this.submitWorker(orkaInstance, () -> {
             try {
                 LOG.debug(String.format("terminateInstance id: %s", instance.getInstanceId()));
                 OrkaCloudImage image = (OrkaCloudImage) instance.getImage();
 
                 LOG.debug(String.format("terminateInstance with image id: %s", image.getId()));
 
+                boolean reusable = orkaInstance.getStatus() == InstanceStatus.RUNNING
+                        && orkaInstance.getErrorInfo() == null && !orkaInstance.isRetired()
+                        && this.reusePolicy.canReuse(
+                                orkaInstance.getBuildCount(), orkaInstance.getVmCreatedTime(),
+                                System.currentTimeMillis());
                 orkaInstance.setStatus(InstanceStatus.SCHEDULED_TO_STOP);
 
                 this.remoteAgent.stopAgent(orkaInstance, image.getId(), orkaInstance.getHost(), orkaInstance.getPort(),
                         image.getUser(), image.getPassword(), this.agentDirectory);
 
+                if (reusable && this.recycleVM(image, orkaInstance)) {
+                    return;
+                }
+
                 LOG.debug("terminateInstance deleting vm");
                 DeletionResponse response = this.deleteVM(instance.getInstanceId(), orkaInstance.getNamespace());
                 if (response.isSuccessful()) {
@@ -318,23 +1014,449 @@ public class OrkaCloudClient extends BuildServerAdapter implements CloudClientEx
     private void setInstanceForDeletion(OrkaCloudInstance instance, CloudErrorInfo errorInfo) {
         instance.setErrorInfo(errorInfo);
         instance.setMarkedForTermination(true);
+        this.deletionQueue.add(instance.getInstanceId(), instance.getNamespace());
+        this.images.forEach(PoolChangeFeed.getInstance()::imageChanged);
+    }
+
+    boolean isDeletionPending(String vmId) {
+        return this.deletionQueue.contains(vmId);
+    }
+
+    @NotNull
+    public DeletionQueue getDeletionQueue() {
+        return this.deletionQueue;
+    }
+
+    /**
+     * Retries the queued deletions that are due. A VM that Orka no longer knows counts as deleted.
+     */
+    void processDeletions() {
+        List<DeletionQueue.Item> due = this.deletionQueue.due();
+        if (due.isEmpty()) {
+            return;
+        }
+        LOG.debug(String.format("Retrying %s deletions, queue depth: %s, oldest: %sms", due.size(),
+                this.deletionQueue.getDepth(), this.deletionQueue.getOldestAge()));
+        for (DeletionQueue.Item item : due) {
+            String error;
+            try {
+                DeletionResponse response = this.deleteVM(item.getVmId(), item.getNamespace());
+                if (response.isSuccessful() || isNotFound(response)) {
+                    this.vmDeleted(item);
+                    continue;
+                }
+                error = response.getMessage();
+            } catch (IOException e) {
+                error = e.getMessage();
+            }
+            if (this.deletionQueue.failed(item, error)) {
+                LOG.debug(String.format("Failed to delete vm: %s, attempt: %s, error: %s", item.getVmId(),
+                        item.getAttempts(), error));
+            } else {
+                LOG.warn(String.format("Giving up deleting vm: %s after %s attempts, error: %s", item.getVmId(),
+                        item.getAttempts(), error));
+            }
+        }
+        this.images.forEach(PoolChangeFeed.getInstance()::imageChanged);
+    }
+
+    private static boolean isNotFound(DeletionResponse response) {
+        return response.getHttpResponse() != null && response.getHttpResponse().getCode() == 404;
+    }
+
+    private void vmDeleted(DeletionQueue.Item item) {
+        LOG.info(String.format("Deleted vm: %s after %s failed attempts", item.getVmId(), item.getAttempts() + 1));
+        this.deletionQueue.deleted(item);
+        this.vmRemoved(item.getVmId());
+        for (OrkaCloudImage image : this.images) {
+            OrkaCloudInstance instance = image.findInstanceById(item.getVmId());
+            if (instance != null) {
+                instance.setStatus(InstanceStatus.STOPPED);
+                image.terminateInstance(item.getVmId());
+            }
+        }
     }
 
     public void dispose() {
-        if (this.removedFailedInstancesScheduledTask != null) {
-            this.removedFailedInstancesScheduledTask.cancel(false);
+        if (this.serverEvents != null) {
+            this.serverEvents.removeListener(this);
+        }
+        this.registrations.cancelAll();
+        this.mbeans.forEach(MBeanRegistry::unregister);
+        synchronized (this) {
+            if (this.removedFailedInstancesScheduledTask != null) {
+                this.removedFailedInstancesScheduledTask.cancel(false);
+                this.removedFailedInstancesScheduledTask = null;
+            }
+        }
+        if (this.deletionScheduledTask != null) {
+            this.deletionScheduledTask.cancel(false);
+        }
+        if (this.forecastScheduledTask != null) {
+            this.forecastScheduledTask.cancel(false);
+        }
+        ScheduledFuture<?> debouncedForecastTask = this.debouncedForecastTask;
+        if (debouncedForecastTask != null) {
+            debouncedForecastTask.cancel(false);
+        }
+        if (this.evictIdleVmsScheduledTask != null) {
+            this.evictIdleVmsScheduledTask.cancel(false);
+        }
+        if (this.healthCheckScheduledTask != null) {
+            this.healthCheckScheduledTask.cancel(false);
+        }
+        if (this.recycleInstancesScheduledTask != null) {
+            this.recycleInstancesScheduledTask.cancel(false);
         }
 
+        DisposeReport report = this.shutdown(DISPOSE_TIMEOUT);
+        if (this.workerExecutor != this.scheduledExecutorService) {
+            this.workerExecutor.shutdownNow();
+        }
+        LOG.info(String.format("Disposed Orka cloud client: %s", report));
+
         for (final OrkaCloudImage image : this.images) {
             image.dispose();
+            image.unregisterClusterQuota();
+            PoolChangeFeed.getInstance().unregister(image);
         }
         this.images.clear();
     }
 
+    /**
+     * Runs a deployment, reuse or termination of an instance on the worker executor of the client, so that it
+     * can be cancelled when the client is disposed without interrupting threads the client does not own.
+     */
+    private void submitWorker(OrkaCloudInstance instance, Runnable task) {
+        this.submitWorker(instance, task, () -> {
+        });
+    }
+
+    /**
+     * Runs the task on a worker thread. If the task never starts, because the client is disposed before it
+     * does or the executor rejects it, the abort callback is run instead so that its reservations are undone.
+     */
+    private void submitWorker(OrkaCloudInstance instance, Runnable task, Runnable onAbort) {
+        AtomicBoolean started = new AtomicBoolean();
+        FutureTask<Void> worker = new FutureTask<Void>(() -> {
+            if (!this.disposed && started.compareAndSet(false, true)) {
+                this.runWorker(instance, task);
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                OrkaCloudClient.this.workerTasks.remove(this);
+                if (started.compareAndSet(false, true)) {
+                    onAbort.run();
+                }
+            }
+        };
+        this.workerTasks.add(worker);
+        try {
+            this.workerExecutor.submit(worker);
+        } catch (RejectedExecutionException e) {
+            LOG.debug(String.format("Worker for instance %s rejected, the client is disposed",
+                    instance.getInstanceId()));
+            worker.cancel(false);
+        }
+    }
+
+    private void runWorker(OrkaCloudInstance instance, Runnable task) {
+        Thread thread = Thread.currentThread();
+        this.workers.put(thread, instance);
+        try {
+            task.run();
+        } finally {
+            this.workers.remove(thread);
+        }
+    }
+
+    private static ExecutorService createWorkerExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread thread = new Thread(r, "Orka worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Stops the client within the timeout: in-flight deployments, reuses and terminations are cancelled by
+     * aborting their Orka API calls and interrupting their SSH waits, then the VMs that are not running an
+     * agent are deleted in parallel. VMs that could not be deleted in time are left to the deletion queue,
+     * which is kept on disk and processed by the next client of the profile. Running instances are left to
+     * the next client, which finds them through their agents.
+     */
+    DisposeReport shutdown(long timeout) {
+        this.disposed = true;
+        long deadline = System.currentTimeMillis() + timeout;
+        DisposeReport report = new DisposeReport();
+
+        report.cancelled = this.workers.size();
+        this.workers.keySet().forEach(OrkaClient::cancel);
+        this.workerTasks.forEach(worker -> worker.cancel(true));
+        long workersDeadline = System.currentTimeMillis() + timeout / 3;
+        while (!this.workers.isEmpty() && System.currentTimeMillis() < workersDeadline) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        List<PooledVm> vms = new ArrayList<PooledVm>();
+        for (OrkaCloudImage image : this.images) {
+            List<PooledVm> idleVms = new ArrayList<PooledVm>();
+            PooledVm vm;
+            while ((vm = image.takeIdleVm()) != null) {
+                idleVms.add(vm);
+            }
+            List<OrkaCloudInstance> running = new ArrayList<OrkaCloudInstance>();
+            for (CloudInstance cloudInstance : image.getInstances()) {
+                OrkaCloudInstance instance = (OrkaCloudInstance) cloudInstance;
+                if (instance.getStatus() == InstanceStatus.RUNNING && !instance.isMarkedForTermination()) {
+                    running.add(instance);
+                    report.handedOff++;
+                } else if (hasVM(instance) && !this.deletionQueue.contains(instance.getInstanceId())) {
+                    vms.add(new PooledVm(instance.getInstanceId(), instance.getNamespace(), instance.getHost(),
+                            instance.getPort(), instance.getVmCreatedTime(), instance.getBuildCount(),
+                            instance.getVmConfig()));
+                }
+            }
+            if (this.registry != null && (!running.isEmpty() || !idleVms.isEmpty())) {
+                this.release(image, running, idleVms, timeout);
+                report.kept += idleVms.size();
+            } else {
+                vms.addAll(idleVms);
+            }
+        }
+        this.deleteVMs(vms, deadline, report);
+        return report;
+    }
+
+    /**
+     * Hands the running instances and idle VMs of an image over to the client that replaces this one. If none
+     * adopts them, the idle VMs are deleted.
+     */
+    private void release(OrkaCloudImage image, List<OrkaCloudInstance> running, List<PooledVm> idleVms,
+            long timeout) {
+        Map<String, String> nodes = new HashMap<String, String>();
+        idleVms.forEach(vm -> {
+            String node = this.clusters.forInstance(vm.getId()).getNodePlacement().getNode(vm.getId());
+            if (node != null) {
+                nodes.put(vm.getId(), node);
+            }
+        });
+        this.registry.release(InstanceRegistry.getKey(this.endpoint, image.getNamespace(), image.getName()),
+                new InstanceRegistry.Handoff(this.handoffFingerprint, running, idleVms, nodes, () -> {
+                    DisposeReport report = new DisposeReport();
+                    this.deleteVMs(idleVms, System.currentTimeMillis() + timeout, report);
+                    LOG.info(String.format("Deleted the idle VMs no client adopted: %s", report));
+                }));
+    }
+
+    private void deleteVMs(List<PooledVm> vms, long deadline, DisposeReport report) {
+        if (vms.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(vms.size(), DISPOSE_THREADS), r -> {
+            Thread thread = new Thread(r, "Orka dispose");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Map<PooledVm, CompletableFuture<Boolean>> deletions = new HashMap<PooledVm, CompletableFuture<Boolean>>();
+            vms.forEach(vm -> deletions.put(vm, CompletableFuture.supplyAsync(() -> this.tryDeleteVM(vm), executor)));
+            try {
+                CompletableFuture.allOf(deletions.values().toArray(new CompletableFuture<?>[0]))
+                        .get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                LOG.debug("Not every VM was deleted before the dispose deadline", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            deletions.forEach((vm, deletion) -> {
+                if (deletion.isDone() && !deletion.isCompletedExceptionally() && deletion.join()) {
+                    report.deleted++;
+                } else {
+                    this.deletionQueue.add(vm.getId(), vm.getNamespace());
+                    report.queued++;
+                }
+            });
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private boolean tryDeleteVM(PooledVm vm) {
+        try {
+            DeletionResponse response = this.deleteVM(vm.getId(), vm.getNamespace());
+            if (response.isSuccessful() || isNotFound(response)) {
+                return true;
+            }
+            LOG.info(String.format("Failed to delete vm: %s on dispose: %s", vm.getId(), response.getMessage()));
+        } catch (IOException e) {
+            LOG.info(String.format("Failed to delete vm: %s on dispose", vm.getId()), e);
+        }
+        return false;
+    }
+
+    private void handOff(OrkaCloudInstance instance) {
+        if (hasVM(instance)) {
+            LOG.info(String.format("Queueing vm: %s of disposed client for deletion", instance.getInstanceId()));
+            this.deletionQueue.add(instance.getInstanceId(), instance.getNamespace());
+        }
+    }
+
+    private static boolean hasVM(OrkaCloudInstance instance) {
+        return !instance.getInstanceId().equals(instance.getPluginId()) || StringUtil.isNotEmpty(instance.getHost());
+    }
+
+    static class DisposeReport {
+        private int cancelled;
+        private int deleted;
+        private int queued;
+        private int handedOff;
+        private int kept;
+
+        int getCancelled() {
+            return this.cancelled;
+        }
+
+        int getDeleted() {
+            return this.deleted;
+        }
+
+        int getQueued() {
+            return this.queued;
+        }
+
+        int getHandedOff() {
+            return this.handedOff;
+        }
+
+        int getKept() {
+            return this.kept;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("cancelled %s in-flight tasks, deleted %s VMs, queued %s VMs for deletion, "
+                    + "left %s running instances and %s idle VMs to the next client", this.cancelled, this.deleted,
+                    this.queued, this.handedOff, this.kept);
+        }
+    }
+
+    @Override
+    public void buildTypeAddedToQueue(@NotNull final SQueuedBuild queuedBuild) {
+        if (!this.vmConfigSelector.isEnabled() && !this.demandForecaster.isEnabled()
+                || !this.canRunOnImages(queuedBuild)) {
+            return;
+        }
+        if (this.vmConfigSelector.isEnabled()) {
+            this.vmConfigSelector.buildQueued(queuedBuild);
+        }
+        if (this.demandForecaster.isEnabled()) {
+            this.demandForecaster.buildQueued(queuedBuild);
+            this.scheduleForecast();
+        }
+    }
+
+    /**
+     * Returns whether the build can run on agents of this profile: one of its compatible agents is in the pool
+     * of an image, or its project is associated with that pool and the agents have not started yet.
+     */
+    private boolean canRunOnImages(SQueuedBuild queuedBuild) {
+        SBuildType buildType = queuedBuild.getBuildType();
+        List<SBuildAgent> compatibleAgents = queuedBuild.getCompatibleAgents();
+        for (OrkaCloudImage image : this.images) {
+            int poolId = image.getAgentPoolId();
+            if (compatibleAgents.stream().anyMatch(agent -> agent.getAgentPoolId() == poolId)) {
+                return true;
+            }
+            if (this.agentPoolManager != null && buildType != null && poolId >= 0) {
+                Set<String> projects = this.agentPoolManager.getPoolProjects(poolId);
+                if (projects != null && projects.contains(buildType.getProjectId())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void buildRemovedFromQueue(@NotNull final SQueuedBuild queuedBuild, final User user, final String comment) {
+        this.demandForecaster.buildDequeued(queuedBuild.getBuildPromotion().getId());
+        this.vmConfigSelector.buildDequeued(queuedBuild.getBuildPromotion().getId());
+    }
+
+    @Override
+    public void buildStarted(@NotNull final SRunningBuild build) {
+        this.demandForecaster.buildDequeued(build.getBuildPromotion().getId());
+        this.vmConfigSelector.buildDequeued(build.getBuildPromotion().getId());
+        OrkaCloudInstance instance = this.findExistingInstance(build.getAgent());
+        if (instance != null) {
+            instance.setBusy(true);
+            instance.incrementBuildCount();
+        }
+    }
+
+    @Override
+    public void agentRegistered(@NotNull final SBuildAgent agent, final long currentlyRunningBuildId) {
+        String instanceId = this.findInstanceId(agent);
+        if (instanceId != null && this.registrations.registered(instanceId)) {
+            LOG.debug(String.format("Agent of instance %s registered", instanceId));
+        }
+        Tracer.Trace trace = instanceId != null ? this.tracer.find(instanceId) : null;
+        if (trace == null) {
+            return;
+        }
+        Tracer.Span span = trace.take("agentRegistration");
+        if (span != null) {
+            span.message("agent: %s", agent.getName()).close();
+        }
+        this.tracer.end(trace);
+    }
+
+    @Override
+    public void buildFinished(@NotNull final SRunningBuild build) {
+        OrkaCloudInstance instance = this.findExistingInstance(build.getAgent());
+        if (instance != null) {
+            instance.setBusy(false);
+            if (this.recyclePolicy.isLifetimeExceeded(instance, System.currentTimeMillis())) {
+                this.scheduledExecutorService.submit(this.recycleInstancesTask);
+            }
+        }
+    }
+
+    private void scheduleForecast() {
+        if (this.forecastScheduled.compareAndSet(false, true)) {
+            this.debouncedForecastTask = this.scheduledExecutorService.schedule(() -> {
+                this.forecastScheduled.set(false);
+                this.demandForecaster.evaluate();
+            }, FORECAST_DEBOUNCE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Nullable
+    private OrkaCloudInstance findExistingInstance(@Nullable final SBuildAgent agent) {
+        if (agent == null) {
+            return null;
+        }
+        OrkaCloudImage image = this.findImage(agent);
+        String instanceId = this.findInstanceId(agent);
+        return image != null && instanceId != null ? image.findInstanceById(instanceId) : null;
+    }
+
     @Nullable
     private OrkaCloudImage findImage(@NotNull final AgentDescription agentDescription) {
         final String imageId = agentDescription.getConfigurationParameters().get(CommonConstants.IMAGE_ID_PARAM_NAME);
-        LOG.debug(String.format("findImage with imageId: %s", imageId));
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("findImage with imageId: %s", imageId));
+        }
         return imageId == null ? null : this.findImageById(imageId);
     }
 
@@ -342,9 +1464,4 @@ public class OrkaCloudClient extends BuildServerAdapter implements CloudClientEx
     private String findInstanceId(@NotNull final AgentDescription agentDescription) {
         return agentDescription.getConfigurationParameters().get(CommonConstants.INSTANCE_ID_PARAM_NAME);
     }
-
-    private String getRealHost(String host) {
-        return this.nodeMappings.keySet().stream().filter(k -> k.equalsIgnoreCase(host)).findFirst()
-                .map(k -> this.nodeMappings.get(k)).orElse(host);
-    }
 }
@@ -1,8 +1,9 @@
 package com.macstadium.orka;
 
 import com.intellij.openapi.diagnostic.Logger;
+import com.macstadium.orka.client.OrkaClient;
 
-import java.util.Collection;
+import java.io.File;
 import java.util.Collections;
 import java.util.Map;
 
@@ -12,9 +13,12 @@ import jetbrains.buildServer.clouds.CloudRegistrar;
 import jetbrains.buildServer.clouds.CloudState;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.AgentDescription;
-import jetbrains.buildServer.serverSide.InvalidProperty;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.PropertiesProcessor;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.agentPools.AgentPoolManager;
 import jetbrains.buildServer.serverSide.executors.ExecutorServices;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
 
 import org.jetbrains.annotations.NotNull;
@@ -25,11 +29,23 @@ public class OrkaCloudClientFactory implements CloudClientFactory {
     @NotNull
     private final String jspPath;
     private final ExecutorServices executorServices;
+    private final EventDispatcher<BuildServerListener> serverEvents;
+    private final AgentPoolManager agentPoolManager;
+    private final OrkaResourceCache resourceCache;
+    private final ServerPaths serverPaths;
 
     public OrkaCloudClientFactory(@NotNull final CloudRegistrar cloudRegistrar,
-            @NotNull final PluginDescriptor pluginDescriptor, @NotNull final ExecutorServices executorServices) {
+            @NotNull final PluginDescriptor pluginDescriptor, @NotNull final ExecutorServices executorServices,
+            @NotNull final EventDispatcher<BuildServerListener> serverEvents,
+            @NotNull final AgentPoolManager agentPoolManager, @NotNull final OrkaResourceCache resourceCache,
+            @NotNull final ServerPaths serverPaths) {
         this.jspPath = pluginDescriptor.getPluginResourcesPath("settings.html");
         this.executorServices = executorServices;
+        this.serverEvents = serverEvents;
+        this.agentPoolManager = agentPoolManager;
+        this.resourceCache = resourceCache;
+        this.serverPaths = serverPaths;
+        OrkaClient.setCallListener(Tracer.API_CALL_LISTENER);
         cloudRegistrar.registerCloudFactory(this);
     }
 
@@ -55,12 +71,7 @@ public class OrkaCloudClientFactory implements CloudClientFactory {
 
     @NotNull
     public PropertiesProcessor getPropertiesProcessor() {
-        return new PropertiesProcessor() {
-            @NotNull
-            public Collection<InvalidProperty> process(@NotNull final Map<String, String> properties) {
-                return Collections.emptyList();
-            }
-        };
+        return new OrkaPropertiesProcessor(this.resourceCache);
     }
 
     public boolean canBeAgentOfType(@NotNull final AgentDescription agentDescription) {
@@ -75,6 +86,9 @@ public class OrkaCloudClientFactory implements CloudClientFactory {
     @NotNull
     public OrkaCloudClient createNewClient(@NotNull final CloudState state,
             @NotNull final CloudClientParameters params) {
-        return new OrkaCloudClient(params, executorServices);
+        File deletionQueueFile = new File(this.serverPaths.getPluginDataDirectory(),
+                String.format("%s/deletions-%s.json", OrkaConstants.TYPE, state.getProfileId()));
+        return new OrkaCloudClient(params, state.getProjectId(), executorServices, serverEvents, agentPoolManager,
+                deletionQueueFile);
     }
 }
@@ -2,14 +2,22 @@ package com.macstadium.orka;
 
 import com.intellij.openapi.diagnostic.Logger;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
 
 import jetbrains.buildServer.clouds.CloudErrorInfo;
 import jetbrains.buildServer.clouds.CloudImage;
 import jetbrains.buildServer.clouds.CloudInstance;
+import jetbrains.buildServer.clouds.InstanceStatus;
 import jetbrains.buildServer.clouds.QuotaException;
 import jetbrains.buildServer.log.Loggers;
 
@@ -27,9 +35,18 @@ public class OrkaCloudImage implements CloudImage {
     @NotNull
     private final String namespace;
     private final int agentPoolId;
-    private final int instanceLimit;
+    private volatile int instanceLimit;
     @NotNull
-    private final Map<String, OrkaCloudInstance> instances = new ConcurrentHashMap<String, OrkaCloudInstance>();
+    private final InstanceIndex instances = new InstanceIndex();
+    @NotNull
+    private final Deque<PooledVm> idleVms = new ConcurrentLinkedDeque<PooledVm>();
+    @NotNull
+    private final Map<String, ClusterQuota.Member> clusterQuotas = new ConcurrentHashMap<String, ClusterQuota.Member>();
+    @Nullable
+    private volatile DeletionQueue deletionQueue;
+    private final List<InstanceListener> listeners = new CopyOnWriteArrayList<InstanceListener>();
+    @NotNull
+    private final DeployQuarantine deployQuarantine = new DeployQuarantine(System::currentTimeMillis);
 
     public OrkaCloudImage(@NotNull final String imageId, @NotNull final String namespace, @NotNull final String user,
             @NotNull final String password,
@@ -67,6 +84,20 @@ public class OrkaCloudImage implements CloudImage {
         return this.namespace;
     }
 
+    public int getInstanceLimit() {
+        return this.instanceLimit;
+    }
+
+    public void setInstanceLimit(int instanceLimit) {
+        if (instanceLimit < OrkaConstants.UNLIMITED_INSTANCES) {
+            throw new IllegalArgumentException("The instance limit must be -1 or more");
+        }
+        LOG.debug(String.format("Instance limit of image: %s changed from %s to %s", this.id, this.instanceLimit,
+                instanceLimit));
+        this.instanceLimit = instanceLimit;
+        PoolChangeFeed.getInstance().imageChanged(this);
+    }
+
     @NotNull
     public Collection<? extends CloudInstance> getInstances() {
         return Collections.unmodifiableCollection(this.instances.values());
@@ -86,26 +117,188 @@ public class OrkaCloudImage implements CloudImage {
 
     @Nullable
     public CloudErrorInfo getErrorInfo() {
-        return null;
+        return this.deployQuarantine.getErrorInfo();
     }
 
     public synchronized boolean canStartNewInstance() {
-        return this.instanceLimit == OrkaConstants.UNLIMITED_INSTANCES || this.instanceLimit > this.instances.size();
+        return !this.idleVms.isEmpty() || (!this.deployQuarantine.isActive() && this.hasFreeSlots()
+                && (this.clusterQuotas.isEmpty() || this.clusterQuotas.values().stream()
+                        .anyMatch(ClusterQuota.Member::canAcquire)));
+    }
+
+    /**
+     * Returns whether the quota of the cluster allows a new VM, without reserving it.
+     */
+    public boolean canAcquire(@NotNull String cluster) {
+        ClusterQuota.Member quota = this.clusterQuotas.get(cluster);
+        return quota == null || quota.canAcquire();
+    }
+
+    @NotNull
+    public DeployQuarantine getDeployQuarantine() {
+        return this.deployQuarantine;
+    }
+
+    public void setClusterQuota(@NotNull String cluster, @NotNull ClusterQuota.Member clusterQuota) {
+        this.clusterQuotas.put(cluster, clusterQuota);
+    }
+
+    @Nullable
+    public DeletionQueue getDeletionQueue() {
+        return this.deletionQueue;
+    }
+
+    public void setDeletionQueue(@Nullable DeletionQueue deletionQueue) {
+        this.deletionQueue = deletionQueue;
+    }
+
+    void unregisterClusterQuota() {
+        this.clusterQuotas.values().forEach(ClusterQuota.Member::unregister);
+        this.clusterQuotas.clear();
+    }
+
+    /**
+     * Returns the number of VMs held by the image, including the idle ones.
+     */
+    public int getUsedSlots() {
+        return this.instances.size() + this.idleVms.size();
+    }
+
+    /**
+     * Returns the number of VMs held by the image whose instance ids are accepted by the filter, including the
+     * idle ones.
+     */
+    public int getUsedSlots(@NotNull final Predicate<String> owned) {
+        return (int) (this.instances.values().stream().filter(i -> owned.test(i.getInstanceId())).count()
+                + this.idleVms.stream().filter(vm -> owned.test(vm.getId())).count());
+    }
+
+    private boolean hasFreeSlots() {
+        return this.instanceLimit == OrkaConstants.UNLIMITED_INSTANCES
+                || this.instanceLimit > this.instances.size() + this.idleVms.size();
     }
 
     @NotNull
-    public synchronized OrkaCloudInstance startNewInstance(@NotNull final String instanceId) {
-        if (!this.canStartNewInstance()) {
-            LOG.debug(String.format("Quota exceeded. Number of instances: %s and limit: %s", this.instances.size(),
-                    this.instanceLimit));
+    public OrkaCloudInstance startNewInstance(@NotNull final String instanceId) {
+        return this.startNewInstance(instanceId, OrkaConstants.PRIMARY_CLUSTER);
+    }
+
+    /**
+     * Starts an instance deployed on the cluster, reserving a VM from the quota of the cluster endpoint.
+     */
+    @NotNull
+    public synchronized OrkaCloudInstance startNewInstance(@NotNull final String instanceId,
+            @NotNull final String cluster) {
+        if (!this.hasFreeSlots()) {
+            LOG.debug(String.format("Quota exceeded. Number of instances: %s, idle VMs: %s and limit: %s",
+                    this.instances.size(), this.idleVms.size(), this.instanceLimit));
             throw new QuotaException("Maximum number of instances already launched." + this.getName());
         }
+        ClusterQuota.Member quota = this.clusterQuotas.get(cluster);
+        if (quota != null && !quota.tryAcquire()) {
+            throw new QuotaException("Orka cluster capacity reached." + this.getName());
+        }
         LOG.debug(String.format("Starting new instance with id: %s", instanceId));
         final OrkaCloudInstance instance = this.createInstance(instanceId);
-        this.instances.put(instanceId, instance);
+        this.addInstance(instance);
+        if (quota != null) {
+            quota.acquired();
+        }
+        return instance;
+    }
+
+    @NotNull
+    public synchronized OrkaCloudInstance startReusedInstance(@NotNull final PooledVm vm) {
+        LOG.debug(String.format("Starting reused instance with id: %s", vm.getId()));
+        final OrkaCloudInstance instance = this.createInstance(vm.getId());
+        instance.setHost(vm.getHost());
+        instance.setPort(vm.getPort());
+        instance.setVmCreatedTime(vm.getCreatedTime());
+        instance.setBuildCount(vm.getBuildCount());
+        instance.setVmConfig(vm.getVmConfig());
+        this.addInstance(instance);
         return instance;
     }
 
+    /**
+     * Adds a running instance of the client this image replaces, keeping its VM and agent.
+     */
+    @NotNull
+    public synchronized OrkaCloudInstance adoptInstance(@NotNull final OrkaCloudInstance previous) {
+        LOG.debug(String.format("Adopting instance with id: %s", previous.getInstanceId()));
+        final OrkaCloudInstance instance = this.createInstance(previous.getInstanceId());
+        instance.setHost(previous.getHost());
+        instance.setPort(previous.getPort());
+        instance.setNode(previous.getNode());
+        instance.setVmCreatedTime(previous.getVmCreatedTime());
+        instance.setVmConfig(previous.getVmConfig());
+        instance.setBuildCount(previous.getBuildCount());
+        instance.setBusy(previous.isBusy());
+        this.addInstance(instance);
+        instance.setStatus(InstanceStatus.RUNNING);
+        return instance;
+    }
+
+    @Nullable
+    public PooledVm takeIdleVm() {
+        PooledVm vm = this.idleVms.pollLast();
+        if (vm != null) {
+            PoolChangeFeed.getInstance().imageChanged(this);
+        }
+        return vm;
+    }
+
+    /**
+     * Takes the most recently pooled VM accepted by the filter.
+     */
+    @Nullable
+    public PooledVm takeIdleVm(@NotNull final Predicate<PooledVm> filter) {
+        Iterator<PooledVm> iterator = this.idleVms.descendingIterator();
+        while (iterator.hasNext()) {
+            PooledVm vm = iterator.next();
+            if (filter.test(vm) && this.idleVms.removeLastOccurrence(vm)) {
+                PoolChangeFeed.getInstance().imageChanged(this);
+                return vm;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes the VM accepted by the filter that has been in the idle pool the longest, to give its capacity back.
+     */
+    @Nullable
+    public PooledVm takeLeastRecentIdleVm(@NotNull final Predicate<PooledVm> filter) {
+        Iterator<PooledVm> iterator = this.idleVms.iterator();
+        while (iterator.hasNext()) {
+            PooledVm vm = iterator.next();
+            if (filter.test(vm) && this.idleVms.removeFirstOccurrence(vm)) {
+                PoolChangeFeed.getInstance().imageChanged(this);
+                return vm;
+            }
+        }
+        return null;
+    }
+
+    public void offerIdleVm(@NotNull final PooledVm vm) {
+        LOG.debug(String.format("Returning VM to the idle pool: %s", vm));
+        this.idleVms.offerLast(vm);
+        PoolChangeFeed.getInstance().imageChanged(this);
+    }
+
+    public boolean removeIdleVm(@NotNull final PooledVm vm) {
+        boolean removed = this.idleVms.remove(vm);
+        if (removed) {
+            PoolChangeFeed.getInstance().imageChanged(this);
+        }
+        return removed;
+    }
+
+    @NotNull
+    public List<PooledVm> getIdleVms() {
+        return new ArrayList<PooledVm>(this.idleVms);
+    }
+
     protected OrkaCloudInstance createInstance(String instanceId) {
         return new OrkaCloudInstance(this, instanceId, this.getNamespace());
     }
@@ -115,15 +308,50 @@ public class OrkaCloudImage implements CloudImage {
         this.removeInstance(instanceId);
     }
 
+    public void addInstanceListener(@NotNull InstanceListener listener) {
+        this.listeners.add(listener);
+    }
+
+    public void removeInstanceListener(@NotNull InstanceListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    void statusChanged(OrkaCloudInstance instance, InstanceStatus from, InstanceStatus to) {
+        for (InstanceListener listener : this.listeners) {
+            try {
+                listener.statusChanged(instance, from, to);
+            } catch (RuntimeException e) {
+                LOG.warn(String.format("Instance listener failed for instance: %s", instance.getInstanceId()), e);
+            }
+        }
+    }
+
     void addInstance(OrkaCloudInstance instance) {
-        this.instances.put(instance.getInstanceId(), instance);
+        this.instances.add(instance);
+        PoolChangeFeed.getInstance().instanceChanged(instance);
+    }
+
+    void bindInstanceId(OrkaCloudInstance instance, String vmId) {
+        String previous = instance.getInstanceId();
+        if (this.instances.bind(instance, vmId) && !previous.equals(vmId)) {
+            PoolChangeFeed.getInstance().instanceRemoved(this, previous);
+            PoolChangeFeed.getInstance().instanceChanged(instance);
+        }
+    }
+
+    boolean containsInstance(OrkaCloudInstance instance) {
+        return this.instances.get(instance.getInstanceId()) == instance;
     }
 
     void removeInstance(String instanceId) {
-        this.instances.remove(instanceId);
+        OrkaCloudInstance instance = this.instances.remove(instanceId);
+        if (instance != null) {
+            PoolChangeFeed.getInstance().instanceRemoved(this, instance.getInstanceId());
+        }
     }
 
     void dispose() {
         this.instances.clear();
+        this.idleVms.clear();
     }
 }
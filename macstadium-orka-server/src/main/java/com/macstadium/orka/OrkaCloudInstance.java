@@ -4,6 +4,8 @@ import com.intellij.openapi.diagnostic.Logger;
 
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import jetbrains.buildServer.clouds.CloudErrorInfo;
 import jetbrains.buildServer.clouds.CloudInstance;
@@ -14,52 +16,139 @@ import jetbrains.buildServer.serverSide.AgentDescription;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+/**
+ * An Orka VM running a TeamCity agent. The status only changes along {@link InstanceTransitions}, with
+ * compare-and-set, and the image listeners are notified of each change. The host, port and ID are written
+ * before the status change that makes them relevant, so they are visible to threads that observe the status.
+ */
 public class OrkaCloudInstance implements CloudInstance {
     private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
 
     @NotNull
-    private String id;
+    private final String pluginId;
     @NotNull
-    private String namespace;
+    private volatile String id;
+    @NotNull
+    private final String namespace;
     @NotNull
     private final OrkaCloudImage image;
     @NotNull
     private final Date startDate;
     @NotNull
-    private String host;
-    private int sshPort;
-    @NotNull
-    private volatile InstanceStatus status;
+    private volatile String host;
+    private volatile int sshPort;
+    @Nullable
+    private volatile String node;
+    private final AtomicReference<InstanceStatus> status = new AtomicReference<InstanceStatus>(
+            InstanceStatus.SCHEDULED_TO_START);
+    private volatile long statusSince;
     @Nullable
     private volatile CloudErrorInfo errorInfo;
-    private boolean markedForTermination;
+    @Nullable
+    private volatile String agentOutput;
+    private volatile boolean markedForTermination;
+    private volatile boolean busy;
+    private volatile boolean retired;
+    private volatile long idleSince;
+    private volatile long vmCreatedTime;
+    private volatile String vmConfig;
+    private final AtomicInteger buildCount = new AtomicInteger();
 
     public OrkaCloudInstance(@NotNull final OrkaCloudImage image, @NotNull final String instanceId,
             @NotNull final String namespace) {
         this.image = image;
         this.namespace = namespace;
-        this.status = InstanceStatus.SCHEDULED_TO_START;
+        this.pluginId = instanceId;
         this.id = instanceId;
         this.startDate = new Date();
+        this.statusSince = this.startDate.getTime();
+        this.idleSince = this.startDate.getTime();
+        this.vmCreatedTime = this.startDate.getTime();
     }
 
     public boolean isMarkedForTermination() {
-        return markedForTermination;
+        return this.markedForTermination;
     }
 
     public void setMarkedForTermination(boolean markedForTermination) {
         this.markedForTermination = markedForTermination;
     }
 
+    public boolean isBusy() {
+        return this.busy;
+    }
+
+    public void setBusy(boolean busy) {
+        this.busy = busy;
+        if (!busy) {
+            this.idleSince = System.currentTimeMillis();
+        }
+    }
+
+    public boolean isRetired() {
+        return this.retired;
+    }
+
+    public void setRetired(boolean retired) {
+        this.retired = retired;
+    }
+
+    public long getIdleSince() {
+        return this.idleSince;
+    }
+
+    public long getVmCreatedTime() {
+        return this.vmCreatedTime;
+    }
+
+    public void setVmCreatedTime(long vmCreatedTime) {
+        this.vmCreatedTime = vmCreatedTime;
+    }
+
+    /**
+     * Returns the VM config the VM was deployed from, or null if it is not known.
+     */
+    @Nullable
+    public String getVmConfig() {
+        return this.vmConfig;
+    }
+
+    public void setVmConfig(@Nullable String vmConfig) {
+        this.vmConfig = vmConfig;
+    }
+
+    public int getBuildCount() {
+        return this.buildCount.get();
+    }
+
+    public void setBuildCount(int buildCount) {
+        this.buildCount.set(buildCount);
+    }
+
+    public void incrementBuildCount() {
+        this.buildCount.incrementAndGet();
+    }
+
     @NotNull
     public String getInstanceId() {
         return this.id;
     }
 
-    public void setInstanceId(String id) {
-        this.image.removeInstance(this.getInstanceId());
+    /**
+     * Returns the ID assigned when the instance was started, which stays the same once the instance is known by
+     * its VM name.
+     */
+    @NotNull
+    public String getPluginId() {
+        return this.pluginId;
+    }
+
+    public void setInstanceId(@NotNull String id) {
+        this.image.bindInstanceId(this, id);
+    }
+
+    void assignInstanceId(@NotNull String id) {
         this.id = id;
-        this.image.addInstance(this);
     }
 
     @NotNull
@@ -88,11 +177,46 @@ public class OrkaCloudInstance implements CloudInstance {
 
     @NotNull
     public InstanceStatus getStatus() {
-        return this.status;
+        return this.status.get();
+    }
+
+    /**
+     * Moves the instance to the given status if the transition is allowed from its current status. Returns
+     * whether the instance is in the given status afterwards.
+     */
+    public boolean setStatus(@NotNull InstanceStatus status) {
+        while (true) {
+            InstanceStatus current = this.status.get();
+            if (current == status) {
+                return true;
+            }
+            if (!InstanceTransitions.isAllowed(current, status)) {
+                LOG.debug(String.format("Ignoring status change of instance: %s from %s to %s", this.id, current,
+                        status));
+                return false;
+            }
+            if (this.compareAndSetStatus(current, status)) {
+                return true;
+            }
+        }
     }
 
-    public void setStatus(InstanceStatus status) {
-        this.status = status;
+    /**
+     * Moves the instance to the given status only if it is still in the expected one and the transition is
+     * allowed.
+     */
+    public boolean compareAndSetStatus(@NotNull InstanceStatus expected, @NotNull InstanceStatus status) {
+        if (expected == status || !InstanceTransitions.isAllowed(expected, status)
+                || !this.status.compareAndSet(expected, status)) {
+            return false;
+        }
+        this.statusSince = System.currentTimeMillis();
+        this.image.statusChanged(this, expected, status);
+        return true;
+    }
+
+    public long getStatusSince() {
+        return this.statusSince;
     }
 
     @NotNull
@@ -107,12 +231,35 @@ public class OrkaCloudInstance implements CloudInstance {
 
     public void setHost(String host) {
         this.host = host;
+        PoolChangeFeed.getInstance().instanceChanged(this);
+    }
+
+    @Nullable
+    public String getNode() {
+        return this.node;
+    }
+
+    public void setNode(@Nullable String node) {
+        this.node = node;
+        PoolChangeFeed.getInstance().instanceChanged(this);
     }
 
     public int getPort() {
         return this.sshPort;
     }
 
+    /**
+     * Returns the captured output of the last agent start command, or null if it has not completed.
+     */
+    @Nullable
+    public String getAgentOutput() {
+        return this.agentOutput;
+    }
+
+    public void setAgentOutput(@Nullable String agentOutput) {
+        this.agentOutput = agentOutput;
+    }
+
     public void setPort(int sshPort) {
         this.sshPort = sshPort;
     }
@@ -0,0 +1,151 @@
+package com.macstadium.orka;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.macstadium.orka.client.OrkaClient;
+import com.macstadium.orka.client.ResponseBase;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jetbrains.buildServer.log.Loggers;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * One Orka cluster a profile deploys to. VMs of the primary cluster keep their Orka name as instance id,
+ * VMs of the other clusters are suffixed with the cluster name, so that instance ids stay unique when
+ * two clusters give a VM the same name.
+ * Calls to the cluster go through its circuit breaker, and their latency is tracked to balance deployments.
+ */
+public class OrkaCluster {
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
+    static final char SEPARATOR = '@';
+    static final int UNLIMITED = 0;
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    public interface Call<T extends ResponseBase> {
+        T execute(OrkaClient client) throws IOException;
+    }
+
+    private final String name;
+    private final boolean primary;
+    private final OrkaClient client;
+    private final Map<String, String> nodeMappings;
+    private final int capacity;
+    private final long slowCallThreshold;
+    private final CircuitBreaker circuitBreaker;
+    private final NodePlacement nodePlacement;
+    private final DeployCoordinator deployCoordinator;
+    private final AtomicInteger deploying = new AtomicInteger();
+    private volatile double latency;
+
+    public OrkaCluster(@NotNull String name, boolean primary, @NotNull OrkaClient client,
+            @NotNull Map<String, String> nodeMappings, int capacity, long slowCallThreshold,
+            @NotNull CircuitBreaker circuitBreaker, @NotNull NodePlacement nodePlacement,
+            @NotNull DeployCoordinator deployCoordinator) {
+        this.name = name;
+        this.primary = primary;
+        this.client = client;
+        this.nodeMappings = nodeMappings;
+        this.capacity = capacity;
+        this.slowCallThreshold = slowCallThreshold;
+        this.circuitBreaker = circuitBreaker;
+        this.nodePlacement = nodePlacement;
+        this.deployCoordinator = deployCoordinator;
+    }
+
+    @NotNull
+    public String getName() {
+        return this.name;
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    @NotNull
+    public NodePlacement getNodePlacement() {
+        return this.nodePlacement;
+    }
+
+    @NotNull
+    public DeployCoordinator getDeployCoordinator() {
+        return this.deployCoordinator;
+    }
+
+    public boolean isAvailable() {
+        return this.circuitBreaker.isAvailable();
+    }
+
+    /**
+     * Returns the average latency of the calls to the cluster in milliseconds.
+     */
+    public double getLatency() {
+        return this.latency;
+    }
+
+    AtomicInteger getDeploying() {
+        return this.deploying;
+    }
+
+    @NotNull
+    public String getInstanceId(@NotNull String vmName) {
+        return this.primary ? vmName : vmName + SEPARATOR + this.name;
+    }
+
+    @NotNull
+    public static String getVmName(@NotNull String instanceId) {
+        int index = instanceId.lastIndexOf(SEPARATOR);
+        return index < 0 ? instanceId : instanceId.substring(0, index);
+    }
+
+    public boolean owns(@NotNull String instanceId) {
+        int index = instanceId.lastIndexOf(SEPARATOR);
+        return this.primary ? index < 0 : index >= 0 && this.name.equals(instanceId.substring(index + 1));
+    }
+
+    @NotNull
+    public String getRealHost(String host) {
+        return this.nodeMappings.keySet().stream().filter(k -> k.equalsIgnoreCase(host)).findFirst()
+                .map(this.nodeMappings::get).orElse(host);
+    }
+
+    /**
+     * Executes a call to the cluster, recording failures and calls slower than the threshold in the circuit
+     * breaker. Slow calls still return their response. Deployments are not checked for slowness and do not
+     * count towards the latency, since they take minutes.
+     */
+    public <T extends ResponseBase> T call(@NotNull Call<T> call, boolean checkSlow) throws IOException {
+        if (!this.circuitBreaker.tryAcquire()) {
+            throw new IOException(String.format("Orka cluster %s is unavailable", this.name));
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T response = call.execute(this.client);
+            failed = response != null && response.getHttpResponse() != null
+                    && response.getHttpResponse().getCode() >= 500;
+            return response;
+        } finally {
+            long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (checkSlow) {
+                this.latency = this.latency == 0 ? duration
+                        : LATENCY_WEIGHT * duration + (1 - LATENCY_WEIGHT) * this.latency;
+            }
+            if (failed || (checkSlow && duration > this.slowCallThreshold)) {
+                LOG.debug(String.format("Call to Orka cluster %s %s after %sms", this.name,
+                        failed ? "failed" : "was slow", duration));
+                this.circuitBreaker.failure();
+            } else {
+                this.circuitBreaker.success();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
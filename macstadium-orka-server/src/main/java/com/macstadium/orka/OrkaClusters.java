@@ -0,0 +1,160 @@
+package com.macstadium.orka;
+
+import com.intellij.openapi.util.text.StringUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jetbrains.buildServer.clouds.InstanceStatus;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The Orka clusters of a profile: the endpoint of the profile, followed by the additional clusters.
+ * New VMs go to the available cluster with the most free capacity, weighted down by the latency of its API.
+ */
+public class OrkaClusters {
+    private final List<OrkaCluster> clusters;
+
+    public OrkaClusters(@NotNull List<OrkaCluster> clusters) {
+        this.clusters = Collections.unmodifiableList(new ArrayList<OrkaCluster>(clusters));
+    }
+
+    @NotNull
+    public List<OrkaCluster> getAll() {
+        return this.clusters;
+    }
+
+    @NotNull
+    public OrkaCluster getPrimary() {
+        return this.clusters.get(0);
+    }
+
+    @NotNull
+    public OrkaCluster forInstance(@NotNull String instanceId) {
+        return this.clusters.stream().filter(c -> c.owns(instanceId)).findFirst().orElse(this.getPrimary());
+    }
+
+    /**
+     * Returns the cluster for a new VM, or null if every cluster is unavailable or full.
+     */
+    @Nullable
+    public OrkaCluster select(@NotNull Collection<OrkaCloudImage> images, @NotNull Set<OrkaCluster> excluded) {
+        Map<OrkaCluster, Integer> free = new HashMap<OrkaCluster, Integer>();
+        this.clusters.forEach(c -> free.put(c, this.getFreeCapacity(c, images)));
+        return this.clusters.stream().filter(c -> !excluded.contains(c) && c.isAvailable() && free.get(c) > 0)
+                .max(Comparator.comparingDouble((OrkaCluster c) -> getScore(free.get(c), c.getLatency())))
+                .orElse(null);
+    }
+
+    /**
+     * Scales the free capacity down by the latency, so that a cluster with a slow API is chosen only when it has
+     * noticeably more room.
+     */
+    static double getScore(int free, double latency) {
+        return free * 1000.0 / (1000.0 + latency);
+    }
+
+    public boolean hasAvailableCluster(@NotNull Collection<OrkaCloudImage> images) {
+        return this.select(images, Collections.emptySet()) != null;
+    }
+
+    int getFreeCapacity(OrkaCluster cluster, Collection<OrkaCloudImage> images) {
+        if (cluster.getCapacity() == OrkaCluster.UNLIMITED) {
+            return Integer.MAX_VALUE;
+        }
+        int used = cluster.getDeploying().get();
+        for (OrkaCloudImage image : images) {
+            used += (int) image.getInstances().stream()
+                    .filter(i -> i.getStatus() != InstanceStatus.SCHEDULED_TO_START
+                            && cluster.owns(i.getInstanceId()))
+                    .count();
+            used += (int) image.getIdleVms().stream().filter(vm -> cluster.owns(vm.getId())).count();
+        }
+        return cluster.getCapacity() - used;
+    }
+
+    /**
+     * Parses the additional clusters, one per line in "NAME;ENDPOINT;CAPACITY;PRIVATE_HOST=PUBLIC_HOST,..."
+     * format, with their tokens in "NAME=TOKEN" format separated by white space.
+     */
+    @NotNull
+    public static List<Settings> parse(@Nullable String clusters, @Nullable String tokens) {
+        List<Settings> result = new ArrayList<Settings>();
+        if (StringUtil.isEmpty(clusters)) {
+            return result;
+        }
+        Map<String, String> tokensByName = new HashMap<String, String>();
+        if (StringUtil.isNotEmpty(tokens)) {
+            for (String token : tokens.trim().split("\\s+")) {
+                int index = token.indexOf('=');
+                if (index > 0) {
+                    tokensByName.put(token.substring(0, index), token.substring(index + 1));
+                }
+            }
+        }
+        for (String line : clusters.split("\\r?\\n|\\r")) {
+            String[] parts = line.trim().split(";");
+            if (parts.length < 2 || StringUtil.isEmpty(parts[0].trim())) {
+                continue;
+            }
+            String name = parts[0].trim();
+            String capacity = parts.length > 2 ? parts[2].trim() : "";
+            Map<String, String> mappings = new HashMap<String, String>();
+            if (parts.length > 3) {
+                for (String mapping : parts[3].split(",")) {
+                    String[] pair = mapping.trim().split("=");
+                    if (pair.length == 2) {
+                        mappings.put(pair[0].trim(), pair[1].trim());
+                    }
+                }
+            }
+            result.add(new Settings(name, parts[1].trim(), tokensByName.get(name),
+                    StringUtil.isEmpty(capacity) ? OrkaCluster.UNLIMITED : Integer.parseInt(capacity), mappings));
+        }
+        return result;
+    }
+
+    public static class Settings {
+        private final String name;
+        private final String endpoint;
+        private final String token;
+        private final int capacity;
+        private final Map<String, String> nodeMappings;
+
+        Settings(String name, String endpoint, String token, int capacity, Map<String, String> nodeMappings) {
+            this.name = name;
+            this.endpoint = endpoint;
+            this.token = token;
+            this.capacity = capacity;
+            this.nodeMappings = nodeMappings;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public String getEndpoint() {
+            return this.endpoint;
+        }
+
+        public String getToken() {
+            return this.token;
+        }
+
+        public int getCapacity() {
+            return this.capacity;
+        }
+
+        public Map<String, String> getNodeMappings() {
+            return this.nodeMappings;
+        }
+    }
+}
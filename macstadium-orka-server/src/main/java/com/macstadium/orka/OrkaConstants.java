@@ -19,6 +19,8 @@ public class OrkaConstants {
     @NotNull
     public static final String VM_NAME = "cloud.orka.vm.name";
     @NotNull
+    public static final String VM_CONFIGS = "cloud.orka.vm.configs";
+    @NotNull
     public static final String NAMESPACE = "cloud.orka.namespace";
     @NotNull
     public static final String TOKEN = Constants.SECURE_PROPERTY_PREFIX + "cloud.orka.token";
@@ -33,6 +35,56 @@ public class OrkaConstants {
     @NotNull
     public static final String NODE_MAPPINGS = "cloud.orka.node.mappings";
     @NotNull
+    public static final String PREWARM_INSTANCES = "cloud.orka.prewarm.instances";
+    @NotNull
+    public static final String REUSE_VMS = "cloud.orka.reuse.enabled";
+    @NotNull
+    public static final String REUSE_CLEANUP_SCRIPT = "cloud.orka.reuse.cleanup.script";
+    @NotNull
+    public static final String REUSE_MAX_BUILDS = "cloud.orka.reuse.max.builds";
+    @NotNull
+    public static final String REUSE_MAX_AGE = "cloud.orka.reuse.max.age";
+    @NotNull
+    public static final String REUSE_PARK_MODE = "cloud.orka.reuse.park.mode";
+    @NotNull
+    public static final String REUSE_MAX_IDLE_TIME = "cloud.orka.reuse.max.idle.time";
+    @NotNull
+    public static final String PLACEMENT_STRATEGY = "cloud.orka.placement.strategy";
+    @NotNull
+    public static final String PLACEMENT_NODE = "cloud.orka.placement.node";
+    @NotNull
+    public static final String HEALTH_CHECK_INTERVAL = "cloud.orka.health.check.interval";
+    @NotNull
+    public static final String RECYCLE_MAX_LIFETIME = "cloud.orka.recycle.max.lifetime";
+    @NotNull
+    public static final String RECYCLE_MAX_IDLE = "cloud.orka.recycle.max.idle";
+    @NotNull
+    public static final String RECYCLE_MIN_INSTANCES = "cloud.orka.recycle.min.instances";
+    @NotNull
+    public static final String DEPLOY_WAVE_SIZE = "cloud.orka.deploy.wave.size";
+    @NotNull
+    public static final String DEPLOY_WAVE_DELAY = "cloud.orka.deploy.wave.delay";
+    @NotNull
+    public static final String CLUSTER_CAPACITY = "cloud.orka.cluster.capacity";
+    @NotNull
+    public static final String CLUSTER_WEIGHT = "cloud.orka.cluster.weight";
+    @NotNull
+    public static final String PRIMARY_CLUSTER = "primary";
+    @NotNull
+    public static final String PRIMARY_CLUSTER_CAPACITY = "cloud.orka.primary.capacity";
+    @NotNull
+    public static final String CLUSTERS = "cloud.orka.clusters";
+    @NotNull
+    public static final String CLUSTER_TOKENS = Constants.SECURE_PROPERTY_PREFIX + "cloud.orka.clusters.tokens";
+    @NotNull
+    public static final String AGENT_REGISTRATION_TIMEOUT = "cloud.orka.agent.registration.timeout";
+    @NotNull
+    public static final int DEFAULT_DEPLOY_WAVE_DELAY = 30;
+    @NotNull
+    public static final int DEFAULT_AGENT_REGISTRATION_TIMEOUT = 10;
+    @NotNull
+    public static final int DEFAULT_HEALTH_CHECK_INTERVAL = 60;
+    @NotNull
     public static final int UNLIMITED_INSTANCES = -1;
 
     public String getOrkaEndpoint() {
@@ -43,6 +95,10 @@ public class OrkaConstants {
         return VM_NAME;
     }
 
+    public String getVmConfigs() {
+        return VM_CONFIGS;
+    }
+
     public String getVmUser() {
         return VM_USER;
     }
@@ -67,6 +123,90 @@ public class OrkaConstants {
         return NODE_MAPPINGS;
     }
 
+    public String getPrewarmInstances() {
+        return PREWARM_INSTANCES;
+    }
+
+    public String getReuseVms() {
+        return REUSE_VMS;
+    }
+
+    public String getReuseCleanupScript() {
+        return REUSE_CLEANUP_SCRIPT;
+    }
+
+    public String getReuseMaxBuilds() {
+        return REUSE_MAX_BUILDS;
+    }
+
+    public String getReuseMaxAge() {
+        return REUSE_MAX_AGE;
+    }
+
+    public String getReuseParkMode() {
+        return REUSE_PARK_MODE;
+    }
+
+    public String getReuseMaxIdleTime() {
+        return REUSE_MAX_IDLE_TIME;
+    }
+
+    public String getPlacementStrategy() {
+        return PLACEMENT_STRATEGY;
+    }
+
+    public String getPlacementNode() {
+        return PLACEMENT_NODE;
+    }
+
+    public String getHealthCheckInterval() {
+        return HEALTH_CHECK_INTERVAL;
+    }
+
+    public String getRecycleMaxLifetime() {
+        return RECYCLE_MAX_LIFETIME;
+    }
+
+    public String getRecycleMaxIdle() {
+        return RECYCLE_MAX_IDLE;
+    }
+
+    public String getRecycleMinInstances() {
+        return RECYCLE_MIN_INSTANCES;
+    }
+
+    public String getDeployWaveSize() {
+        return DEPLOY_WAVE_SIZE;
+    }
+
+    public String getDeployWaveDelay() {
+        return DEPLOY_WAVE_DELAY;
+    }
+
+    public String getClusterCapacity() {
+        return CLUSTER_CAPACITY;
+    }
+
+    public String getClusterWeight() {
+        return CLUSTER_WEIGHT;
+    }
+
+    public String getPrimaryClusterCapacity() {
+        return PRIMARY_CLUSTER_CAPACITY;
+    }
+
+    public String getClusters() {
+        return CLUSTERS;
+    }
+
+    public String getClusterTokens() {
+        return CLUSTER_TOKENS;
+    }
+
+    public String getAgentRegistrationTimeout() {
+        return AGENT_REGISTRATION_TIMEOUT;
+    }
+
     public String getNamespace() {
         return NAMESPACE;
     }
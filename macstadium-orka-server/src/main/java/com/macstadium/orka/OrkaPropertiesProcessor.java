@@ -0,0 +1,101 @@
+package com.macstadium.orka;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.text.StringUtil;
+import com.macstadium.orka.client.OrkaVMConfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.InvalidProperty;
+import jetbrains.buildServer.serverSide.PropertiesProcessor;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Validates a cloud profile when it is saved: required fields and numbers are checked, then the endpoint
+ * and token are used to look up the VM config, so that a profile that cannot deploy is rejected up front.
+ */
+public class OrkaPropertiesProcessor implements PropertiesProcessor {
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
+    private static final List<String> REQUIRED = Arrays.asList(OrkaConstants.ORKA_ENDPOINT, OrkaConstants.TOKEN,
+            OrkaConstants.VM_NAME, OrkaConstants.NAMESPACE, OrkaConstants.VM_USER, OrkaConstants.VM_PASSWORD);
+    private static final List<String> NUMBERS = Arrays.asList(OrkaConstants.PREWARM_INSTANCES,
+            OrkaConstants.REUSE_MAX_BUILDS, OrkaConstants.REUSE_MAX_AGE, OrkaConstants.REUSE_MAX_IDLE_TIME,
+            OrkaConstants.DEPLOY_WAVE_SIZE, OrkaConstants.DEPLOY_WAVE_DELAY, OrkaConstants.CLUSTER_CAPACITY,
+            OrkaConstants.CLUSTER_WEIGHT, OrkaConstants.PRIMARY_CLUSTER_CAPACITY, OrkaConstants.HEALTH_CHECK_INTERVAL,
+            OrkaConstants.RECYCLE_MAX_LIFETIME, OrkaConstants.RECYCLE_MAX_IDLE, OrkaConstants.RECYCLE_MIN_INSTANCES,
+            OrkaConstants.AGENT_REGISTRATION_TIMEOUT);
+
+    private final OrkaResourceCache resourceCache;
+
+    public OrkaPropertiesProcessor(@NotNull OrkaResourceCache resourceCache) {
+        this.resourceCache = resourceCache;
+    }
+
+    @NotNull
+    public Collection<InvalidProperty> process(@NotNull final Map<String, String> properties) {
+        List<InvalidProperty> result = new ArrayList<InvalidProperty>();
+        REQUIRED.stream().filter(name -> StringUtil.isEmptyOrSpaces(properties.get(name)))
+                .forEach(name -> result.add(new InvalidProperty(name, "The value is required")));
+        NUMBERS.stream().filter(name -> !isNumber(properties.get(name), 0))
+                .forEach(name -> result.add(new InvalidProperty(name, "Must be 0 or more, or blank")));
+        if (!isNumber(properties.get(OrkaConstants.INSTANCE_LIMIT), OrkaConstants.UNLIMITED_INSTANCES)) {
+            result.add(new InvalidProperty(OrkaConstants.INSTANCE_LIMIT, "Must be -1 (unlimited) or more"));
+        }
+        try {
+            OrkaClusters.parse(properties.get(OrkaConstants.CLUSTERS), properties.get(OrkaConstants.CLUSTER_TOKENS));
+        } catch (NumberFormatException e) {
+            result.add(new InvalidProperty(OrkaConstants.CLUSTERS, "The capacity of a cluster must be a number"));
+        }
+        if (result.isEmpty()) {
+            this.checkVMConfig(properties, result);
+        }
+        return result;
+    }
+
+    private void checkVMConfig(Map<String, String> properties, List<InvalidProperty> result) {
+        String endpoint = properties.get(OrkaConstants.ORKA_ENDPOINT).trim();
+        String vmName = properties.get(OrkaConstants.VM_NAME).trim();
+        List<OrkaVMConfig> configs;
+        try {
+            configs = this.resourceCache.getVMConfigs(endpoint, properties.get(OrkaConstants.TOKEN));
+        } catch (IOException e) {
+            LOG.debug(String.format("Profile validation cannot reach Orka endpoint: %s", endpoint), e);
+            result.add(new InvalidProperty(OrkaConstants.TOKEN,
+                    String.format("Cannot connect to Orka with this endpoint and token: %s", e.getMessage())));
+            return;
+        }
+        if (configs == null) {
+            configs = Collections.emptyList();
+        }
+        if (configs.stream().noneMatch(c -> vmName.equals(c.getName()))) {
+            result.add(new InvalidProperty(OrkaConstants.VM_NAME,
+                    String.format("VM config %s does not exist in Orka", vmName)));
+        }
+        for (String config : VMConfigSelector.parse(properties.get(OrkaConstants.VM_CONFIGS))) {
+            if (configs.stream().noneMatch(c -> config.equals(c.getName()))) {
+                result.add(new InvalidProperty(OrkaConstants.VM_CONFIGS,
+                        String.format("VM config %s does not exist in Orka", config)));
+                break;
+            }
+        }
+    }
+
+    private static boolean isNumber(String value, int min) {
+        if (StringUtil.isEmptyOrSpaces(value)) {
+            return true;
+        }
+        try {
+            return Integer.parseInt(value.trim()) >= min;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.macstadium.orka;
+
+import com.macstadium.orka.client.Image;
+import com.macstadium.orka.client.ImageResponse;
+import com.macstadium.orka.client.NodeResponse;
+import com.macstadium.orka.client.OrkaClient;
+import com.macstadium.orka.client.OrkaNode;
+import com.macstadium.orka.client.OrkaVMConfig;
+import com.macstadium.orka.client.ResponseBase;
+import com.macstadium.orka.client.VMConfigResponse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import jetbrains.buildServer.serverSide.executors.ExecutorServices;
+
+import org.jetbrains.annotations.NotNull;
+
+public class OrkaResourceCache {
+    private static final long TTL = TimeUnit.SECONDS.toMillis(30);
+    private static final long MAX_STALE = TimeUnit.MINUTES.toMillis(10);
+
+    private final ResourceCache<List<OrkaVMConfig>> vmConfigs;
+    private final ResourceCache<List<Image>> images;
+    private final ResourceCache<List<OrkaNode>> nodes;
+
+    public OrkaResourceCache(@NotNull final ExecutorServices executorServices) {
+        Executor executor = executorServices.getNormalExecutorService();
+        this.vmConfigs = new ResourceCache<List<OrkaVMConfig>>(executor, TTL, MAX_STALE);
+        this.images = new ResourceCache<List<Image>>(executor, TTL, MAX_STALE);
+        this.nodes = new ResourceCache<List<OrkaNode>>(executor, TTL, MAX_STALE);
+    }
+
+    public List<OrkaVMConfig> getVMConfigs(String endpoint, String token) throws IOException {
+        return this.vmConfigs.get(getKey(endpoint, token), () -> {
+            VMConfigResponse response = new OrkaClient(endpoint, token).getVMConfigs();
+            ensureSuccessful(response, "VM configs");
+            return response.getConfigs();
+        });
+    }
+
+    public List<Image> getImages(String endpoint, String token) throws IOException {
+        return this.images.get(getKey(endpoint, token), () -> {
+            ImageResponse response = new OrkaClient(endpoint, token).getImages();
+            ensureSuccessful(response, "images");
+            return response.getImages();
+        });
+    }
+
+    public List<OrkaNode> getNodes(String endpoint, String token, String namespace) throws IOException {
+        return this.nodes.get(getKey(endpoint, token) + '|' + namespace, () -> {
+            NodeResponse response = new OrkaClient(endpoint, token).getNodes(namespace);
+            ensureSuccessful(response, "nodes");
+            return response.getNodes();
+        });
+    }
+
+    public void evictExpired() {
+        this.vmConfigs.evictExpired();
+        this.images.evictExpired();
+        this.nodes.evictExpired();
+    }
+
+    static String getKey(String endpoint, String token) {
+        return endpoint + '|' + hash(token);
+    }
+
+    static String hash(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = digest.digest((value != null ? value : "").getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder();
+            for (byte b : bytes) {
+                result.append(String.format("%02x", b));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void ensureSuccessful(ResponseBase response, String resource) throws IOException {
+        if (!response.isSuccessful()) {
+            throw new IOException(String.format("Failed to get %s: %s (%s)", resource, response.getMessage(),
+                    response.getHttpResponse().getCode()));
+        }
+    }
+}
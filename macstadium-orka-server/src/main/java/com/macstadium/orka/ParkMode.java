@@ -0,0 +1,24 @@
+package com.macstadium.orka;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * What happens to a VM while it waits in the idle pool. Suspended and stopped VMs are resumed or started
+ * before they are handed out again.
+ */
+public enum ParkMode {
+    NONE, SUSPEND, STOP;
+
+    @NotNull
+    public static ParkMode fromString(@Nullable String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return NONE;
+        }
+        try {
+            return ParkMode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return NONE;
+        }
+    }
+}
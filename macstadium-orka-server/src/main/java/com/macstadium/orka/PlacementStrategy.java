@@ -0,0 +1,20 @@
+package com.macstadium.orka;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public enum PlacementStrategy {
+    NONE, LEAST_LOADED, SPREAD, PACK;
+
+    @NotNull
+    public static PlacementStrategy fromString(@Nullable String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return NONE;
+        }
+        try {
+            return PlacementStrategy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return NONE;
+        }
+    }
+}
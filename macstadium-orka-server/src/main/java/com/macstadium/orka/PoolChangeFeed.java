@@ -0,0 +1,221 @@
+package com.macstadium.orka;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import jetbrains.buildServer.clouds.CloudErrorInfo;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * In-memory feed of the changes to the Orka images and their instances, used to stream incremental updates
+ * to the pool dashboard. Changes are kept in a bounded ring buffer: a viewer that falls behind it, or
+ * connects for the first time, reloads the snapshot instead. Each image is registered with the project of its
+ * cloud profile, so that viewers only see the images of the project they may manage.
+ */
+public class PoolChangeFeed {
+    private static final String BUFFER_SIZE_PROPERTY = "teamcity.orka.dashboard.bufferSize";
+    private static final PoolChangeFeed INSTANCE = new PoolChangeFeed(
+            TeamCityProperties.getInteger(BUFFER_SIZE_PROPERTY, 1000));
+
+    private final Map<OrkaCloudImage, String> images = new ConcurrentHashMap<OrkaCloudImage, String>();
+    private final Map<OrkaCloudImage, String> projects = new ConcurrentHashMap<OrkaCloudImage, String>();
+    private final AtomicInteger imageCount = new AtomicInteger();
+    private final InstanceListener listener = (instance, from, to) -> this.instanceChanged(instance);
+    private final Change[] changes;
+    private long sequence;
+
+    PoolChangeFeed(int bufferSize) {
+        this.changes = new Change[Math.max(1, bufferSize)];
+    }
+
+    @NotNull
+    public static PoolChangeFeed getInstance() {
+        return INSTANCE;
+    }
+
+    public void register(@NotNull OrkaCloudImage image, @NotNull String projectId) {
+        this.projects.put(image, projectId);
+        this.images.put(image, "image-" + this.imageCount.incrementAndGet());
+        image.addInstanceListener(this.listener);
+        this.publish(new Change(Change.RESET, null, null, null));
+    }
+
+    public void unregister(@NotNull OrkaCloudImage image) {
+        image.removeInstanceListener(this.listener);
+        if (this.images.remove(image) != null) {
+            this.publish(new Change(Change.RESET, null, null, null));
+        }
+        this.projects.remove(image);
+    }
+
+    void imageChanged(@NotNull OrkaCloudImage image) {
+        String key = this.images.get(image);
+        if (key != null) {
+            this.publish(new Change(Change.IMAGE, key, ImageState.of(key, image, false), null)
+                    .forProject(this.projects.get(image)));
+        }
+    }
+
+    void instanceChanged(@NotNull OrkaCloudInstance instance) {
+        String key = this.images.get(instance.getImage());
+        if (key != null && instance.getImage().containsInstance(instance)) {
+            this.publish(new Change(Change.INSTANCE, key, null, InstanceState.of(instance))
+                    .forProject(this.projects.get(instance.getImage())));
+        }
+    }
+
+    void instanceRemoved(@NotNull OrkaCloudImage image, @NotNull String instanceId) {
+        String key = this.images.get(image);
+        if (key != null) {
+            this.publish(new Change(Change.REMOVED, key, null, new InstanceState(instanceId))
+                    .forProject(this.projects.get(image)));
+        }
+    }
+
+    private synchronized void publish(Change change) {
+        change.sequence = ++this.sequence;
+        this.changes[(int) (change.sequence % this.changes.length)] = change;
+    }
+
+    public synchronized long getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Returns the changes published after the given sequence, oldest first, or null if some of them are no
+     * longer in the buffer.
+     */
+    @Nullable
+    public synchronized List<Change> since(long sequence) {
+        if (sequence > this.sequence || this.sequence - sequence > this.changes.length) {
+            return null;
+        }
+        List<Change> result = new ArrayList<Change>((int) (this.sequence - sequence));
+        for (long i = sequence + 1; i <= this.sequence; i++) {
+            result.add(this.changes[(int) (i % this.changes.length)]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the state of the images of the project's cloud profiles.
+     */
+    @NotNull
+    public List<ImageState> snapshot(@NotNull String projectId) {
+        return this.images.entrySet().stream().filter(e -> projectId.equals(this.projects.get(e.getKey())))
+                .map(e -> ImageState.of(e.getValue(), e.getKey(), true))
+                .sorted((first, second) -> first.key.compareTo(second.key)).collect(Collectors.toList());
+    }
+
+    public static class Change {
+        public static final String RESET = "reset";
+        public static final String IMAGE = "image";
+        public static final String INSTANCE = "instance";
+        public static final String REMOVED = "removed";
+
+        private transient long sequence;
+        private transient String projectId;
+        private final String type;
+        private final String image;
+        private final ImageState imageState;
+        private final InstanceState instance;
+
+        Change(String type, String image, ImageState imageState, InstanceState instance) {
+            this.type = type;
+            this.image = image;
+            this.imageState = imageState;
+            this.instance = instance;
+        }
+
+        private Change forProject(@Nullable String projectId) {
+            this.projectId = projectId;
+            return this;
+        }
+
+        public long getSequence() {
+            return this.sequence;
+        }
+
+        public String getType() {
+            return this.type;
+        }
+
+        /**
+         * Returns whether a viewer of the project should receive the change. Resets go to every viewer.
+         */
+        public boolean isVisibleTo(@NotNull String projectId) {
+            return RESET.equals(this.type) || projectId.equals(this.projectId);
+        }
+    }
+
+    public static class ImageState {
+        private final String key;
+        private final String name;
+        private final String namespace;
+        private final int limit;
+        private final int idleVms;
+        private final int pendingDeletions;
+        private final long oldestDeletionSince;
+        private final List<InstanceState> instances;
+
+        ImageState(String key, String name, String namespace, int limit, int idleVms, int pendingDeletions,
+                long oldestDeletionSince, List<InstanceState> instances) {
+            this.key = key;
+            this.name = name;
+            this.namespace = namespace;
+            this.limit = limit;
+            this.idleVms = idleVms;
+            this.pendingDeletions = pendingDeletions;
+            this.oldestDeletionSince = oldestDeletionSince;
+            this.instances = instances;
+        }
+
+        static ImageState of(String key, OrkaCloudImage image, boolean withInstances) {
+            List<InstanceState> instances = withInstances
+                    ? image.getInstances().stream().map(i -> InstanceState.of((OrkaCloudInstance) i))
+                            .collect(Collectors.toList())
+                    : Collections.emptyList();
+            DeletionQueue deletions = image.getDeletionQueue();
+            return new ImageState(key, image.getName(), image.getNamespace(), image.getInstanceLimit(),
+                    image.getIdleVms().size(), deletions != null ? deletions.getDepth() : 0,
+                    deletions != null ? deletions.getOldestQueuedAt() : 0, instances);
+        }
+    }
+
+    public static class InstanceState {
+        private final String id;
+        private final String status;
+        private final long statusSince;
+        private final String host;
+        private final String node;
+        private final String error;
+
+        InstanceState(String id) {
+            this(id, null, 0, null, null, null);
+        }
+
+        InstanceState(String id, String status, long statusSince, String host, String node, String error) {
+            this.id = id;
+            this.status = status;
+            this.statusSince = statusSince;
+            this.host = host;
+            this.node = node;
+            this.error = error;
+        }
+
+        static InstanceState of(OrkaCloudInstance instance) {
+            CloudErrorInfo errorInfo = instance.getErrorInfo();
+            return new InstanceState(instance.getInstanceId(), instance.getStatus().name(),
+                    instance.getStatusSince(), instance.getHost(), instance.getNode(),
+                    errorInfo != null ? errorInfo.getMessage() : null);
+        }
+    }
+}
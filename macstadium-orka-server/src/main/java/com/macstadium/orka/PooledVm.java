@@ -0,0 +1,77 @@
+package com.macstadium.orka;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public class PooledVm {
+    @NotNull
+    private final String id;
+    @NotNull
+    private final String namespace;
+    @NotNull
+    private final String host;
+    private final int sshPort;
+    private final long createdTime;
+    private final int buildCount;
+    private final long pooledTime;
+    @Nullable
+    private final String vmConfig;
+
+    public PooledVm(@NotNull String id, @NotNull String namespace, @NotNull String host, int sshPort,
+            long createdTime, int buildCount) {
+        this(id, namespace, host, sshPort, createdTime, buildCount, null);
+    }
+
+    public PooledVm(@NotNull String id, @NotNull String namespace, @NotNull String host, int sshPort,
+            long createdTime, int buildCount, @Nullable String vmConfig) {
+        this.id = id;
+        this.namespace = namespace;
+        this.host = host;
+        this.sshPort = sshPort;
+        this.createdTime = createdTime;
+        this.buildCount = buildCount;
+        this.pooledTime = System.currentTimeMillis();
+        this.vmConfig = vmConfig;
+    }
+
+    @NotNull
+    public String getId() {
+        return this.id;
+    }
+
+    @NotNull
+    public String getNamespace() {
+        return this.namespace;
+    }
+
+    @NotNull
+    public String getHost() {
+        return this.host;
+    }
+
+    public int getPort() {
+        return this.sshPort;
+    }
+
+    public long getCreatedTime() {
+        return this.createdTime;
+    }
+
+    public int getBuildCount() {
+        return this.buildCount;
+    }
+
+    public long getPooledTime() {
+        return this.pooledTime;
+    }
+
+    @Nullable
+    public String getVmConfig() {
+        return this.vmConfig;
+    }
+
+    @Override
+    public String toString() {
+        return "PooledVm [Id=" + id + ", Host=" + host + ", SSH=" + sshPort + ", Builds=" + buildCount + "]";
+    }
+}
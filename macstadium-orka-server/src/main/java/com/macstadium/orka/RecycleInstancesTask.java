@@ -0,0 +1,109 @@
+package com.macstadium.orka;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+import jetbrains.buildServer.clouds.CloudImage;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.clouds.QuotaException;
+import jetbrains.buildServer.log.Loggers;
+
+/**
+ * Replaces instances that exceeded their maximum lifetime and removes instances that stayed idle for too
+ * long. Instances are recycled one at a time per image, and only once the previous replacement is up, so
+ * that the number of running instances does not drop below the configured minimum.
+ */
+public class RecycleInstancesTask implements Runnable {
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
+
+    private final OrkaCloudClient client;
+    private final RecyclePolicy policy;
+    private final LongSupplier clock;
+    private final Set<String> replaced = new HashSet<String>();
+
+    public RecycleInstancesTask(OrkaCloudClient client, RecyclePolicy policy) {
+        this(client, policy, System::currentTimeMillis);
+    }
+
+    RecycleInstancesTask(OrkaCloudClient client, RecyclePolicy policy, LongSupplier clock) {
+        this.client = client;
+        this.policy = policy;
+        this.clock = clock;
+    }
+
+    @Override
+    public synchronized void run() {
+        LOG.debug("Running recycle instances...");
+        Set<String> existing = new HashSet<String>();
+        this.client.getImages().forEach(image -> {
+            image.getInstances().forEach(i -> existing.add(i.getInstanceId()));
+            this.recycle((OrkaCloudImage) image);
+        });
+        this.replaced.retainAll(existing);
+        LOG.debug("Recycle instances task completed.");
+    }
+
+    private void recycle(OrkaCloudImage image) {
+        if (this.hasPendingInstances(image)) {
+            return;
+        }
+
+        long now = this.clock.getAsLong();
+        List<OrkaCloudInstance> running = image.getInstances().stream().map(i -> (OrkaCloudInstance) i)
+                .filter(i -> i.getStatus() == InstanceStatus.RUNNING && !i.isMarkedForTermination() && !i.isRetired())
+                .sorted(Comparator.comparingLong(OrkaCloudInstance::getVmCreatedTime)).collect(Collectors.toList());
+        boolean aboveMinimum = running.size() - 1 >= this.policy.getMinInstances();
+
+        Optional<OrkaCloudInstance> expired = running.stream()
+                .filter(i -> !i.isBusy() && this.policy.isLifetimeExceeded(i, now)).findFirst();
+        if (expired.isPresent()) {
+            OrkaCloudInstance instance = expired.get();
+            boolean hasReplacement = this.replaced.contains(instance.getInstanceId());
+            if (aboveMinimum) {
+                LOG.info(String.format("Instance %s exceeded its maximum lifetime, recycling", instance.getInstanceId()));
+                this.retire(instance);
+            }
+            if (!hasReplacement) {
+                this.startReplacement(image, instance);
+            }
+            return;
+        }
+
+        if (aboveMinimum) {
+            running.stream().filter(i -> this.policy.isIdleTimeExceeded(i, now)).findFirst().ifPresent(instance -> {
+                LOG.info(String.format("Instance %s exceeded its maximum idle time, terminating",
+                        instance.getInstanceId()));
+                this.retire(instance);
+            });
+        }
+    }
+
+    private boolean hasPendingInstances(CloudImage image) {
+        return image.getInstances().stream().anyMatch(i -> i.getStatus() == InstanceStatus.SCHEDULED_TO_START
+                || i.getStatus() == InstanceStatus.STARTING);
+    }
+
+    private void retire(OrkaCloudInstance instance) {
+        instance.setRetired(true);
+        this.client.terminateInstance(instance);
+    }
+
+    private void startReplacement(OrkaCloudImage image, OrkaCloudInstance instance) {
+        if (!this.client.canStartNewInstance(image)) {
+            return;
+        }
+        try {
+            this.client.preProvisionInstance(image);
+            this.replaced.add(instance.getInstanceId());
+        } catch (QuotaException e) {
+            LOG.debug(String.format("Cannot start replacement for instance %s", instance.getInstanceId()), e);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.macstadium.orka;
+
+import com.intellij.openapi.util.text.StringUtil;
+
+import java.util.concurrent.TimeUnit;
+
+import jetbrains.buildServer.clouds.CloudClientParameters;
+
+import org.jetbrains.annotations.NotNull;
+
+public class RecyclePolicy {
+    public static final RecyclePolicy DISABLED = new RecyclePolicy(0, 0, 0);
+
+    private final long maxLifetime;
+    private final long maxIdle;
+    private final int minInstances;
+
+    public RecyclePolicy(long maxLifetime, long maxIdle, int minInstances) {
+        this.maxLifetime = maxLifetime;
+        this.maxIdle = maxIdle;
+        this.minInstances = minInstances;
+    }
+
+    @NotNull
+    public static RecyclePolicy fromParameters(@NotNull CloudClientParameters params) {
+        String maxLifetime = params.getParameter(OrkaConstants.RECYCLE_MAX_LIFETIME);
+        String maxIdle = params.getParameter(OrkaConstants.RECYCLE_MAX_IDLE);
+        String minInstances = params.getParameter(OrkaConstants.RECYCLE_MIN_INSTANCES);
+        return new RecyclePolicy(
+                StringUtil.isEmpty(maxLifetime) ? 0 : TimeUnit.MINUTES.toMillis(Long.parseLong(maxLifetime.trim())),
+                StringUtil.isEmpty(maxIdle) ? 0 : TimeUnit.MINUTES.toMillis(Long.parseLong(maxIdle.trim())),
+                StringUtil.isEmpty(minInstances) ? 0 : Integer.parseInt(minInstances.trim()));
+    }
+
+    public boolean isEnabled() {
+        return this.maxLifetime > 0 || this.maxIdle > 0;
+    }
+
+    public int getMinInstances() {
+        return this.minInstances;
+    }
+
+    public boolean isLifetimeExceeded(@NotNull OrkaCloudInstance instance, long now) {
+        return this.maxLifetime > 0 && now - instance.getVmCreatedTime() >= this.maxLifetime;
+    }
+
+    public boolean isIdleTimeExceeded(@NotNull OrkaCloudInstance instance, long now) {
+        return this.maxIdle > 0 && !instance.isBusy() && now - instance.getIdleSince() >= this.maxIdle;
+    }
+}
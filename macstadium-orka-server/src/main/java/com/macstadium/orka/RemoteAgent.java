@@ -4,7 +4,14 @@ import com.intellij.openapi.diagnostic.Logger;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import jetbrains.buildServer.clouds.CloudInstanceUserData;
 import jetbrains.buildServer.clouds.InstanceStatus;
@@ -17,21 +24,36 @@ import net.schmizz.sshj.connection.channel.direct.Session;
 import net.schmizz.sshj.connection.channel.direct.Session.Command;
 import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
 
-import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class RemoteAgent {
     private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
     private static final int SSH_TIMEOUT = 60 * 1000;
+    private static final int SCRIPT_TIMEOUT = 10 * SSH_TIMEOUT;
 
-    private static final String START_COMMAND_FORMAT = "%s/bin/agent.sh start";
+    private static final String METADATA_UPLOAD_PATH = CommonConstants.METADATA_FILE_PATH + ".upload";
+    private static final String START_COMMAND_FORMAT = "mv -f " + METADATA_UPLOAD_PATH + " "
+            + CommonConstants.METADATA_FILE_PATH + " && %s/bin/agent.sh start 2>&1";
     private static final String STOP_COMMAND_FORMAT = "%s/bin/agent.sh stop";
 
+    private final Executor executor;
+
+    public RemoteAgent(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Uploads the instance metadata and runs the agent start command without waiting for it to finish. The
+     * output of the command is captured as it arrives, and the result is passed to the handler on the
+     * executor as soon as the command exits, times out or prints a known failure.
+     */
     public void startAgent(String instanceId, String imageId, String host, int sshPort, String sshUser,
-            String sshPassword, String agentDirectory, @NotNull final CloudInstanceUserData data) throws IOException {
+            String sshPassword, String agentDirectory, @Nullable final CloudInstanceUserData data,
+            Consumer<StartResult> exitHandler) throws IOException {
 
         File tempFile = File.createTempFile(CommonConstants.METADATA_FILE_PREFIX, ".tmp");
         String text = instanceId + System.lineSeparator() + imageId;
-        if (data.getCustomAgentConfigurationParameters()
+        if (data != null && data.getCustomAgentConfigurationParameters()
                 .containsKey(CommonConstants.STARTING_INSTANCE_ID_CONFIG_PARAM)) {
             text = text + System.lineSeparator() + data.getCustomAgentConfigurationParameters()
                     .get(CommonConstants.STARTING_INSTANCE_ID_CONFIG_PARAM);
@@ -41,19 +63,75 @@ public class RemoteAgent {
 
         LOG.debug("startAgentOnVM starting...");
 
-        try (SSHClient ssh = new SSHClient()) {
-            this.initSSHClient(ssh, host, sshPort, sshUser, sshPassword);
-            ssh.newSCPFileTransfer().upload(tempFile.getAbsolutePath(), "/tmp");
-            try (Session session = ssh.startSession()) {
+        SSHClient ssh = new SSHClient();
+        try (Tracer.Span span = Tracer.span("startAgent")) {
+            span.message("%s:%s", host, sshPort);
+            try (Tracer.Span connectSpan = Tracer.span("sshConnect")) {
+                this.initSSHClient(ssh, host, sshPort, sshUser, sshPassword);
+            }
+            try (Tracer.Span uploadSpan = Tracer.span("uploadMetadata")) {
+                ssh.newSCPFileTransfer().upload(tempFile.getAbsolutePath(), METADATA_UPLOAD_PATH);
+            } finally {
+                FileUtil.delete(tempFile);
+            }
+            try (Tracer.Span commandSpan = Tracer.span("startCommand")) {
                 LOG.debug("Executing SSH start command...");
 
+                Session session = ssh.startSession();
                 Command command = session.exec(String.format(START_COMMAND_FORMAT, agentDirectory));
-                command.join(SSH_TIMEOUT, TimeUnit.MILLISECONDS);
-                IOUtils.readFully(command.getInputStream()).toString();
+                this.executor.execute(() -> this.awaitExit(instanceId, ssh, session, command, exitHandler));
             }
+        } catch (IOException | RuntimeException e) {
+            ssh.close();
+            throw e;
         }
 
-        LOG.debug("startAgentOnVM completed.");
+        LOG.debug("startAgentOnVM command sent.");
+    }
+
+    private void awaitExit(String instanceId, SSHClient ssh, Session session, Command command,
+            Consumer<StartResult> exitHandler) {
+        AgentOutput output = new AgentOutput();
+        Integer exitStatus = null;
+        try (ssh; session) {
+            this.readOutput(command, output);
+            if (output.getFailure() == null) {
+                command.join(1, TimeUnit.SECONDS);
+                exitStatus = command.getExitStatus();
+            }
+            LOG.debug(String.format("startAgentOnVM completed for instance: %s with exit status: %s", instanceId,
+                    exitStatus));
+        } catch (IOException e) {
+            LOG.debug(String.format("startAgentOnVM error for instance: %s", instanceId), e);
+        }
+        exitHandler.accept(new StartResult(exitStatus, output));
+    }
+
+    /**
+     * Reads the output with blocking reads until the command closes its output or prints a known failure. The
+     * command is closed if it runs longer than the SSH timeout, which ends the read.
+     */
+    private void readOutput(Command command, AgentOutput output) throws IOException {
+        CompletableFuture<Void> deadline = CompletableFuture.runAsync(() -> this.close(command),
+                CompletableFuture.delayedExecutor(SSH_TIMEOUT, TimeUnit.MILLISECONDS));
+        char[] buffer = new char[1024];
+        try (Reader reader = new InputStreamReader(command.getInputStream(), StandardCharsets.UTF_8)) {
+            int read;
+            while (output.getFailure() == null && (read = reader.read(buffer)) >= 0) {
+                output.append(CharBuffer.wrap(buffer, 0, read));
+            }
+        } finally {
+            deadline.cancel(false);
+        }
+        output.finish();
+    }
+
+    private void close(Command command) {
+        try {
+            command.close();
+        } catch (IOException e) {
+            LOG.debug("Failed to close the agent start command", e);
+        }
     }
 
     public void stopAgent(OrkaCloudInstance orkaInstance, String imageId, String host, int sshPort, String sshUser,
@@ -78,6 +156,43 @@ public class RemoteAgent {
         LOG.debug("stopAgentOnVM completed.");
     }
 
+    public boolean runScript(String host, int sshPort, String sshUser, String sshPassword, String script) {
+        LOG.debug("runScriptOnVM starting...");
+
+        try (SSHClient ssh = new SSHClient()) {
+            this.initSSHClient(ssh, host, sshPort, sshUser, sshPassword);
+            try (Session session = ssh.startSession()) {
+                Command command = session.exec(script);
+                command.join(SCRIPT_TIMEOUT, TimeUnit.MILLISECONDS);
+                IOUtils.readFully(command.getInputStream()).toString();
+                Integer exitStatus = command.getExitStatus();
+                LOG.debug(String.format("runScriptOnVM completed with exit status: %s", exitStatus));
+                return exitStatus != null && exitStatus == 0;
+            }
+        } catch (IOException e) {
+            LOG.debug("runScriptOnVM error", e);
+            return false;
+        }
+    }
+
+    /**
+     * Connects and authenticates without running a command, and returns how long each step took.
+     */
+    public ConnectionTimes measureConnection(String host, int sshPort, String sshUser, String sshPassword)
+            throws IOException {
+        try (SSHClient ssh = new SSHClient()) {
+            ssh.setConnectTimeout(SSH_TIMEOUT);
+            ssh.setTimeout(SSH_TIMEOUT);
+            ssh.addHostKeyVerifier(new PromiscuousVerifier());
+            long start = System.nanoTime();
+            ssh.connect(host, sshPort);
+            long connected = System.nanoTime();
+            ssh.authPassword(sshUser, sshPassword);
+            return new ConnectionTimes(TimeUnit.NANOSECONDS.toMillis(connected - start),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connected));
+        }
+    }
+
     private void initSSHClient(SSHClient ssh, String host, int sshPort, String sshUser, String sshPassword)
             throws IOException {
         LOG.debug("Initializing SSH Client...");
@@ -90,4 +205,54 @@ public class RemoteAgent {
 
         LOG.debug("SSH Client initialized.");
     }
+
+    public static class StartResult {
+        @Nullable
+        private final Integer exitStatus;
+        private final AgentOutput output;
+
+        StartResult(@Nullable Integer exitStatus, AgentOutput output) {
+            this.exitStatus = exitStatus;
+            this.output = output;
+        }
+
+        /**
+         * Returns the exit status of the command, or null if it is unknown.
+         */
+        @Nullable
+        public Integer getExitStatus() {
+            return this.exitStatus;
+        }
+
+        @Nullable
+        public String getFailure() {
+            if (this.output.getFailure() != null) {
+                return this.output.getFailure();
+            }
+            return this.exitStatus != null && this.exitStatus != 0
+                    ? String.format("Agent start command exited with status %s", this.exitStatus) : null;
+        }
+
+        public String getOutput() {
+            return this.output.toString();
+        }
+    }
+
+    public static class ConnectionTimes {
+        private final long connectMillis;
+        private final long authMillis;
+
+        ConnectionTimes(long connectMillis, long authMillis) {
+            this.connectMillis = connectMillis;
+            this.authMillis = authMillis;
+        }
+
+        public long getConnectMillis() {
+            return this.connectMillis;
+        }
+
+        public long getAuthMillis() {
+            return this.authMillis;
+        }
+    }
 }
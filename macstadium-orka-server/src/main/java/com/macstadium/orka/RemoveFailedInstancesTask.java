@@ -29,6 +29,7 @@ public class RemoveFailedInstancesTask implements Runnable {
     private void terminateFailedInstances(CloudImage image) {
         List<OrkaCloudInstance> instancesToTerminate = image.getInstances().stream()
                 .map(instance -> (OrkaCloudInstance) instance).filter(instance -> instance.isMarkedForTermination())
+                .filter(instance -> !this.client.isDeletionPending(instance.getInstanceId()))
                 .collect(Collectors.toList());
 
         if (instancesToTerminate.size() > 0) {
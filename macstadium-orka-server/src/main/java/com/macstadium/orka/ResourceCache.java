@@ -0,0 +1,129 @@
+package com.macstadium.orka;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+import jetbrains.buildServer.log.Loggers;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Keyed TTL cache with stale-while-revalidate semantics.
+ * Fresh values are returned as is. Stale values are returned immediately while a single background
+ * refresh runs on the executor. Values older than the max stale age are loaded synchronously, with
+ * concurrent callers for the same key sharing one load.
+ */
+public class ResourceCache<T> {
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
+
+    public interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    private final Map<String, Entry<T>> entries = new ConcurrentHashMap<String, Entry<T>>();
+    private final Executor executor;
+    private final long ttlMillis;
+    private final long maxStaleMillis;
+    private final LongSupplier clock;
+
+    public ResourceCache(@NotNull Executor executor, long ttlMillis, long maxStaleMillis) {
+        this(executor, ttlMillis, maxStaleMillis, System::currentTimeMillis);
+    }
+
+    ResourceCache(@NotNull Executor executor, long ttlMillis, long maxStaleMillis, LongSupplier clock) {
+        this.executor = executor;
+        this.ttlMillis = ttlMillis;
+        this.maxStaleMillis = Math.max(ttlMillis, maxStaleMillis);
+        this.clock = clock;
+    }
+
+    public T get(@NotNull String key, @NotNull Loader<T> loader) throws IOException {
+        Entry<T> entry = this.entries.computeIfAbsent(key, k -> new Entry<T>());
+        Snapshot<T> snapshot = entry.snapshot;
+        if (snapshot != null) {
+            long age = this.clock.getAsLong() - snapshot.loadedAt;
+            if (age < this.ttlMillis) {
+                return snapshot.value;
+            }
+            if (age < this.maxStaleMillis) {
+                this.refreshAsync(key, entry, loader);
+                return snapshot.value;
+            }
+        }
+        return this.load(key, entry, loader);
+    }
+
+    public void evictExpired() {
+        long now = this.clock.getAsLong();
+        this.entries.values().removeIf(e -> e.snapshot != null && now - e.snapshot.loadedAt >= this.maxStaleMillis);
+    }
+
+    int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Loads the value, removing the entry if it never loaded, so that failed loads for wrong endpoints or tokens
+     * do not accumulate.
+     */
+    private T load(String key, Entry<T> entry, Loader<T> loader) throws IOException {
+        synchronized (entry) {
+            Snapshot<T> snapshot = entry.snapshot;
+            if (snapshot != null && this.clock.getAsLong() - snapshot.loadedAt < this.ttlMillis) {
+                return snapshot.value;
+            }
+            try {
+                T value = loader.load();
+                entry.snapshot = new Snapshot<T>(value, this.clock.getAsLong());
+                return value;
+            } catch (IOException | RuntimeException e) {
+                if (entry.snapshot == null) {
+                    this.entries.remove(key, entry);
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void refreshAsync(String key, Entry<T> entry, Loader<T> loader) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.executor.execute(() -> {
+                try {
+                    T value = loader.load();
+                    entry.snapshot = new Snapshot<T>(value, this.clock.getAsLong());
+                } catch (IOException | RuntimeException e) {
+                    LOG.debug(String.format("Background refresh failed for %s, serving stale value", key), e);
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            entry.refreshing.set(false);
+            LOG.debug("Background refresh could not be scheduled", e);
+        }
+    }
+
+    private static class Entry<T> {
+        private volatile Snapshot<T> snapshot;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+    }
+
+    private static class Snapshot<T> {
+        private final T value;
+        private final long loadedAt;
+
+        Snapshot(T value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
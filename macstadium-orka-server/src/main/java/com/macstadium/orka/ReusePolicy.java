@@ -0,0 +1,76 @@
+package com.macstadium.orka;
+
+import com.intellij.openapi.util.text.StringUtil;
+
+import java.util.concurrent.TimeUnit;
+
+import jetbrains.buildServer.clouds.CloudClientParameters;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public class ReusePolicy {
+    public static final ReusePolicy DISABLED = new ReusePolicy(false, null, 0, 0, ParkMode.NONE, 0);
+
+    private final boolean enabled;
+    @Nullable
+    private final String cleanupScript;
+    private final int maxBuilds;
+    private final long maxAge;
+    @NotNull
+    private final ParkMode parkMode;
+    private final long maxIdleTime;
+
+    public ReusePolicy(boolean enabled, @Nullable String cleanupScript, int maxBuilds, long maxAge,
+            @NotNull ParkMode parkMode, long maxIdleTime) {
+        this.enabled = enabled;
+        this.cleanupScript = cleanupScript;
+        this.maxBuilds = maxBuilds;
+        this.maxAge = maxAge;
+        this.parkMode = parkMode;
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    @NotNull
+    public static ReusePolicy fromParameters(@NotNull CloudClientParameters params) {
+        if (!Boolean.parseBoolean(params.getParameter(OrkaConstants.REUSE_VMS))) {
+            return DISABLED;
+        }
+        String maxBuilds = params.getParameter(OrkaConstants.REUSE_MAX_BUILDS);
+        String maxAge = params.getParameter(OrkaConstants.REUSE_MAX_AGE);
+        String maxIdleTime = params.getParameter(OrkaConstants.REUSE_MAX_IDLE_TIME);
+        return new ReusePolicy(true, params.getParameter(OrkaConstants.REUSE_CLEANUP_SCRIPT),
+                StringUtil.isEmpty(maxBuilds) ? 0 : Integer.parseInt(maxBuilds.trim()),
+                StringUtil.isEmpty(maxAge) ? 0 : TimeUnit.MINUTES.toMillis(Long.parseLong(maxAge.trim())),
+                ParkMode.fromString(params.getParameter(OrkaConstants.REUSE_PARK_MODE)),
+                StringUtil.isEmpty(maxIdleTime) ? 0 : TimeUnit.MINUTES.toMillis(Long.parseLong(maxIdleTime.trim())));
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    @Nullable
+    public String getCleanupScript() {
+        return this.cleanupScript;
+    }
+
+    public boolean canReuse(int buildCount, long createdTime, long now) {
+        if (!this.enabled) {
+            return false;
+        }
+        boolean withinBuilds = this.maxBuilds <= 0 || buildCount < this.maxBuilds;
+        boolean withinAge = this.maxAge <= 0 || now - createdTime < this.maxAge;
+        return withinBuilds && withinAge;
+    }
+
+    @NotNull
+    public ParkMode getParkMode() {
+        return this.parkMode;
+    }
+
+    public boolean canReuse(@NotNull PooledVm vm, long now) {
+        boolean withinIdleTime = this.maxIdleTime <= 0 || now - vm.getPooledTime() < this.maxIdleTime;
+        return withinIdleTime && this.canReuse(vm.getBuildCount(), vm.getCreatedTime(), now);
+    }
+}
@@ -8,17 +8,21 @@ public class SSHUtil {
     public boolean waitForSSH(String host, int sshPort, int retries, int secondsBetweenRetries)
             throws IOException, InterruptedException {
         int attempts = 0;
-        while (attempts < retries) {
-            attempts++;
-            try (Socket s = new Socket(host, sshPort)) {
-                return true;
-            } catch (IOException ex) {
-                if (attempts == retries) {
-                    throw ex;
+        try (Tracer.Span span = Tracer.span("waitForSSH")) {
+            while (attempts < retries) {
+                attempts++;
+                span.message("%s:%s after %s attempts", host, sshPort, attempts);
+                try (Socket s = new Socket(host, sshPort)) {
+                    return true;
+                } catch (IOException ex) {
+                    if (attempts == retries) {
+                        span.fail(ex);
+                        throw ex;
+                    }
                 }
-            }
 
-            Thread.sleep(TimeUnit.SECONDS.toMillis(secondsBetweenRetries));
+                Thread.sleep(TimeUnit.SECONDS.toMillis(secondsBetweenRetries));
+            }
         }
 
         return false;
@@ -0,0 +1,319 @@
+package com.macstadium.orka;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.macstadium.orka.client.ApiCallListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Lightweight tracing of instance bring-up. A trace is started with the temporary instance id and is
+ * aliased to the Orka VM name once the VM is deployed. Each step records a span into a bounded ring
+ * buffer, and span messages are only formatted when they are read or logged.
+ * The active trace is bound to the current thread, so that the Orka client and SSH helpers can add
+ * spans without knowing about instances. The Orka client reports its calls through {@link #API_CALL_LISTENER}.
+ */
+public class Tracer {
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
+    private static final String BUFFER_SIZE_PROPERTY = "teamcity.orka.trace.bufferSize";
+    private static final String SAMPLE_PERCENT_PROPERTY = "teamcity.orka.trace.samplePercent";
+    private static final long MAX_TRACE_AGE = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_ACTIVE_TRACES = 1000;
+
+    private static final Tracer INSTANCE = new Tracer(TeamCityProperties.getInteger(BUFFER_SIZE_PROPERTY, 2000),
+            TeamCityProperties.getInteger(SAMPLE_PERCENT_PROPERTY, 100));
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<Trace>();
+    private static final Span NOOP_SPAN = new Span(null, "noop");
+
+    /**
+     * Records the Orka API calls made on a thread with a bound trace as spans of that trace.
+     */
+    public static final ApiCallListener API_CALL_LISTENER = (method, path) -> {
+        Span span = span("orkaApi");
+        return (code, error) -> {
+            if (error != null) {
+                span.fail(error).message("%s %s", method, path);
+            } else {
+                span.message("%s %s: %s", method, path, code);
+            }
+            span.close();
+        };
+    };
+
+    private final AtomicReferenceArray<Span> spans;
+    private final AtomicLong cursor = new AtomicLong();
+    private final int samplePercent;
+    private final Map<String, Trace> traces = new ConcurrentHashMap<String, Trace>();
+
+    Tracer(int bufferSize, int samplePercent) {
+        this.spans = new AtomicReferenceArray<Span>(Math.max(1, bufferSize));
+        this.samplePercent = samplePercent;
+    }
+
+    @NotNull
+    public static Tracer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts a span on the trace bound to the current thread. Returns a no-op span if there is none.
+     */
+    @NotNull
+    public static Span span(@NotNull String step) {
+        Trace trace = CURRENT.get();
+        return trace != null ? trace.span(step) : NOOP_SPAN;
+    }
+
+    @Nullable
+    public Trace start(@NotNull String id) {
+        return this.start(id, null, null);
+    }
+
+    /**
+     * Starts a trace tagged with the cloud profile and project it belongs to, so that its spans are only
+     * shown to users of that project.
+     */
+    @Nullable
+    public Trace start(@NotNull String id, @Nullable String profileId, @Nullable String projectId) {
+        long now = System.currentTimeMillis();
+        this.traces.values().removeIf(t -> now - t.startedAt > MAX_TRACE_AGE);
+        if (this.traces.size() >= MAX_ACTIVE_TRACES
+                || ThreadLocalRandom.current().nextInt(100) >= this.samplePercent) {
+            return null;
+        }
+        Trace trace = new Trace(this, id, profileId, projectId, now);
+        this.traces.put(id, trace);
+        return trace;
+    }
+
+    @Nullable
+    public Trace find(@NotNull String idOrAlias) {
+        return this.traces.get(idOrAlias);
+    }
+
+    public void alias(@Nullable Trace trace, @NotNull String alias) {
+        if (trace != null && !alias.equals(trace.id)) {
+            trace.alias = alias;
+            this.traces.put(alias, trace);
+        }
+    }
+
+    public void end(@Nullable Trace trace) {
+        if (trace != null) {
+            this.traces.remove(trace.id);
+            if (trace.alias != null) {
+                this.traces.remove(trace.alias);
+            }
+        }
+    }
+
+    @NotNull
+    public List<Span> getSpans(@Nullable String idOrAlias) {
+        return this.getSpans(idOrAlias, null);
+    }
+
+    /**
+     * Returns the recorded spans, oldest first, optionally filtered by trace id or VM name and by the project
+     * of the cloud profile that recorded them.
+     */
+    @NotNull
+    public List<Span> getSpans(@Nullable String idOrAlias, @Nullable String projectId) {
+        List<Span> result = new ArrayList<Span>();
+        long end = this.cursor.get();
+        long start = Math.max(0, end - this.spans.length());
+        for (long i = start; i < end; i++) {
+            Span span = this.spans.get((int) (i % this.spans.length()));
+            if (span != null && (idOrAlias == null || span.belongsTo(idOrAlias))
+                    && (projectId == null || projectId.equals(span.getProjectId()))) {
+                result.add(span);
+            }
+        }
+        return result;
+    }
+
+    private void record(Span span) {
+        this.spans.set((int) (this.cursor.getAndIncrement() % this.spans.length()), span);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(span.toString());
+        }
+    }
+
+    public static class Trace {
+        private final Tracer tracer;
+        private final String id;
+        @Nullable
+        private final String profileId;
+        @Nullable
+        private final String projectId;
+        private final long startedAt;
+        private final Map<String, Span> pending = new ConcurrentHashMap<String, Span>();
+        private volatile String alias;
+
+        Trace(Tracer tracer, String id, @Nullable String profileId, @Nullable String projectId, long startedAt) {
+            this.tracer = tracer;
+            this.id = id;
+            this.profileId = profileId;
+            this.projectId = projectId;
+            this.startedAt = startedAt;
+        }
+
+        public String getId() {
+            return this.id;
+        }
+
+        @Nullable
+        public String getAlias() {
+            return this.alias;
+        }
+
+        @NotNull
+        public Span span(@NotNull String step) {
+            return new Span(this, step);
+        }
+
+        /**
+         * Starts a span that is completed later, possibly on another thread.
+         */
+        public void begin(@NotNull String step) {
+            this.pending.put(step, this.span(step));
+        }
+
+        @Nullable
+        public Span take(@NotNull String step) {
+            return this.pending.remove(step);
+        }
+
+        /**
+         * Binds the trace to the current thread until the returned scope is closed.
+         */
+        @NotNull
+        public Scope activate() {
+            Trace previous = CURRENT.get();
+            CURRENT.set(this);
+            return () -> {
+                if (previous != null) {
+                    CURRENT.set(previous);
+                } else {
+                    CURRENT.remove();
+                }
+            };
+        }
+    }
+
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    public static class Span implements AutoCloseable {
+        @Nullable
+        private final Trace trace;
+        private final String step;
+        private final long startTime;
+        private final long startNanos;
+        private volatile long durationNanos = -1;
+        private volatile String format;
+        private volatile Object[] args;
+        private volatile Throwable error;
+
+        Span(@Nullable Trace trace, String step) {
+            this.trace = trace;
+            this.step = step;
+            this.startTime = trace != null ? System.currentTimeMillis() : 0;
+            this.startNanos = trace != null ? System.nanoTime() : 0;
+        }
+
+        /**
+         * Attaches a message to the span. Formatting is deferred until the span is read.
+         */
+        public Span message(@NotNull String format, Object... args) {
+            if (this.trace != null) {
+                this.format = format;
+                this.args = args;
+            }
+            return this;
+        }
+
+        public Span fail(@NotNull Throwable error) {
+            if (this.trace != null) {
+                this.error = error;
+            }
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (this.trace != null && this.durationNanos < 0) {
+                this.durationNanos = System.nanoTime() - this.startNanos;
+                this.trace.tracer.record(this);
+            }
+        }
+
+        public String getTraceId() {
+            return this.trace != null ? this.trace.id : null;
+        }
+
+        @Nullable
+        public String getVmName() {
+            return this.trace != null ? this.trace.alias : null;
+        }
+
+        @Nullable
+        public String getProfileId() {
+            return this.trace != null ? this.trace.profileId : null;
+        }
+
+        @Nullable
+        public String getProjectId() {
+            return this.trace != null ? this.trace.projectId : null;
+        }
+
+        public String getStep() {
+            return this.step;
+        }
+
+        public long getStartTime() {
+            return this.startTime;
+        }
+
+        public long getDurationMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(Math.max(0, this.durationNanos));
+        }
+
+        public boolean isFailed() {
+            return this.error != null;
+        }
+
+        @Nullable
+        public String getMessage() {
+            String message = this.format != null ? String.format(this.format, this.args) : null;
+            if (this.error == null) {
+                return message;
+            }
+            return message != null ? message + ": " + this.error : this.error.toString();
+        }
+
+        boolean belongsTo(String idOrAlias) {
+            return this.trace != null && (idOrAlias.equals(this.trace.id) || idOrAlias.equals(this.trace.alias));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[trace %s%s] %s took %sms%s%s", this.getTraceId(),
+                    this.getVmName() != null ? "/" + this.getVmName() : "", this.step, this.getDurationMillis(),
+                    this.isFailed() ? " and failed" : "", this.getMessage() != null ? ": " + this.getMessage() : "");
+        }
+    }
+}
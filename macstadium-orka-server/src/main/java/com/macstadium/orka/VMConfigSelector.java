@@ -0,0 +1,266 @@
+package com.macstadium.orka;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.text.StringUtil;
+import com.macstadium.orka.client.OrkaVMConfig;
+import com.macstadium.orka.client.VMConfigResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.requirements.Requirement;
+import jetbrains.buildServer.requirements.RequirementType;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Chooses the VM config of new VMs among the configs of a profile. Queued builds that require a number of CPUs
+ * or an amount of memory through the hardware parameters agents report get the smallest config that satisfies
+ * them. Other VMs get the default config while a node has room for it, and the largest config that still fits
+ * otherwise, so that the cluster runs more builds at once.
+ */
+public class VMConfigSelector {
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT + OrkaConstants.TYPE);
+    static final String CPU_PARAMETER = "teamcity.agent.hardware.cpuCount";
+    static final String MEMORY_PARAMETER = "teamcity.agent.hardware.memorySizeMb";
+    private static final long CONFIGS_TTL = TimeUnit.MINUTES.toMillis(5);
+    private static final long MAX_QUEUED_AGE = TimeUnit.HOURS.toMillis(6);
+
+    private final String defaultConfig;
+    private final List<String> configs;
+    private final LongSupplier clock;
+    private final Map<Long, Demand> demands = new ConcurrentHashMap<Long, Demand>();
+    private final Map<OrkaCluster, Sizes> sizes = new ConcurrentHashMap<OrkaCluster, Sizes>();
+
+    public VMConfigSelector(@NotNull String defaultConfig, @NotNull List<String> additionalConfigs) {
+        this(defaultConfig, additionalConfigs, System::currentTimeMillis);
+    }
+
+    VMConfigSelector(@NotNull String defaultConfig, @NotNull List<String> additionalConfigs, LongSupplier clock) {
+        this.defaultConfig = defaultConfig;
+        List<String> configs = new ArrayList<String>();
+        configs.add(defaultConfig);
+        additionalConfigs.stream().filter(c -> !configs.contains(c)).forEach(configs::add);
+        this.configs = Collections.unmodifiableList(configs);
+        this.clock = clock;
+    }
+
+    /**
+     * Parses the additional VM configs, separated by commas or white space.
+     */
+    @NotNull
+    public static List<String> parse(@Nullable String configs) {
+        if (StringUtil.isEmpty(configs)) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<String>();
+        for (String config : configs.trim().split("[,\\s]+")) {
+            if (!config.isEmpty() && !result.contains(config)) {
+                result.add(config);
+            }
+        }
+        return result;
+    }
+
+    public boolean isEnabled() {
+        return this.configs.size() > 1;
+    }
+
+    @NotNull
+    public String getDefaultConfig() {
+        return this.defaultConfig;
+    }
+
+    public void buildQueued(@NotNull SQueuedBuild queuedBuild) {
+        SBuildType buildType = queuedBuild.getBuildType();
+        if (buildType == null) {
+            return;
+        }
+        Demand demand = getDemand(buildType.getRequirements(), this.clock.getAsLong());
+        if (demand != null) {
+            this.demands.put(queuedBuild.getBuildPromotion().getId(), demand);
+        }
+    }
+
+    public void buildDequeued(long promotionId) {
+        this.demands.remove(promotionId);
+    }
+
+    /**
+     * Takes the oldest queued build that declares its size and is not yet served by a starting instance.
+     */
+    @Nullable
+    public synchronized Demand claim() {
+        long now = this.clock.getAsLong();
+        this.demands.values().removeIf(d -> now - d.queuedAt > MAX_QUEUED_AGE);
+        Optional<Demand> demand = this.demands.values().stream().filter(d -> !d.claimed)
+                .min(Comparator.comparingLong(d -> d.queuedAt));
+        demand.ifPresent(d -> d.claimed = true);
+        return demand.orElse(null);
+    }
+
+    /**
+     * Gives back a claimed demand for which no instance could be started.
+     */
+    public void unclaim(@NotNull Demand demand) {
+        demand.claimed = false;
+    }
+
+    /**
+     * Returns whether a VM of the config satisfies the demand. VMs of unknown size only satisfy demands made
+     * on the default config.
+     */
+    public boolean fits(@Nullable Demand demand, @NotNull OrkaCluster cluster, @Nullable String config) {
+        if (demand == null) {
+            return true;
+        }
+        String name = config != null ? config : this.defaultConfig;
+        Optional<OrkaVMConfig> size = this.getSizes(cluster).stream().filter(c -> c.getName().equals(name))
+                .findFirst();
+        return size.isPresent() ? demand.fits(size.get()) : name.equals(this.defaultConfig);
+    }
+
+    /**
+     * Returns the CPU of a VM of the config on the cluster, or -1 if it is not known.
+     */
+    public int getCpu(@NotNull OrkaCluster cluster, @Nullable String config) {
+        if (!this.isEnabled() || config == null) {
+            return -1;
+        }
+        return this.getSizes(cluster).stream().filter(c -> c.getName().equals(config)).findFirst()
+                .map(OrkaVMConfig::getCPU).orElse(-1);
+    }
+
+    @NotNull
+    public String select(@Nullable Demand demand, @NotNull OrkaCluster cluster) {
+        if (!this.isEnabled()) {
+            return this.defaultConfig;
+        }
+        int freeCpu = demand == null ? cluster.getNodePlacement().getMaxAvailableCpu() : -1;
+        String result = this.select(demand, this.getSizes(cluster), freeCpu);
+        LOG.debug(String.format("Selected VM config: %s for demand: %s on cluster: %s, free CPU: %s", result,
+                demand, cluster, freeCpu));
+        return result;
+    }
+
+    /**
+     * Returns the smallest config that satisfies the demand, or without a demand the default config if a node
+     * has room for it, the largest config that fits otherwise. A negative free CPU means the room is unknown.
+     */
+    @NotNull
+    String select(@Nullable Demand demand, @NotNull List<OrkaVMConfig> sizes, int freeCpu) {
+        List<OrkaVMConfig> candidates = sizes.stream().filter(c -> this.configs.contains(c.getName()))
+                .sorted(Comparator.comparingInt(OrkaVMConfig::getCPU).thenComparingDouble(OrkaVMConfig::getMemory))
+                .collect(Collectors.toList());
+        if (candidates.isEmpty()) {
+            return this.defaultConfig;
+        }
+        if (demand != null) {
+            return candidates.stream().filter(demand::fits).findFirst().map(OrkaVMConfig::getName)
+                    .orElse(this.defaultConfig);
+        }
+        Optional<OrkaVMConfig> defaultSize = candidates.stream().filter(c -> c.getName().equals(this.defaultConfig))
+                .findFirst();
+        if (freeCpu < 0 || !defaultSize.isPresent() || defaultSize.get().getCPU() <= freeCpu) {
+            return this.defaultConfig;
+        }
+        return candidates.stream().filter(c -> c.getCPU() <= freeCpu).reduce((smaller, larger) -> larger)
+                .orElse(candidates.get(0)).getName();
+    }
+
+    private List<OrkaVMConfig> getSizes(OrkaCluster cluster) {
+        long now = this.clock.getAsLong();
+        Sizes current = this.sizes.get(cluster);
+        if (current != null && now - current.loadedAt < CONFIGS_TTL) {
+            return current.configs;
+        }
+        try {
+            VMConfigResponse response = cluster.call(c -> c.getVMConfigs(), true);
+            if (response.isSuccessful()) {
+                this.sizes.put(cluster, new Sizes(response.getConfigs(), now));
+                return response.getConfigs();
+            }
+            LOG.debug(String.format("Failed to get VM configs: %s", response.getMessage()));
+        } catch (IOException e) {
+            LOG.debug("Failed to get VM configs", e);
+        }
+        return current != null ? current.configs : Collections.emptyList();
+    }
+
+    /**
+     * Reads the minimum CPU count and memory required by a build type, or null if it requires neither.
+     */
+    @Nullable
+    static Demand getDemand(@NotNull List<Requirement> requirements, long queuedAt) {
+        int cpu = 0;
+        long memory = 0;
+        for (Requirement requirement : requirements) {
+            long value = getMinimum(requirement);
+            if (CPU_PARAMETER.equals(requirement.getPropertyName())) {
+                cpu = (int) Math.max(cpu, value);
+            } else if (MEMORY_PARAMETER.equals(requirement.getPropertyName())) {
+                memory = Math.max(memory, value);
+            }
+        }
+        return cpu > 0 || memory > 0 ? new Demand(cpu, memory, queuedAt) : null;
+    }
+
+    private static long getMinimum(Requirement requirement) {
+        RequirementType type = requirement.getType();
+        if (type != RequirementType.EQUALS && type != RequirementType.NO_LESS_THAN
+                && type != RequirementType.MORE_THAN) {
+            return 0;
+        }
+        try {
+            long value = Long.parseLong(StringUtil.notNullize(requirement.getPropertyValue()).trim());
+            return type == RequirementType.MORE_THAN ? value + 1 : value;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public static class Demand {
+        private final int cpu;
+        private final long memory;
+        private final long queuedAt;
+        private volatile boolean claimed;
+
+        Demand(int cpu, long memory, long queuedAt) {
+            this.cpu = cpu;
+            this.memory = memory;
+            this.queuedAt = queuedAt;
+        }
+
+        boolean fits(OrkaVMConfig config) {
+            return config.getCPU() >= this.cpu && config.getMemory() * 1024 >= this.memory;
+        }
+
+        @Override
+        public String toString() {
+            return "Demand [CPU=" + cpu + ", MemoryMb=" + memory + "]";
+        }
+    }
+
+    private static class Sizes {
+        private final List<OrkaVMConfig> configs;
+        private final long loadedAt;
+
+        Sizes(List<OrkaVMConfig> configs, long loadedAt) {
+            this.configs = configs;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
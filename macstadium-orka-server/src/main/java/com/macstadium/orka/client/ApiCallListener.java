@@ -0,0 +1,24 @@
+package com.macstadium.orka.client;
+
+import java.io.IOException;
+
+/**
+ * Observes the calls {@link OrkaClient} makes to the Orka API, so that callers can trace them without the client
+ * depending on how they are recorded.
+ */
+public interface ApiCallListener {
+    ApiCallListener NONE = (method, path) -> (code, error) -> {
+    };
+
+    /**
+     * Called on the calling thread before the request is sent.
+     */
+    Completion started(String method, String path);
+
+    interface Completion {
+        /**
+         * Called once the response is read. The code is -1 and the error is set if no response was read.
+         */
+        void completed(int code, IOException error);
+    }
+}
@@ -5,7 +5,21 @@ import com.google.gson.annotations.SerializedName;
 public class DeploymentRequest {
     private String vmConfig;
 
+    private String node;
+
+    private String name;
+
     public DeploymentRequest(String vmConfig) {
+        this(vmConfig, null);
+    }
+
+    public DeploymentRequest(String vmConfig, String node) {
+        this(vmConfig, node, null);
+    }
+
+    public DeploymentRequest(String vmConfig, String node, String name) {
         this.vmConfig = vmConfig;
+        this.node = node;
+        this.name = name;
     }
 }
@@ -7,9 +7,13 @@ import com.intellij.openapi.util.text.StringUtil;
 import com.macstadium.orka.OrkaConstants;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import jetbrains.buildServer.log.Loggers;
+import okhttp3.Call;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -29,7 +33,13 @@ public class OrkaClient {
     private static final String VM_CONFIG_PATH = RESOURCE_PATH + "/orka-default/vmconfigs";
     private static final String VM_PATH = "vms";
     private static final String NODE_PATH = "nodes";
+    private static final String SUSPEND_ACTION = "suspend";
+    private static final String RESUME_ACTION = "resume";
+    private static final String STOP_ACTION = "stop";
+    private static final String START_ACTION = "start";
     private static final String IMAGE_PATH = RESOURCE_PATH + "/orka-default/images";
+    private static final Map<Thread, Call> inFlightCalls = new ConcurrentHashMap<Thread, Call>();
+    private static volatile ApiCallListener callListener = ApiCallListener.NONE;
 
     private String endpoint;
     private String token;
@@ -56,6 +66,15 @@ public class OrkaClient {
         return response;
     }
 
+    public VMsResponse getVMs(String namespace) throws IOException {
+        HttpResponse httpResponse = this
+                .get(String.format("%s/%s/%s/%s", this.endpoint, RESOURCE_PATH, namespace, VM_PATH));
+
+        VMsResponse response = JsonHelper.fromJson(httpResponse.getBody(), VMsResponse.class);
+        response.setHttpResponse(httpResponse);
+        return response;
+    }
+
     public NodeResponse getNodes(String namespace) throws IOException {
         HttpResponse httpResponse = this
                 .get(String.format("%s/%s/%s/%s", this.endpoint, RESOURCE_PATH, namespace, NODE_PATH));
@@ -74,7 +93,19 @@ public class OrkaClient {
     }
 
     public DeploymentResponse deployVM(String vmConfig, String namespace) throws IOException {
-        DeploymentRequest deploymentRequest = new DeploymentRequest(vmConfig);
+        return this.deployVM(vmConfig, namespace, null);
+    }
+
+    public DeploymentResponse deployVM(String vmConfig, String namespace, String node) throws IOException {
+        return this.deployVM(vmConfig, namespace, node, null);
+    }
+
+    /**
+     * Deploys a VM whose name starts with the given name. Orka appends a suffix to it.
+     */
+    public DeploymentResponse deployVM(String vmConfig, String namespace, String node, String name)
+            throws IOException {
+        DeploymentRequest deploymentRequest = new DeploymentRequest(vmConfig, node, name);
         String deploymentRequestJson = new Gson().toJson(deploymentRequest);
 
         HttpResponse httpResponse = this.post(
@@ -100,6 +131,37 @@ public class OrkaClient {
         return response;
     }
 
+    public VMActionResponse suspendVM(String vmName, String namespace) throws IOException {
+        return this.executeVMAction(vmName, namespace, SUSPEND_ACTION);
+    }
+
+    public VMActionResponse resumeVM(String vmName, String namespace) throws IOException {
+        return this.executeVMAction(vmName, namespace, RESUME_ACTION);
+    }
+
+    public VMActionResponse stopVM(String vmName, String namespace) throws IOException {
+        return this.executeVMAction(vmName, namespace, STOP_ACTION);
+    }
+
+    public VMActionResponse startVM(String vmName, String namespace) throws IOException {
+        return this.executeVMAction(vmName, namespace, START_ACTION);
+    }
+
+    private VMActionResponse executeVMAction(String vmName, String namespace, String action) throws IOException {
+        HttpResponse httpResponse = this.post(String.format("%s/%s/%s/%s/%s/%s", this.endpoint, RESOURCE_PATH,
+                namespace, VM_PATH, vmName, action), "{}");
+        VMActionResponse response;
+        String body = httpResponse.getBody();
+        if (StringUtil.isEmptyOrSpaces(body)) {
+            response = new VMActionResponse(null);
+        } else {
+            response = JsonHelper.fromJson(body, VMActionResponse.class);
+        }
+        response.setHttpResponse(httpResponse);
+
+        return response;
+    }
+
     @VisibleForTesting
     HttpResponse post(String url, String body) throws IOException {
         RequestBody requestBody = RequestBody.create(JSON, body);
@@ -124,10 +186,42 @@ public class OrkaClient {
     }
 
     private HttpResponse executeCall(Request request) throws IOException {
-        LOG.debug("Executing request to Orka API: " + '/' + request.method() + ' ' + request.url());
-        try (Response response = client.newCall(request).execute()) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Executing request to Orka API: " + '/' + request.method() + ' ' + request.url());
+        }
+        Thread thread = Thread.currentThread();
+        if (thread.isInterrupted()) {
+            throw new InterruptedIOException("Orka API call cancelled");
+        }
+        Call call = client.newCall(request);
+        inFlightCalls.put(thread, call);
+        ApiCallListener.Completion completion = callListener.started(request.method(), request.url().encodedPath());
+        try (Response response = call.execute()) {
             ResponseBody body = response.body();
-            return new HttpResponse(body != null ? body.string() : null, response.code(), response.isSuccessful());
+            HttpResponse httpResponse = new HttpResponse(body != null ? body.string() : null, response.code(),
+                    response.isSuccessful());
+            completion.completed(response.code(), null);
+            return httpResponse;
+        } catch (IOException e) {
+            completion.completed(-1, e);
+            throw e;
+        } finally {
+            inFlightCalls.remove(thread);
+        }
+    }
+
+    public static void setCallListener(ApiCallListener listener) {
+        callListener = listener != null ? listener : ApiCallListener.NONE;
+    }
+
+    /**
+     * Cancels the Orka API call the given thread is waiting on, if any.
+     */
+    public static void cancel(Thread thread) {
+        Call call = inFlightCalls.get(thread);
+        if (call != null) {
+            LOG.debug(String.format("Cancelling Orka API call: %s", call.request().url()));
+            call.cancel();
         }
     }
 }
@@ -0,0 +1,7 @@
+package com.macstadium.orka.client;
+
+public class VMActionResponse extends ResponseBase {
+    public VMActionResponse(String message) {
+        super(message);
+    }
+}
@@ -7,11 +7,18 @@ public class VMResponse extends ResponseBase {
 
     private String ip;
 
+    private String status;
+
     public VMResponse(String name, int ssh, String ip, String message) {
+        this(name, ssh, ip, null, message);
+    }
+
+    public VMResponse(String name, int ssh, String ip, String status, String message) {
         super(message);
         this.name = name;
         this.ssh = ssh;
         this.ip = ip;
+        this.status = status;
     }
 
     public String getName() {
@@ -26,6 +33,10 @@ public class VMResponse extends ResponseBase {
         return this.ip;
     }
 
+    public String getStatus() {
+        return this.status;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -0,0 +1,20 @@
+package com.macstadium.orka.client;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.util.Collections;
+import java.util.List;
+
+public class VMsResponse extends ResponseBase {
+    @SerializedName("items")
+    private List<VMResponse> vms;
+
+    public VMsResponse(List<VMResponse> vms, String message) {
+        super(message);
+        this.vms = vms;
+    }
+
+    public List<VMResponse> getVMs() {
+        return this.vms != null ? Collections.unmodifiableList(this.vms) : Collections.emptyList();
+    }
+}
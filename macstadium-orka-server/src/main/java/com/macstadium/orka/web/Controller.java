@@ -1,66 +1,308 @@
 package com.macstadium.orka.web;
 
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.text.StringUtil;
+import com.macstadium.orka.OrkaResourceCache;
+import com.macstadium.orka.PoolChangeFeed;
+import com.macstadium.orka.RemoteAgent;
+import com.macstadium.orka.client.OrkaClient;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import jetbrains.buildServer.controllers.BaseFormXmlController;
+import jetbrains.buildServer.controllers.XmlResponseUtil;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.serverSide.agentPools.AgentPoolManager;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
 import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
 
 import org.jdom.Element;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.springframework.web.servlet.ModelAndView;
 
+/**
+ * Serves the settings page. Requests are handled asynchronously on a small dedicated executor, so that
+ * an unresponsive Orka endpoint only delays the settings page and never holds TeamCity web threads.
+ */
 public class Controller extends BaseFormXmlController {
     private static final Logger LOG = Logger.getInstance(Controller.class.getName());
+    private static final String TIMEOUT_PROPERTY = "teamcity.orka.web.requestTimeoutSeconds";
+    private static final String THREADS_PROPERTY = "teamcity.orka.web.threads";
+    private static final int QUEUE_SIZE = 32;
 
     private final PluginDescriptor pluginDescriptor;
     private final String jspPath;
+    private final String dashboardJspPath;
     private final String htmlPath;
 
+    private final ExecutorService executor;
+    private final ExecutorService cleanupExecutor;
+    private final long defaultTimeout;
+    private final DashboardStream dashboardStream = new DashboardStream(PoolChangeFeed.getInstance());
+
     private Map<String, RequestHandler> handlers = new HashMap<String, RequestHandler>();
 
     public Controller(@NotNull final SBuildServer server, @NotNull final WebControllerManager webControllerManager,
-            @NotNull final PluginDescriptor pluginDescriptor, @NotNull final AgentPoolManager poolManager) {
+            @NotNull final PluginDescriptor pluginDescriptor, @NotNull final AgentPoolManager poolManager,
+            @NotNull final OrkaResourceCache resourceCache,
+            @NotNull final EventDispatcher<BuildServerListener> serverEvents) {
         super(server);
+        this.executor = createExecutor(TeamCityProperties.getInteger(THREADS_PROPERTY, 4));
+        this.cleanupExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Orka settings cleanup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.defaultTimeout = TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(TIMEOUT_PROPERTY, 60));
+        serverEvents.addListener(new BuildServerAdapter() {
+            @Override
+            public void serverShutdown() {
+                Controller.this.executor.shutdownNow();
+                Controller.this.cleanupExecutor.shutdown();
+                Controller.this.dashboardStream.dispose();
+            }
+        });
         this.pluginDescriptor = pluginDescriptor;
         this.jspPath = pluginDescriptor.getPluginResourcesPath("settings.jsp");
+        this.dashboardJspPath = pluginDescriptor.getPluginResourcesPath("dashboard.jsp");
         this.htmlPath = pluginDescriptor.getPluginResourcesPath("settings.html");
         webControllerManager.registerController(this.htmlPath, this);
 
         LOG.debug("jspPath: " + this.jspPath);
         LOG.debug("htmlPath: " + this.htmlPath);
 
-        handlers.put("vms", new VmHandler());
+        handlers.put("vms", new VmHandler(resourceCache));
+        handlers.put("resources", new ResourcesHandler(resourceCache));
         handlers.put("agentPools", new AgentPoolHandler(poolManager));
+        handlers.put("traces", new TracesHandler());
+        handlers.put("diagnostics", new DiagnosticsHandler(new RemoteAgent(this.executor), this.cleanupExecutor));
     }
 
     @Override
     protected ModelAndView doGet(HttpServletRequest request, HttpServletResponse response) {
-        ModelAndView modelAndView = new ModelAndView(this.jspPath);
+        boolean dashboard = "dashboard".equals(request.getParameter("view"));
+        ModelAndView modelAndView = new ModelAndView(dashboard ? this.dashboardJspPath : this.jspPath);
         modelAndView.getModel().put("basePath", this.htmlPath);
         modelAndView.getModel().put("resPath", this.pluginDescriptor.getPluginResourcesPath());
         modelAndView.getModel().put("projectId", request.getParameter("projectId"));
         return modelAndView;
     }
 
+    @Override
+    protected ModelAndView doHandle(HttpServletRequest request, HttpServletResponse response) throws Exception {
+        String resource = request.getParameter("resource");
+        boolean events = !this.isPost(request) && "events".equals(resource);
+        if ((this.isPost(request) || events) && !authorize(request, response, SessionUser.getUser(request))) {
+            return null;
+        }
+        if (events) {
+            this.dashboardStream.subscribe(request, response, request.getParameter("projectId"));
+            return null;
+        }
+        if (!this.isPost(request) || !request.isAsyncSupported()) {
+            return super.doHandle(request, response);
+        }
+
+        RequestHandler handler = this.handlers.get(resource);
+        if (handler == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+        }
+
+        LOG.debug(String.format("doPost with resource: %s", resource));
+        Map<String, String> parameters = getParameters(request);
+        long timeout = handler.getTimeout(parameters);
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(timeout > 0 ? timeout : this.defaultTimeout);
+
+        PendingRequest pendingRequest = new PendingRequest(asyncContext, response, resource, handler, parameters);
+        asyncContext.addListener(pendingRequest);
+        submit(this.executor, pendingRequest);
+        return null;
+    }
+
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response, Element xmlResponse) {
         String resource = request.getParameterValues("resource")[0];
         LOG.debug(String.format("doPost with resource: %s", resource));
-        Map<String, String> parameters = request.getParameterMap().keySet().stream()
-                .collect(Collectors.toMap(k -> k, k -> request.getParameterValues(k)[0]));
 
-        Element result = handlers.get(resource).handle(parameters);
+        Element result = handlers.get(resource).handle(getParameters(request));
 
         xmlResponse.addContent(result);
     }
+
+    /**
+     * Returns whether the user can manage the agent clouds of the project of the request, and answers 403
+     * otherwise. Every resource request is checked, as they use credentials entered by the user or expose
+     * profile state.
+     */
+    static boolean authorize(HttpServletRequest request, HttpServletResponse response, @Nullable SUser user)
+            throws IOException {
+        if (canManageClouds(user, request.getParameter("projectId"))) {
+            return true;
+        }
+        response.sendError(HttpServletResponse.SC_FORBIDDEN);
+        return false;
+    }
+
+    static boolean canManageClouds(SUser user, String projectId) {
+        return user != null && StringUtil.isNotEmpty(projectId)
+                && user.isPermissionGrantedForProject(projectId, Permission.MANAGE_AGENT_CLOUDS);
+    }
+
+    private static Map<String, String> getParameters(HttpServletRequest request) {
+        return request.getParameterMap().keySet().stream()
+                .collect(Collectors.toMap(k -> k, k -> request.getParameterValues(k)[0]));
+    }
+
+    static void submit(ExecutorService executor, PendingRequest pendingRequest) {
+        try {
+            pendingRequest.future = executor.submit(pendingRequest);
+        } catch (RejectedExecutionException e) {
+            LOG.info(String.format("Too many pending requests, rejecting resource: %s", pendingRequest.resource));
+            pendingRequest.fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many pending requests");
+        }
+    }
+
+    private static ExecutorService createExecutor(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), r -> {
+                    Thread thread = new Thread(r, "Orka settings request " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * A request whose response is written exactly once, either by the handler or on timeout. On timeout the
+     * worker thread is interrupted and its Orka call cancelled, so it is freed for the next request.
+     */
+    static class PendingRequest implements Runnable, AsyncListener {
+        private final AsyncContext asyncContext;
+        private final HttpServletResponse response;
+        private final String resource;
+        private final RequestHandler handler;
+        private final Map<String, String> parameters;
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private volatile Future<?> future;
+        private Thread worker;
+
+        PendingRequest(AsyncContext asyncContext, HttpServletResponse response, String resource,
+                RequestHandler handler, Map<String, String> parameters) {
+            this.asyncContext = asyncContext;
+            this.response = response;
+            this.resource = resource;
+            this.handler = handler;
+            this.parameters = parameters;
+        }
+
+        @Override
+        public void run() {
+            if (this.completed.get()) {
+                return;
+            }
+            synchronized (this) {
+                this.worker = Thread.currentThread();
+            }
+            try {
+                Element result = this.handler.handle(this.parameters);
+                this.complete(result);
+            } catch (RuntimeException e) {
+                LOG.warn(String.format("Failed to handle resource: %s", this.resource), e);
+                this.fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.toString());
+            } finally {
+                synchronized (this) {
+                    this.worker = null;
+                }
+                Thread.interrupted();
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            LOG.info(String.format("Request for resource: %s timed out, cancelling it", this.resource));
+            this.cancel();
+            this.fail(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Request timed out");
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            LOG.debug(String.format("Request for resource: %s failed, cancelling it", this.resource),
+                    event.getThrowable());
+            this.cancel();
+            this.completed.set(true);
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+
+        void fail(int status, String message) {
+            if (this.completed.get()) {
+                return;
+            }
+            this.response.setStatus(status);
+            Element errors = new Element("errors");
+            errors.addContent(new Element("error").setAttribute("id", this.resource).addContent(message));
+            this.complete(errors);
+        }
+
+        private void complete(Element result) {
+            if (!this.completed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                Element xmlResponse = XmlResponseUtil.newXmlResponse();
+                xmlResponse.addContent(result);
+                XmlResponseUtil.writeXmlResponse(xmlResponse, this.response);
+            } finally {
+                this.asyncContext.complete();
+            }
+        }
+
+        private void cancel() {
+            Future<?> future = this.future;
+            if (future != null) {
+                future.cancel(true);
+            }
+            synchronized (this) {
+                if (this.worker != null) {
+                    OrkaClient.cancel(this.worker);
+                }
+            }
+        }
+    }
 }
\ No newline at end of file
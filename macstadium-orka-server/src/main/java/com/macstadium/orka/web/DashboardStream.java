@@ -0,0 +1,205 @@
+package com.macstadium.orka.web;
+
+import com.google.gson.Gson;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.text.StringUtil;
+import com.macstadium.orka.PoolChangeFeed;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Streams the pool changes to the dashboard viewers as server-sent events. A single thread reads the change
+ * feed once per tick and writes only the new changes to each viewer, so a tick costs the same with a handful
+ * or hundreds of instances. Viewers that are new or fell behind the feed get a snapshot instead. Each viewer
+ * only receives the changes and snapshot of the cloud profiles of its project.
+ */
+class DashboardStream {
+    private static final Logger LOG = Logger.getInstance(DashboardStream.class.getName());
+    private static final long TICK = TimeUnit.SECONDS.toMillis(1);
+    private static final int HEARTBEAT_TICKS = 15;
+    private static final int MAX_VIEWERS = 100;
+
+    private final PoolChangeFeed feed;
+    private final Gson gson = new Gson();
+    private final Set<Viewer> viewers = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Orka dashboard stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int ticks;
+
+    DashboardStream(PoolChangeFeed feed) {
+        this.feed = feed;
+        this.executor.scheduleWithFixedDelay(this::tick, TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+
+    void subscribe(HttpServletRequest request, HttpServletResponse response, String projectId) throws IOException {
+        if (!request.isAsyncSupported()) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        if (this.viewers.size() >= MAX_VIEWERS) {
+            LOG.info(String.format("Too many dashboard viewers: %s", this.viewers.size()));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setHeader("X-Accel-Buffering", "no");
+
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(0);
+        Viewer viewer = new Viewer(asyncContext, response.getWriter(), projectId, getLastEventId(request));
+        asyncContext.addListener(viewer);
+        this.viewers.add(viewer);
+        LOG.debug(String.format("Dashboard viewer connected, viewers: %s", this.viewers.size()));
+    }
+
+    void dispose() {
+        this.executor.shutdownNow();
+        this.viewers.forEach(Viewer::close);
+    }
+
+    private void tick() {
+        try {
+            if (this.viewers.isEmpty()) {
+                return;
+            }
+            boolean heartbeat = ++this.ticks % HEARTBEAT_TICKS == 0;
+            long sequence = this.feed.getSequence();
+            long oldest = this.viewers.stream().mapToLong(v -> v.sequence).filter(s -> s >= 0).min()
+                    .orElse(sequence);
+            List<PoolChangeFeed.Change> changes = oldest < sequence ? this.feed.since(oldest) : null;
+            Map<String, String> snapshots = new HashMap<String, String>();
+
+            for (Viewer viewer : this.viewers) {
+                if (viewer.sequence == sequence) {
+                    if (heartbeat) {
+                        viewer.heartbeat();
+                    }
+                    continue;
+                }
+                List<PoolChangeFeed.Change> pending = getPending(changes, viewer.sequence, sequence);
+                if (pending != null) {
+                    pending.removeIf(c -> !c.isVisibleTo(viewer.projectId));
+                    if (pending.isEmpty()) {
+                        viewer.sequence = sequence;
+                    } else {
+                        viewer.send(sequence, "changes", this.gson.toJson(pending));
+                    }
+                    continue;
+                }
+                String snapshot = snapshots.computeIfAbsent(viewer.projectId,
+                        projectId -> this.gson.toJson(this.feed.snapshot(projectId)));
+                viewer.send(sequence, "snapshot", snapshot);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to stream dashboard changes", e);
+        }
+    }
+
+    /**
+     * Returns the changes a viewer has not seen yet, or null if it needs a snapshot.
+     */
+    private static List<PoolChangeFeed.Change> getPending(List<PoolChangeFeed.Change> changes, long from, long to) {
+        if (changes == null || from < 0 || from > to) {
+            return null;
+        }
+        List<PoolChangeFeed.Change> result = changes.stream()
+                .filter(c -> c.getSequence() > from && c.getSequence() <= to).collect(Collectors.toList());
+        return result.stream().anyMatch(c -> PoolChangeFeed.Change.RESET.equals(c.getType())) ? null : result;
+    }
+
+    private static long getLastEventId(HttpServletRequest request) {
+        String lastEventId = request.getHeader("Last-Event-ID");
+        if (StringUtil.isEmpty(lastEventId)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(lastEventId.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private class Viewer implements AsyncListener {
+        private final AsyncContext asyncContext;
+        private final PrintWriter writer;
+        private final String projectId;
+        private volatile long sequence;
+
+        Viewer(AsyncContext asyncContext, PrintWriter writer, String projectId, long sequence) {
+            this.asyncContext = asyncContext;
+            this.writer = writer;
+            this.projectId = projectId;
+            this.sequence = sequence;
+        }
+
+        void send(long sequence, String event, String data) {
+            this.writer.write(String.format("id: %s\nevent: %s\ndata: %s\n\n", sequence, event, data));
+            this.sequence = sequence;
+            this.flush();
+        }
+
+        void heartbeat() {
+            this.writer.write(":\n\n");
+            this.flush();
+        }
+
+        private void flush() {
+            this.writer.flush();
+            if (this.writer.checkError()) {
+                LOG.debug("Dashboard viewer disconnected");
+                this.close();
+            }
+        }
+
+        void close() {
+            if (DashboardStream.this.viewers.remove(this)) {
+                try {
+                    this.asyncContext.complete();
+                } catch (IllegalStateException e) {
+                    LOG.debug("Dashboard stream already completed", e);
+                }
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            DashboardStream.this.viewers.remove(this);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            this.close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            this.close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.macstadium.orka.web;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.text.StringUtil;
+import com.macstadium.orka.OrkaCloudClient;
+import com.macstadium.orka.RemoteAgent;
+import com.macstadium.orka.SSHUtil;
+import com.macstadium.orka.client.DeletionResponse;
+import com.macstadium.orka.client.DeploymentResponse;
+import com.macstadium.orka.client.NodeResponse;
+import com.macstadium.orka.client.OrkaClient;
+import com.macstadium.orka.client.OrkaNode;
+import com.macstadium.orka.client.ResponseBase;
+import com.macstadium.orka.client.VMResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import jetbrains.buildServer.serverSide.crypt.RSACipher;
+
+import org.jdom.Element;
+
+/**
+ * Measures the latency of the paths used to bring up an agent, so that a slow Orka API, a bad node
+ * mapping or an overloaded node can be spotted before the profile is saved. The test VM is deployed with
+ * a unique name prefix and deleted on the cleanup executor, so that it is deleted even if the request times
+ * out during the deployment and its worker is cancelled before Orka returned the VM name.
+ */
+public class DiagnosticsHandler implements RequestHandler {
+    private static final Logger LOG = Logger.getInstance(DiagnosticsHandler.class.getName());
+    private static final String NAMESPACE = "namespace";
+    private static final String DEFAULT_NAMESPACE = "orka-default";
+    private static final String VM_NAME = "vmName";
+    private static final String VM_USER = "vmUser";
+    private static final String VM_PASSWORD = "vmPassword";
+    private static final String NODE_MAPPINGS = "nodeMappings";
+    private static final String DEPLOY_TEST = "deployTest";
+    private static final int API_SAMPLES = 5;
+    private static final int SSH_SAMPLES = 3;
+    private static final int[] PERCENTILES = { 50, 90, 99 };
+    private static final long DEPLOY_TEST_TIMEOUT = TimeUnit.MINUTES.toMillis(15);
+    private static final String TEST_VM_PREFIX = "tc-diagnostics-";
+
+    private final RemoteAgent remoteAgent;
+    private final SSHUtil sshUtil;
+    private final ExecutorService cleanupExecutor;
+
+    public DiagnosticsHandler(RemoteAgent remoteAgent, ExecutorService cleanupExecutor) {
+        this(remoteAgent, new SSHUtil(), cleanupExecutor);
+    }
+
+    DiagnosticsHandler(RemoteAgent remoteAgent, SSHUtil sshUtil, ExecutorService cleanupExecutor) {
+        this.remoteAgent = remoteAgent;
+        this.sshUtil = sshUtil;
+        this.cleanupExecutor = cleanupExecutor;
+    }
+
+    @Override
+    public long getTimeout(Map<String, String> params) {
+        return Boolean.parseBoolean(params.get(DEPLOY_TEST)) ? DEPLOY_TEST_TIMEOUT : 0;
+    }
+
+    public Element handle(Map<String, String> params) {
+        String endpoint = params.get(VmHandler.ORKA_ENDPOINT);
+        String token = RSACipher.decryptWebRequestData(params.get(VmHandler.ORKA_TOKEN));
+        OrkaClient client;
+        try {
+            client = new OrkaClient(endpoint, token);
+        } catch (IOException e) {
+            return new Element("diagnostics").addContent(new Element("errors").addContent(getError("api",
+                    e.toString())));
+        }
+
+        LOG.debug(String.format("Running diagnostics with endpoint: %s", endpoint));
+        return this.handle(client, params, RSACipher.decryptWebRequestData(params.get(VM_PASSWORD)));
+    }
+
+    Element handle(OrkaClient client, Map<String, String> params, String password) {
+        String namespace = params.getOrDefault(NAMESPACE, DEFAULT_NAMESPACE);
+        Map<String, String> nodeMappings = OrkaCloudClient.getNodeMappings(params.get(NODE_MAPPINGS));
+        Element result = new Element("diagnostics");
+        Element errors = new Element("errors");
+
+        Probe api = new Probe("api");
+        NodeResponse nodes = null;
+        for (int i = 0; i < API_SAMPLES; i++) {
+            long start = System.nanoTime();
+            try {
+                NodeResponse response = client.getNodes(namespace);
+                if (this.check(api, response, errors)) {
+                    api.add(start);
+                    nodes = response;
+                }
+            } catch (IOException e) {
+                api.fail(errors, e);
+            }
+        }
+        result.addContent(api.toElement());
+        if (nodes != null) {
+            result.addContent(getNodesElement(nodes.getNodes(), nodeMappings));
+        }
+
+        String vmName = params.get(VM_NAME);
+        if (Boolean.parseBoolean(params.get(DEPLOY_TEST)) && StringUtil.isNotEmpty(vmName)) {
+            this.deployTestVM(client, vmName, namespace, result, errors, params.get(VM_USER), password,
+                    nodeMappings);
+        } else {
+            this.probeSSH(this.findExistingVM(client, namespace, errors), params.get(VM_USER), password,
+                    nodeMappings, result, errors);
+        }
+
+        return result.addContent(errors);
+    }
+
+    private void deployTestVM(OrkaClient client, String vmName, String namespace, Element result,
+            Element errors, String user, String password, Map<String, String> nodeMappings) {
+        Probe deploy = new Probe("deploy");
+        Probe boot = new Probe("boot");
+        Probe delete = new Probe("delete");
+        String testName = TEST_VM_PREFIX + UUID.randomUUID().toString().substring(0, 8);
+        long start = System.nanoTime();
+        DeploymentResponse deployment = null;
+        try {
+            deployment = client.deployVM(vmName, namespace, null, testName);
+            if (this.check(deploy, deployment, errors)) {
+                deploy.add(start);
+                VMResponse vm = new VMResponse(deployment.getName(), deployment.getSSH(), deployment.getIP(), null);
+                start = System.nanoTime();
+                this.sshUtil.waitForSSH(getMappedHost(vm.getIP(), nodeMappings), vm.getSSH(),
+                        OrkaCloudClient.SSH_RETRIES, OrkaCloudClient.SSH_RETRY_INTERVAL);
+                boot.add(start);
+                this.probeSSH(vm, user, password, nodeMappings, result, errors);
+            }
+        } catch (IOException e) {
+            if (deployment != null && deployment.isSuccessful()) {
+                boot.fail(errors, e);
+            } else {
+                deploy.fail(errors, e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (deployment != null && deployment.isSuccessful() && deployment.getName() != null) {
+                this.deleteTestVM(client, deployment.getName(), namespace, delete, errors);
+            } else {
+                this.deleteUnconfirmedTestVM(client, testName, namespace);
+            }
+        }
+        result.addContent(deploy.toElement());
+        result.addContent(boot.toElement());
+        result.addContent(delete.toElement());
+    }
+
+    private void deleteTestVM(OrkaClient client, String name, String namespace, Probe delete, Element errors) {
+        long start = System.nanoTime();
+        Future<DeletionResponse> deletion = this.cleanupExecutor.submit(() -> client.deleteVM(name, namespace));
+        try {
+            if (this.check(delete, deletion.get(), errors)) {
+                delete.add(start);
+            }
+        } catch (ExecutionException e) {
+            delete.fail(errors, e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        } catch (InterruptedException e) {
+            LOG.debug(String.format("Diagnostics cancelled, test VM %s is deleted in the background", name));
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Deletes the test VM of a deployment that failed or was cancelled before Orka returned the VM name. The
+     * deployment may still have created it, so the namespace is listed for VMs with its name prefix.
+     */
+    private void deleteUnconfirmedTestVM(OrkaClient client, String prefix, String namespace) {
+        this.cleanupExecutor.submit(() -> {
+            try {
+                for (VMResponse vm : client.getVMs(namespace).getVMs()) {
+                    if (vm.getName() != null && vm.getName().startsWith(prefix)) {
+                        LOG.debug(String.format("Deleting test VM %s of a failed deployment", vm.getName()));
+                        client.deleteVM(vm.getName(), namespace);
+                    }
+                }
+            } catch (IOException e) {
+                LOG.info(String.format("Failed to delete test VMs with prefix %s", prefix), e);
+            }
+        });
+    }
+
+    private VMResponse findExistingVM(OrkaClient client, String namespace, Element errors) {
+        try {
+            return client.getVMs(namespace).getVMs().stream().filter(vm -> vm.getSSH() > 0 && vm.getIP() != null)
+                    .findFirst().orElse(null);
+        } catch (IOException e) {
+            errors.addContent(getError("ssh", "Cannot list VMs: " + e));
+            return null;
+        }
+    }
+
+    private void probeSSH(VMResponse vm, String user, String password, Map<String, String> nodeMappings,
+            Element result, Element errors) {
+        if (vm == null) {
+            errors.addContent(getError("ssh", "No VM available to test SSH"));
+            return;
+        }
+        String host = getMappedHost(vm.getIP(), nodeMappings);
+
+        Probe connect = new Probe("sshConnect");
+        Probe auth = new Probe("sshAuth");
+        for (int i = 0; i < SSH_SAMPLES; i++) {
+            try {
+                RemoteAgent.ConnectionTimes times = this.remoteAgent.measureConnection(host, vm.getSSH(), user,
+                        password);
+                connect.samples.add(times.getConnectMillis());
+                auth.samples.add(times.getAuthMillis());
+            } catch (IOException e) {
+                connect.fail(errors, new IOException(String.format("%s:%s - %s", host, vm.getSSH(), e), e));
+            }
+        }
+        result.addContent(connect.toElement().setAttribute("host", host));
+        result.addContent(auth.toElement().setAttribute("host", host));
+    }
+
+    private boolean check(Probe probe, ResponseBase response, Element errors) {
+        if (response.isSuccessful()) {
+            return true;
+        }
+        probe.failures++;
+        errors.addContent(getError(probe.name, response.getMessage()));
+        return false;
+    }
+
+    private static String getMappedHost(String ip, Map<String, String> nodeMappings) {
+        return nodeMappings.keySet().stream().filter(k -> k.equalsIgnoreCase(ip)).findFirst()
+                .map(nodeMappings::get).orElse(ip);
+    }
+
+    private static Element getNodesElement(List<OrkaNode> nodes, Map<String, String> nodeMappings) {
+        Element result = new Element("nodes");
+        nodes.forEach(n -> result.addContent(new Element("node").setAttribute("ip", String.valueOf(n.getNodeIP()))
+                .setAttribute("host", String.valueOf(getMappedHost(n.getNodeIP(), nodeMappings)))
+                .setAttribute("availableCpu", Integer.toString(n.getAvailableCpu()))
+                .setAttribute("allocatableCpu", Integer.toString(n.getAllocatableCpu()))
+                .setAttribute("availableMemory", String.valueOf(n.getAvailableMemory()))
+                .setAttribute("phase", String.valueOf(n.getPhase())).addContent(n.getName())));
+        return result;
+    }
+
+    private static Element getError(String probe, String message) {
+        return new Element("error").setAttribute("probe", probe).addContent(String.valueOf(message));
+    }
+
+    static long percentile(List<Long> sorted, int percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+
+    private static class Probe {
+        private final String name;
+        private final List<Long> samples = new ArrayList<Long>();
+        private int failures;
+
+        Probe(String name) {
+            this.name = name;
+        }
+
+        void add(long startNanos) {
+            this.samples.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+
+        void fail(Element errors, Exception e) {
+            this.failures++;
+            errors.addContent(getError(this.name, e.getMessage()));
+        }
+
+        Element toElement() {
+            List<Long> sorted = new ArrayList<Long>(this.samples);
+            Collections.sort(sorted);
+            Element element = new Element("probe").setAttribute("name", this.name)
+                    .setAttribute("samples", Integer.toString(sorted.size()))
+                    .setAttribute("failures", Integer.toString(this.failures));
+            for (int p : PERCENTILES) {
+                element.setAttribute("p" + p, Long.toString(percentile(sorted, p)));
+            }
+            return element.setAttribute("max", Long.toString(sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1)));
+        }
+    }
+}
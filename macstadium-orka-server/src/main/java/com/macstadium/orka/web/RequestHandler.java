@@ -4,6 +4,17 @@ import java.util.Map;
 
 import org.jdom.Element;
 
+/**
+ * Handles a settings page request. Handlers run on the controller's own executor, not on a servlet
+ * thread, and may block on Orka calls: the controller cancels them once their timeout elapses.
+ */
 public interface RequestHandler {
     Element handle(Map<String, String> params);
-}
\ No newline at end of file
+
+    /**
+     * Returns the timeout of the request in milliseconds, or a non-positive value to use the default one.
+     */
+    default long getTimeout(Map<String, String> params) {
+        return 0;
+    }
+}
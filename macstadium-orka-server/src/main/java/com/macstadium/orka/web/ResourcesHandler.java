@@ -0,0 +1,72 @@
+package com.macstadium.orka.web;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.macstadium.orka.OrkaResourceCache;
+import com.macstadium.orka.client.Image;
+import com.macstadium.orka.client.OrkaNode;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import jetbrains.buildServer.serverSide.crypt.RSACipher;
+
+import org.jdom.Element;
+
+public class ResourcesHandler implements RequestHandler {
+    private static final Logger LOG = Logger.getInstance(ResourcesHandler.class.getName());
+    private static final String NAMESPACE = "namespace";
+    private static final String DEFAULT_NAMESPACE = "orka-default";
+
+    private final OrkaResourceCache cache;
+
+    public ResourcesHandler(OrkaResourceCache cache) {
+        this.cache = cache;
+    }
+
+    public Element handle(Map<String, String> params) {
+        String endpoint = params.get(VmHandler.ORKA_ENDPOINT);
+        String token = RSACipher.decryptWebRequestData(params.get(VmHandler.ORKA_TOKEN));
+        String namespace = params.getOrDefault(NAMESPACE, DEFAULT_NAMESPACE);
+
+        LOG.debug(String.format("Get resources with endpoint: %s and namespace: %s", endpoint, namespace));
+        this.cache.evictExpired();
+
+        Element result = new Element("resources");
+        try {
+            result.addContent(VmHandler.getVmsElement(this.cache.getVMConfigs(endpoint, token)));
+        } catch (IOException e) {
+            LOG.debug("Get VMs error", e);
+            result.addContent(new Element("vms"));
+        }
+        try {
+            result.addContent(this.getImagesElement(this.cache.getImages(endpoint, token)));
+        } catch (IOException e) {
+            LOG.debug("Get images error", e);
+            result.addContent(new Element("images"));
+        }
+        try {
+            result.addContent(this.getNodesElement(this.cache.getNodes(endpoint, token, namespace)));
+        } catch (IOException e) {
+            LOG.debug("Get nodes error", e);
+            result.addContent(new Element("nodes"));
+        }
+
+        return result;
+    }
+
+    private Element getImagesElement(List<Image> images) {
+        Element result = new Element("images");
+        images.forEach(i -> result.addContent(new Element("image").addContent(i.getName())));
+        return result;
+    }
+
+    private Element getNodesElement(List<OrkaNode> nodes) {
+        Element result = new Element("nodes");
+        nodes.forEach(n -> result.addContent(new Element("node").setAttribute("ip", String.valueOf(n.getNodeIP()))
+                .setAttribute("availableCpu", Integer.toString(n.getAvailableCpu()))
+                .setAttribute("allocatableCpu", Integer.toString(n.getAllocatableCpu()))
+                .setAttribute("phase", String.valueOf(n.getPhase())).addContent(n.getName())));
+        return result;
+    }
+}
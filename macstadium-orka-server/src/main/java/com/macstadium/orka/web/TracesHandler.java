@@ -0,0 +1,42 @@
+package com.macstadium.orka.web;
+
+import com.intellij.openapi.util.text.StringUtil;
+import com.macstadium.orka.Tracer;
+
+import java.util.Map;
+
+import org.jdom.Element;
+
+/**
+ * Returns the recorded instance start up spans of the cloud profiles in the requested project. The controller
+ * checks that the user can manage the clouds of that project.
+ */
+public class TracesHandler implements RequestHandler {
+    private static final String INSTANCE = "instance";
+    private static final String PROJECT_ID = "projectId";
+
+    public Element handle(Map<String, String> params) {
+        Element result = new Element("traces");
+        String projectId = params.get(PROJECT_ID);
+        if (StringUtil.isEmpty(projectId)) {
+            return result;
+        }
+        Tracer.getInstance().getSpans(params.get(INSTANCE), projectId).forEach(span -> {
+            Element element = new Element("span").setAttribute("trace", span.getTraceId())
+                    .setAttribute("step", span.getStep()).setAttribute("start", Long.toString(span.getStartTime()))
+                    .setAttribute("duration", Long.toString(span.getDurationMillis()))
+                    .setAttribute("failed", Boolean.toString(span.isFailed()));
+            if (span.getProfileId() != null) {
+                element.setAttribute("profile", span.getProfileId());
+            }
+            if (span.getVmName() != null) {
+                element.setAttribute("vm", span.getVmName());
+            }
+            if (span.getMessage() != null) {
+                element.addContent(span.getMessage());
+            }
+            result.addContent(element);
+        });
+        return result;
+    }
+}
@@ -1,7 +1,7 @@
 package com.macstadium.orka.web;
 
 import com.intellij.openapi.diagnostic.Logger;
-import com.macstadium.orka.client.OrkaClient;
+import com.macstadium.orka.OrkaResourceCache;
 import com.macstadium.orka.client.OrkaVMConfig;
 
 import java.io.IOException;
@@ -15,32 +15,39 @@ import org.jdom.Element;
 
 public class VmHandler implements RequestHandler {
     private static final Logger LOG = Logger.getInstance(VmHandler.class.getName());
-    private static final String ORKA_ENDPOINT = "orkaEndpoint";
-    private static final String ORKA_TOKEN = "token";
+    static final String ORKA_ENDPOINT = "orkaEndpoint";
+    static final String ORKA_TOKEN = "token";
+
+    private final OrkaResourceCache cache;
+
+    public VmHandler(OrkaResourceCache cache) {
+        this.cache = cache;
+    }
 
     public Element handle(Map<String, String> params) {
         String endpoint = params.get(ORKA_ENDPOINT);
         String token = RSACipher.decryptWebRequestData(params.get(ORKA_TOKEN));
 
         LOG.debug(String.format("Get VMs with endpoint: %s", endpoint));
+        this.cache.evictExpired();
 
         List<OrkaVMConfig> vmResponse = Collections.emptyList();
         try {
-            OrkaClient client = new OrkaClient(endpoint, token);
-            vmResponse = client.getVMConfigs().getConfigs();
+            vmResponse = this.cache.getVMConfigs(endpoint, token);
             LOG.debug(String.format("VMs size received: %s", vmResponse.size()));
         } catch (IOException e) {
             LOG.debug("Get VMs error", e);
             return new Element("vms");
         }
 
+        return getVmsElement(vmResponse);
+    }
+
+    static Element getVmsElement(List<OrkaVMConfig> configs) {
         Element result = new Element("vms");
-        vmResponse.forEach(r -> {
-            String vmName = r.getName();
-            LOG.debug(String.format("VMs name: %s", vmName));
-            result.addContent(new Element("vm").addContent(vmName));
+        configs.forEach(r -> {
+            result.addContent(new Element("vm").addContent(r.getName()));
         });
-
         return result;
     }
 }
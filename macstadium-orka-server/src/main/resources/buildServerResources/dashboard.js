@@ -0,0 +1,158 @@
+function OrkaDashboardViewModel(ko, config) {
+  var self = this;
+  var imagesByKey = {};
+  var inFlightStatuses = ["SCHEDULED_TO_START", "STARTING"];
+
+  self.images = ko.observableArray([]);
+  self.connected = ko.observable(false);
+  self.now = ko.observable(Date.now());
+
+  setInterval(function () {
+    self.now(Date.now());
+  }, 1000);
+
+  function formatDuration(since) {
+    var seconds = Math.max(0, Math.floor((self.now() - since) / 1000));
+    var minutes = Math.floor(seconds / 60);
+    var hours = Math.floor(minutes / 60);
+    if (hours > 0) {
+      return hours + "h " + (minutes % 60) + "m";
+    }
+    return minutes > 0 ? minutes + "m " + (seconds % 60) + "s" : seconds + "s";
+  }
+
+  function Image(state) {
+    var image = this;
+    image.key = state.key;
+    image.name = state.name;
+    image.namespace = state.namespace;
+    image.limit = ko.observable(state.limit);
+    image.idleVms = ko.observable(state.idleVms);
+    image.pendingDeletions = ko.observable(state.pendingDeletions);
+    image.oldestDeletionSince = ko.observable(state.oldestDeletionSince);
+    image.instances = ko.observableArray([]);
+    image.instancesById = {};
+
+    image.countByStatus = ko.computed(function () {
+      var counts = {};
+      image.instances().forEach(function (instance) {
+        counts[instance.status()] = (counts[instance.status()] || 0) + 1;
+      });
+      return Object.keys(counts)
+        .sort()
+        .map(function (status) {
+          return { status: status, count: counts[status] };
+        });
+    });
+
+    image.inFlight = ko.computed(function () {
+      return image.instances().filter(function (instance) {
+        return inFlightStatuses.indexOf(instance.status()) >= 0;
+      }).length;
+    });
+
+    image.fill = ko.computed(function () {
+      var used = image.instances().length + image.idleVms();
+      return image.limit() > 0 ? used + " / " + image.limit() : used + " (unlimited)";
+    });
+
+    image.deletions = ko.computed(function () {
+      if (!image.pendingDeletions()) {
+        return "0";
+      }
+      return image.pendingDeletions() + " (oldest " + formatDuration(image.oldestDeletionSince()) + ")";
+    });
+
+    image.update = function (state) {
+      image.limit(state.limit);
+      image.idleVms(state.idleVms);
+      image.pendingDeletions(state.pendingDeletions);
+      image.oldestDeletionSince(state.oldestDeletionSince);
+    };
+
+    image.upsert = function (state) {
+      var instance = image.instancesById[state.id];
+      if (instance) {
+        instance.update(state);
+        return;
+      }
+      instance = new Instance(state);
+      image.instancesById[state.id] = instance;
+      image.instances.push(instance);
+    };
+
+    image.remove = function (id) {
+      var instance = image.instancesById[id];
+      if (instance) {
+        delete image.instancesById[id];
+        image.instances.remove(instance);
+      }
+    };
+
+    (state.instances || []).forEach(image.upsert);
+  }
+
+  function Instance(state) {
+    var instance = this;
+    instance.id = state.id;
+    instance.status = ko.observable();
+    instance.statusSince = ko.observable();
+    instance.host = ko.observable();
+    instance.node = ko.observable();
+    instance.error = ko.observable();
+
+    instance.timeInState = ko.computed(function () {
+      return formatDuration(instance.statusSince());
+    });
+
+    instance.update = function (state) {
+      instance.status(state.status);
+      instance.statusSince(state.statusSince);
+      instance.host(state.host || "");
+      instance.node(state.node || "");
+      instance.error(state.error || "");
+    };
+
+    instance.update(state);
+  }
+
+  function load(images) {
+    imagesByKey = {};
+    self.images(
+      images.map(function (state) {
+        var image = new Image(state);
+        imagesByKey[image.key] = image;
+        return image;
+      })
+    );
+  }
+
+  function apply(change) {
+    var image = imagesByKey[change.image];
+    if (!image) {
+      return;
+    }
+    if (change.type === "image") {
+      image.update(change.imageState);
+    } else if (change.type === "instance") {
+      image.upsert(change.instance);
+    } else if (change.type === "removed") {
+      image.remove(change.instance.id);
+    }
+  }
+
+  var source = new EventSource(config.baseUrl + "?resource=events&projectId=" +
+    encodeURIComponent(config.projectId));
+  source.onopen = function () {
+    self.connected(true);
+  };
+  source.onerror = function () {
+    self.connected(false);
+  };
+  source.addEventListener("snapshot", function (event) {
+    load(JSON.parse(event.data));
+  });
+  source.addEventListener("changes", function (event) {
+    JSON.parse(event.data).forEach(apply);
+  });
+}
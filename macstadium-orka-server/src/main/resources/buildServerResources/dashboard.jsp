@@ -0,0 +1,76 @@
+<%@ include file="/include-internal.jsp" %>
+<%@ taglib prefix="bs" tagdir="/WEB-INF/tags" %>
+<jsp:useBean id="basePath" class="java.lang.String" scope="request"/>
+
+<bs:page>
+    <jsp:attribute name="page_title">Orka Pools</jsp:attribute>
+    <jsp:attribute name="body_include">
+        <script type="text/javascript">
+            BS.LoadStyleSheetDynamically("<c:url value='${resPath}settings.css'/>");
+        </script>
+
+        <div id="orka-dashboard">
+            <div class="smallNote" data-bind="visible: !connected()">Connecting...</div>
+            <div class="smallNote" data-bind="visible: connected() && images().length === 0" style="display: none">
+                No Orka cloud profiles are running.
+            </div>
+
+            <div data-bind="foreach: images">
+                <h2 class="noBorder section-header">
+                    <span data-bind="text: name"></span>
+                    <span class="grayNote" data-bind="text: '(' + namespace + ')'"></span>
+                </h2>
+                <table class="runnerFormTable">
+                    <tr>
+                        <th>Pool fill level:</th>
+                        <td data-bind="text: fill"></td>
+                    </tr>
+                    <tr>
+                        <th>In-flight deploys:</th>
+                        <td data-bind="text: inFlight"></td>
+                    </tr>
+                    <tr>
+                        <th>Idle VMs:</th>
+                        <td data-bind="text: idleVms"></td>
+                    </tr>
+                    <tr>
+                        <th>Pending deletions:</th>
+                        <td data-bind="text: deletions"></td>
+                    </tr>
+                    <tr>
+                        <th>Instances by status:</th>
+                        <td>
+                            <span data-bind="foreach: countByStatus">
+                                <span data-bind="text: status + ': ' + count"></span>&nbsp;
+                            </span>
+                        </td>
+                    </tr>
+                </table>
+                <table class="dashboard" data-bind="visible: instances().length > 0">
+                    <tr><th>Instance</th><th>Status</th><th>Time in status</th><th>Host</th><th>Node</th><th>Error</th></tr>
+                    <tbody data-bind="foreach: instances">
+                        <tr>
+                            <td data-bind="text: id"></td>
+                            <td data-bind="text: status"></td>
+                            <td data-bind="text: timeInState"></td>
+                            <td data-bind="text: host"></td>
+                            <td data-bind="text: node"></td>
+                            <td class="error" data-bind="text: error"></td>
+                        </tr>
+                    </tbody>
+                </table>
+            </div>
+        </div>
+
+        <script type="text/javascript">
+            $j.when($j.getScript("<c:url value="${resPath}knockout-3.4.0.js"/>"),
+                $j.getScript("<c:url value="${resPath}dashboard.js"/>")
+            ).then(function () {
+                ko.applyBindings(new OrkaDashboardViewModel(ko, {
+                    baseUrl: "<c:url value='${basePath}'/>",
+                    projectId: "${projectId}"
+                }), document.getElementById("orka-dashboard"));
+            });
+        </script>
+    </jsp:attribute>
+</bs:page>
@@ -16,6 +16,8 @@ function OrkaImagesViewModel(BS, $F, ko, $, config) {
     if (!self.namespaceInitialized && !data) {
       self.namespaceInitialized = true;
       self.namespace("orka-default");
+    } else {
+      self.loadInfo();
     }
   });
 
@@ -36,11 +38,23 @@ function OrkaImagesViewModel(BS, $F, ko, $, config) {
   });
 
   self.vms = ko.observableArray([]);
+  self.images = ko.observableArray([]);
+  self.nodes = ko.observableArray([]);
 
   self.vmName = ko.observable().extend({ required: true });
   self.currentVm = ko.observable().extend({ required: true });
   self.vmUser = ko.observable().extend({ required: true });
   self.vmPassword = ko.observable().extend({ required: true });
+  self.vmPasswordEncrypted = ko.observable();
+  self.vmPasswordInitialized;
+
+  self.vmPassword.subscribe(function (data) {
+    if (self.vmPasswordInitialized) {
+      self.vmPasswordEncrypted(BS.Encrypt.encryptData(data, $F("publicKey")));
+    } else {
+      self.vmPasswordInitialized = true;
+    }
+  });
 
   self.agentPools = ko.observableArray([]);
   self.agentPoolId = ko.observable().extend({ required: true });
@@ -63,12 +77,14 @@ function OrkaImagesViewModel(BS, $F, ko, $, config) {
 
     var credentials = getCredentials();
     if (credentials) {
-      var url = config.baseUrl + "?resource=vms";
+      var url = config.baseUrl + "?resource=resources";
       $.post(url, credentials)
         .then(function (response) {
           var $response = $(response);
 
           self.vms(getVms($response));
+          self.images(getImages($response));
+          self.nodes(getNodes($response));
           self.currentVm(self.vmName());
         })
         .always(function () {
@@ -77,6 +93,67 @@ function OrkaImagesViewModel(BS, $F, ko, $, config) {
     }
   };
 
+  self.deployTest = ko.observable(false);
+  self.runningDiagnostics = ko.observable(false);
+  self.probes = ko.observableArray([]);
+  self.diagnosticNodes = ko.observableArray([]);
+  self.diagnosticErrors = ko.observableArray([]);
+
+  self.runDiagnostics = function () {
+    var credentials = getCredentials();
+    if (!credentials || self.runningDiagnostics()) {
+      return;
+    }
+
+    self.runningDiagnostics(true);
+    var url = config.baseUrl + "?resource=diagnostics";
+    $.post(
+      url,
+      $.extend({}, credentials, {
+        vmName: self.currentVm(),
+        vmUser: self.vmUser(),
+        vmPassword: self.vmPasswordEncrypted(),
+        nodeMappings: self.nodeMappings() || "",
+        deployTest: self.deployTest(),
+      })
+    )
+      .then(function (response) {
+        var $response = $(response);
+
+        self.probes(getProbes($response));
+        self.diagnosticNodes(getNodes($response));
+        self.diagnosticErrors(
+          $response
+            .find("errors:eq(0) error")
+            .map(function () {
+              return $(this).attr("probe") + ": " + $(this).text();
+            })
+            .get()
+        );
+      })
+      .always(function () {
+        self.runningDiagnostics(false);
+      });
+  };
+
+  function getProbes($response) {
+    return $response
+      .find("diagnostics:eq(0) probe")
+      .map(function () {
+        return {
+          name: $(this).attr("name"),
+          host: $(this).attr("host") || "",
+          samples: $(this).attr("samples"),
+          failures: $(this).attr("failures"),
+          p50: $(this).attr("p50"),
+          p90: $(this).attr("p90"),
+          p99: $(this).attr("p99"),
+          max: $(this).attr("max"),
+        };
+      })
+      .get();
+  }
+
   function getCredentials() {
     if (!self.orkaEndpoint() || !self.tokenEncrypted()) {
       return null;
@@ -85,6 +162,8 @@ function OrkaImagesViewModel(BS, $F, ko, $, config) {
     return {
       orkaEndpoint: self.orkaEndpoint(),
       token: self.tokenEncrypted(),
+      namespace: self.namespace() || "orka-default",
+      projectId: config.projectId,
     };
   }
 
@@ -97,6 +176,31 @@ function OrkaImagesViewModel(BS, $F, ko, $, config) {
       .get();
   }
 
+  function getImages($response) {
+    return $response
+      .find("images:eq(0) image")
+      .map(function () {
+        return $(this).text();
+      })
+      .get();
+  }
+
+  function getNodes($response) {
+    return $response
+      .find("nodes:eq(0) node")
+      .map(function () {
+        return {
+          name: $(this).text(),
+          ip: $(this).attr("ip"),
+          host: $(this).attr("host"),
+          availableCpu: $(this).attr("availableCpu"),
+          allocatableCpu: $(this).attr("allocatableCpu"),
+          phase: $(this).attr("phase"),
+        };
+      })
+      .get();
+  }
+
   (function loadAgentPools() {
     self.loadingAgentPools(true);
     var url =
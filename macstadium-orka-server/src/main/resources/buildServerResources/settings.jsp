@@ -17,6 +17,9 @@
 
 <div id="orka-setting">
     <h2 class="noBorder section-header">Orka Config</h2>
+    <div class="smallNote section-header">
+        <a href="<c:url value='${basePath}?view=dashboard&projectId=${projectId}'/>" target="_blank">Open the pool dashboard</a>
+    </div>
     <table class="runnerFormTable">
         <tr>
             <th><label for="${constants.orkaEndpoint}">Orka endpoint: <l:star/></label></th>
@@ -57,6 +60,35 @@
             </td>
         </tr>
 
+        <tr>
+            <th>Cluster resources:</th>
+            <td>
+                <span class="smallNote" data-bind="visible: images().length > 0, text: 'Images: ' + images().join(', ')" style="display: none"></span>
+                <table class="diagnostics" data-bind="visible: nodes().length > 0" style="display: none">
+                    <tr><th>Node</th><th>IP</th><th>Phase</th><th>Available CPU</th></tr>
+                    <tbody data-bind="foreach: nodes">
+                        <tr>
+                            <td data-bind="text: name"></td>
+                            <td data-bind="text: ip"></td>
+                            <td data-bind="text: phase"></td>
+                            <td data-bind="text: availableCpu + ' / ' + allocatableCpu"></td>
+                        </tr>
+                    </tbody>
+                </table>
+                <span class="smallNote">
+                    Images of the Orka endpoint and node capacity in the namespace below.
+                </span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.vmConfigs}">Additional VM configs:</label></th>
+            <td>
+                <props:textProperty name="${constants.vmConfigs}" className="longField"/>
+                <span class="smallNote">Other VM configs new VMs may be deployed from, separated by commas. Builds that require a CPU count or memory size get the smallest config that fits.</span>
+            </td>
+        </tr>
+
         <tr>
             <th><label for="${constants.namespace}">Namespace: <l:star/></label></th>
             <td>
@@ -102,6 +134,175 @@
             </td>
         </tr>
 
+        <tr class="advancedSetting">
+            <th><label for="${constants.prewarmInstances}">Pre-provisioned instances:</label></th>
+            <td>
+                <props:textProperty name="${constants.prewarmInstances}" className="settings"/>
+                <span class="smallNote">Maximum number of instances started ahead of demand, based on the build queue. Use blank to disable.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.reuseVms}">Reuse VMs:</label></th>
+            <td>
+                <props:checkboxProperty name="${constants.reuseVms}"/>
+                <span class="smallNote">Keep VMs after a build and hand them out to the next instance request instead of deploying a new VM. Use only for trusted projects.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.reuseCleanupScript}">Cleanup command:</label></th>
+            <td>
+                <props:textProperty name="${constants.reuseCleanupScript}" className="longField"/>
+                <span class="smallNote">Command executed over SSH before a VM is reused. The VM is deleted if the command fails.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.reuseMaxBuilds}">Maximum builds per VM:</label></th>
+            <td>
+                <props:textProperty name="${constants.reuseMaxBuilds}" className="settings"/>
+                <span class="smallNote">Number of builds after which a reused VM is deleted. Use blank to have no limit.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.reuseMaxAge}">Maximum VM age (minutes):</label></th>
+            <td>
+                <props:textProperty name="${constants.reuseMaxAge}" className="settings"/>
+                <span class="smallNote">Age after which a reused VM is deleted. Use blank to have no limit.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.reuseParkMode}">Idle VM state:</label></th>
+            <td>
+                <props:selectProperty name="${constants.reuseParkMode}" className="settings">
+                    <props:option value="">Running</props:option>
+                    <props:option value="SUSPEND">Suspended</props:option>
+                    <props:option value="STOP">Stopped</props:option>
+                </props:selectProperty>
+                <span class="smallNote">State of reused VMs while they wait for the next instance request. Suspended and stopped VMs are resumed before the agent is started.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.reuseMaxIdleTime}">Maximum idle VM time (minutes):</label></th>
+            <td>
+                <props:textProperty name="${constants.reuseMaxIdleTime}" className="settings"/>
+                <span class="smallNote">Time after which a VM waiting for reuse is deleted. Use blank to have no limit.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.placementStrategy}">Node placement:</label></th>
+            <td>
+                <props:selectProperty name="${constants.placementStrategy}" className="settings">
+                    <props:option value="">Let Orka decide</props:option>
+                    <props:option value="LEAST_LOADED">Least loaded node</props:option>
+                    <props:option value="SPREAD">Spread across nodes</props:option>
+                    <props:option value="PACK">Pack nodes</props:option>
+                </props:selectProperty>
+                <span class="smallNote">Node selection for new VMs. Only nodes in the READY phase with enough free CPU are used.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.placementNode}">Target node:</label></th>
+            <td>
+                <props:textProperty name="${constants.placementNode}" className="settings"/>
+                <span class="smallNote">Deploy all VMs on this node. Overrides the node placement setting.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.deployWaveSize}">Deployments per node wave:</label></th>
+            <td>
+                <props:textProperty name="${constants.deployWaveSize}" className="settings"/>
+                <span class="smallNote">Maximum number of VMs deployed at once on a node when many instances are requested together. Use blank to deploy all at once.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.deployWaveDelay}">Delay between waves (seconds):</label></th>
+            <td>
+                <props:textProperty name="${constants.deployWaveDelay}" className="settings"/>
+                <span class="smallNote">Defaults to 30.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.clusterCapacity}">Orka cluster capacity:</label></th>
+            <td>
+                <props:textProperty name="${constants.clusterCapacity}" className="settings"/>
+                <span class="smallNote">Maximum number of VMs deployed by all cloud profiles using this Orka endpoint. Use blank to have no limit.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.clusterWeight}">Cluster capacity weight:</label></th>
+            <td>
+                <props:textProperty name="${constants.clusterWeight}" className="settings"/>
+                <span class="smallNote">Share of the Orka cluster capacity guaranteed to this profile, relative to the other profiles. Defaults to 1.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.primaryClusterCapacity}">Primary cluster capacity:</label></th>
+            <td>
+                <props:textProperty name="${constants.primaryClusterCapacity}" className="settings"/>
+                <span class="smallNote">Maximum number of VMs this profile deploys on the Orka endpoint above, before using the additional clusters. Use blank to have no limit.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.clusters}">Additional clusters:</label></th>
+            <td>
+                <props:multilineProperty name="${constants.clusters}" linkTitle="Additional clusters" cols="49" rows="4" className="longField"/>
+                <span class="smallNote">One cluster per line in "NAME;ENDPOINT;CAPACITY;PRIVATE_HOST=PUBLIC_HOST,..." format. Capacity and node mappings are optional.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.clusterTokens}">Additional cluster tokens:</label></th>
+            <td>
+                <props:passwordProperty name="${constants.clusterTokens}" className="settings longField"/>
+                <span class="smallNote">Tokens of the additional clusters in "NAME=TOKEN" format, separated by spaces.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.healthCheckInterval}">Health check interval (seconds):</label></th>
+            <td>
+                <props:textProperty name="${constants.healthCheckInterval}" className="settings"/>
+                <span class="smallNote">How often running instances are checked against the VMs in the namespace. Defaults to 60. Use 0 to disable.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.recycleMaxLifetime}">Maximum instance lifetime (minutes):</label></th>
+            <td>
+                <props:textProperty name="${constants.recycleMaxLifetime}" className="settings"/>
+                <span class="smallNote">Idle instances older than this are replaced with new ones. Use blank to have no limit.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.recycleMaxIdle}">Maximum idle time (minutes):</label></th>
+            <td>
+                <props:textProperty name="${constants.recycleMaxIdle}" className="settings"/>
+                <span class="smallNote">Instances without builds for this long are terminated. Use blank to have no limit.</span>
+            </td>
+        </tr>
+
+        <tr class="advancedSetting">
+            <th><label for="${constants.recycleMinInstances}">Minimum running instances:</label></th>
+            <td>
+                <props:textProperty name="${constants.recycleMinInstances}" className="settings"/>
+                <span class="smallNote">Recycling never takes the number of running instances below this value.</span>
+            </td>
+        </tr>
+
         <tr class="advancedSetting">
             <th><label for="${constants.agentPoolId}">Agent pool:</label></th>
             <td>
@@ -114,6 +315,14 @@
             </td>
         </tr>
 
+        <tr class="advancedSetting">
+            <th><label for="${constants.agentRegistrationTimeout}">Agent registration timeout (minutes):</label></th>
+            <td>
+                <props:textProperty name="${constants.agentRegistrationTimeout}" className="settings"/>
+                <span class="smallNote">Instances whose agent does not connect to the server within this time are terminated. Defaults to 10. Use 0 to wait indefinitely.</span>
+            </td>
+        </tr>
+
         <tr class="advancedSetting">
             <th><label for="${constants.agentDirectory}">Agent directory:</label></th>
             <td>
@@ -141,6 +350,53 @@
             </td>
         </tr>
     </table>
+    <h2 class="noBorder section-header">Diagnostics</h2>
+    <table class="runnerFormTable">
+        <tr>
+            <th>Connection diagnostics:</th>
+            <td>
+                <input type="checkbox" id="orka-deploy-test" class="ignoreModified" data-bind="checked: deployTest"/>
+                <label for="orka-deploy-test">Deploy and delete a test VM</label>
+                <div>
+                    <a href="#" data-bind="click: runDiagnostics, visible: !runningDiagnostics()">Run diagnostics</a>
+                    <span data-bind="css: {invisible: !runningDiagnostics()}">
+                        <i class="icon-refresh icon-spin"></i> Running...
+                    </span>
+                </div>
+                <span class="smallNote">Measures Orka API, VM deployment and SSH latency, and shows the node capacity, using the values entered above.</span>
+                <table class="diagnostics" data-bind="visible: probes().length > 0" style="display: none">
+                    <tr><th>Check</th><th>Host</th><th>Samples</th><th>Failures</th><th>p50 (ms)</th><th>p90 (ms)</th><th>p99 (ms)</th><th>Max (ms)</th></tr>
+                    <tbody data-bind="foreach: probes">
+                        <tr>
+                            <td data-bind="text: name"></td>
+                            <td data-bind="text: host"></td>
+                            <td data-bind="text: samples"></td>
+                            <td data-bind="text: failures"></td>
+                            <td data-bind="text: p50"></td>
+                            <td data-bind="text: p90"></td>
+                            <td data-bind="text: p99"></td>
+                            <td data-bind="text: max"></td>
+                        </tr>
+                    </tbody>
+                </table>
+                <table class="diagnostics" data-bind="visible: diagnosticNodes().length > 0" style="display: none">
+                    <tr><th>Node</th><th>IP</th><th>Mapped host</th><th>Phase</th><th>Available CPU</th></tr>
+                    <tbody data-bind="foreach: diagnosticNodes">
+                        <tr>
+                            <td data-bind="text: name"></td>
+                            <td data-bind="text: ip"></td>
+                            <td data-bind="text: host"></td>
+                            <td data-bind="text: phase"></td>
+                            <td data-bind="text: availableCpu + ' / ' + allocatableCpu"></td>
+                        </tr>
+                    </tbody>
+                </table>
+                <div data-bind="foreach: diagnosticErrors">
+                    <div class="error" data-bind="text: $data"></div>
+                </div>
+            </td>
+        </tr>
+    </table>
 </div>
 
 <script type="text/javascript">
@@ -158,6 +414,7 @@
         setBindings("secure:cloud.orka.token", "initValue: token, textInput: token");
         setBindings("prop:encrypted:secure:cloud.orka.token", "initValue: tokenEncrypted, textInput: tokenEncrypted");
         setBindings("secure:cloud.orka.vm.password", "initValue: vmPassword, textInput: vmPassword");
+        setBindings("prop:encrypted:secure:cloud.orka.vm.password", "initValue: vmPasswordEncrypted, textInput: vmPasswordEncrypted");
 
         ko.validation.init({insertMessages: false});
         ko.applyBindings(new OrkaImagesViewModel(BS, $F, ko, $j, {
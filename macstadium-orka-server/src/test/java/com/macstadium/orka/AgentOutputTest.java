@@ -0,0 +1,63 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+@Test
+public class AgentOutputTest {
+    public void when_line_matches_failure_should_report_it() {
+        AgentOutput output = new AgentOutput();
+
+        output.append("Starting TeamCity build agent...\nJava not found. Cannot start Team");
+        assertNull(output.getFailure());
+        output.append("City agent.\n");
+
+        assertEquals("Java not found. Cannot start TeamCity agent.", output.getFailure());
+    }
+
+    public void when_last_line_is_not_terminated_should_check_it_on_finish() {
+        AgentOutput output = new AgentOutput();
+
+        output.append("bash: /Users/admin/BuildAgent/bin/agent.sh: No such file or directory");
+        assertNull(output.getFailure());
+        output.finish();
+
+        assertTrue(output.getFailure().endsWith("No such file or directory"));
+    }
+
+    public void when_agent_script_prints_missing_file_should_not_report_failure() {
+        AgentOutput output = new AgentOutput();
+
+        output.append("Starting TeamCity build agent...\n");
+        output.append("cat: /Users/admin/BuildAgent/logs/buildAgent.pid: No such file or directory\n");
+        output.append("ls: /Users/admin/BuildAgent/plugins: Permission denied\n");
+        output.finish();
+
+        assertNull(output.getFailure());
+    }
+
+    public void when_agent_script_is_not_executable_should_report_failure() {
+        AgentOutput output = new AgentOutput();
+
+        output.append("zsh:1: permission denied: /Users/admin/BuildAgent/bin/agent.sh\n");
+
+        assertEquals("zsh:1: permission denied: /Users/admin/BuildAgent/bin/agent.sh", output.getFailure());
+    }
+
+    public void when_output_is_too_long_should_keep_the_end() {
+        AgentOutput output = new AgentOutput();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < AgentOutput.MAX_LENGTH; i++) {
+            text.append('a');
+        }
+
+        output.append(text);
+        output.append("done\n");
+
+        assertTrue(output.toString().startsWith("[5 characters truncated]"));
+        assertTrue(output.toString().endsWith("done\n"));
+    }
+}
@@ -0,0 +1,107 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.Test;
+
+@Test
+public class ClusterQuotaTest {
+    public void when_capacity_is_not_set_should_not_limit() {
+        ClusterQuota quota = new ClusterQuota("endpoint", () -> 0);
+        ClusterQuota.Member member = quota.add("first", 0, 1, () -> 100);
+
+        assertTrue(member.tryAcquire());
+    }
+
+    public void when_capacity_is_reached_should_refuse() {
+        ClusterQuota quota = new ClusterQuota("endpoint", () -> 0);
+        AtomicInteger firstUsage = new AtomicInteger(6);
+        ClusterQuota.Member first = quota.add("first", 10, 1, firstUsage::get);
+        ClusterQuota.Member second = quota.add("second", 10, 1, () -> 4);
+
+        assertFalse(first.canAcquire());
+        assertFalse(second.tryAcquire());
+        firstUsage.set(5);
+        assertTrue(second.tryAcquire());
+    }
+
+    public void when_others_are_idle_should_borrow_their_share() {
+        ClusterQuota quota = new ClusterQuota("endpoint", () -> 0);
+        ClusterQuota.Member first = quota.add("first", 10, 3, () -> 8);
+        quota.add("second", 10, 1, () -> 0);
+
+        assertEquals(7, quota.getShare(first));
+        assertTrue(first.tryAcquire());
+        first.acquired();
+    }
+
+    public void when_other_is_waiting_for_its_share_should_not_borrow() {
+        AtomicLong clock = new AtomicLong(1000);
+        ClusterQuota quota = new ClusterQuota("endpoint", clock::get);
+        AtomicInteger firstUsage = new AtomicInteger(8);
+        ClusterQuota.Member first = quota.add("first", 10, 1, firstUsage::get);
+        ClusterQuota.Member second = quota.add("second", 10, 1, () -> 2);
+
+        assertFalse(second.tryAcquire());
+        firstUsage.set(7);
+
+        assertFalse(first.canAcquire());
+        assertTrue(second.tryAcquire());
+        clock.addAndGet(2 * 60 * 1000);
+        second.acquired();
+        assertTrue(first.canAcquire());
+    }
+
+    public void when_refused_its_share_should_reclaim_idle_vm_of_borrower() {
+        ClusterQuota quota = new ClusterQuota("endpoint", () -> 0);
+        AtomicInteger firstUsage = new AtomicInteger(7);
+        ClusterQuota.Member first = quota.add("first", 10, 1, firstUsage::get);
+        ClusterQuota.Member second = quota.add("second", 10, 1, () -> 3);
+        first.setReclaimer(() -> firstUsage.decrementAndGet() >= 0);
+
+        assertFalse(second.tryAcquire());
+
+        assertEquals(6, firstUsage.get());
+        assertTrue(second.tryAcquire());
+    }
+
+    public void when_reserved_should_count_pending_instances() {
+        ClusterQuota quota = new ClusterQuota("endpoint", () -> 0);
+        ClusterQuota.Member first = quota.add("first", 2, 1, () -> 0);
+
+        assertTrue(first.tryAcquire());
+        assertTrue(first.tryAcquire());
+        assertFalse(first.tryAcquire());
+    }
+
+    public void when_image_uses_several_clusters_should_count_vms_per_cluster_endpoint() {
+        OrkaCloudImage image = new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 10);
+        ClusterQuota primary = new ClusterQuota("primary", () -> 0);
+        ClusterQuota secondary = new ClusterQuota("secondary", () -> 0);
+        image.setClusterQuota(OrkaConstants.PRIMARY_CLUSTER,
+                primary.add("vm", 1, 1, () -> image.getUsedSlots(id -> id.indexOf('@') < 0)));
+        image.setClusterQuota("second",
+                secondary.add("vm", 2, 1, () -> image.getUsedSlots(id -> id.endsWith("@second"))));
+
+        image.startNewInstance("vm-1");
+
+        assertFalse(image.canAcquire(OrkaConstants.PRIMARY_CLUSTER));
+        assertTrue(image.canAcquire("second"));
+        assertTrue(image.canStartNewInstance());
+        image.startNewInstance("vm-2@second", "second");
+        assertEquals(1, primary.getUsed());
+        assertEquals(1, secondary.getUsed());
+
+        image.unregisterClusterQuota();
+        assertEquals(0, secondary.getUsed());
+    }
+
+    public void when_endpoints_differ_only_in_case_or_slash_should_share_quota() {
+        assertEquals(ClusterQuota.normalize("HTTP://10.221.188.20/"), ClusterQuota.normalize("http://10.221.188.20"));
+    }
+}
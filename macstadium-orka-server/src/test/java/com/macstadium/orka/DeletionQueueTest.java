@@ -0,0 +1,69 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.Test;
+
+@Test
+public class DeletionQueueTest {
+    public void when_deletion_fails_should_retry_with_backoff() {
+        AtomicLong now = new AtomicLong(1000);
+        DeletionQueue queue = new DeletionQueue(null, now::get, new Random(1));
+        queue.add("vm-1", "orka-default");
+
+        DeletionQueue.Item item = queue.due().get(0);
+        assertTrue(queue.failed(item, "error"));
+        assertTrue(queue.due().isEmpty());
+
+        now.addAndGet(DeletionQueue.BASE_BACKOFF * 2);
+        assertEquals(1, queue.due().size());
+        assertEquals(1, queue.getDepth());
+        assertEquals(DeletionQueue.BASE_BACKOFF * 2, queue.getOldestAge());
+    }
+
+    public void when_backoff_grows_should_stay_within_jitter_and_maximum() {
+        DeletionQueue queue = new DeletionQueue(null, () -> 0, new Random(1));
+
+        for (int attempts = 1; attempts < 30; attempts++) {
+            long expected = Math.min(DeletionQueue.BASE_BACKOFF << Math.min(attempts - 1, 30),
+                    DeletionQueue.MAX_BACKOFF);
+            long backoff = queue.getBackoff(attempts);
+            assertTrue(backoff >= expected * 0.8 && backoff <= expected * 1.2);
+        }
+    }
+
+    public void when_attempts_run_out_should_drop_vm() {
+        DeletionQueue queue = new DeletionQueue(null, () -> 0, new Random(1));
+        queue.add("vm-1", "orka-default");
+        DeletionQueue.Item item = queue.due().get(0);
+
+        for (int i = 1; i < DeletionQueue.MAX_ATTEMPTS; i++) {
+            assertTrue(queue.failed(item, "error"));
+        }
+
+        assertFalse(queue.failed(item, "error"));
+        assertEquals(0, queue.getDepth());
+    }
+
+    public void when_queue_is_reloaded_should_keep_vms() throws IOException {
+        File file = new File(Files.createTempDirectory("orka").toFile(), "orka/deletions.json");
+        DeletionQueue queue = new DeletionQueue(file, () -> 1000, new Random(1));
+        queue.add("vm-1", "orka-default");
+        queue.add("vm-2", "orka-default");
+        queue.deleted(queue.due().get(0));
+
+        DeletionQueue reloaded = new DeletionQueue(file, () -> 2000, new Random(1));
+
+        assertEquals(1, reloaded.getDepth());
+        assertTrue(reloaded.contains("vm-2"));
+        assertEquals(1000, reloaded.getOldestAge());
+    }
+}
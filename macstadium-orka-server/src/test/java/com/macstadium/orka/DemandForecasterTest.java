@@ -0,0 +1,114 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.macstadium.orka.client.OrkaClient;
+
+import java.util.Collections;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.serverSide.agentPools.AgentPoolManager;
+
+import org.testng.annotations.Test;
+
+@Test
+public class DemandForecasterTest {
+    public void when_builds_are_queued_should_start_instances_up_to_spare_limit() {
+        OrkaCloudClient client = this.getClient();
+        OrkaCloudImage image = (OrkaCloudImage) client.getImages().toArray()[0];
+        DemandForecaster forecaster = new DemandForecaster(client, null, 2);
+
+        forecaster.buildQueued(this.getQueuedBuild(1, "project"));
+        forecaster.buildQueued(this.getQueuedBuild(2, "project"));
+        forecaster.buildQueued(this.getQueuedBuild(3, "project"));
+        forecaster.evaluate();
+
+        assertEquals(2, image.getInstances().size());
+    }
+
+    public void when_idle_instances_exist_should_not_start_instances() {
+        OrkaCloudClient client = this.getClient();
+        OrkaCloudImage image = (OrkaCloudImage) client.getImages().toArray()[0];
+        image.startNewInstance("idle").setStatus(InstanceStatus.RUNNING);
+        DemandForecaster forecaster = new DemandForecaster(client, null, 1);
+
+        forecaster.buildQueued(this.getQueuedBuild(1, "project"));
+        forecaster.evaluate();
+
+        assertEquals(1, image.getInstances().size());
+    }
+
+    public void when_build_is_dequeued_should_not_count_it() {
+        OrkaCloudClient client = this.getClient();
+        OrkaCloudImage image = (OrkaCloudImage) client.getImages().toArray()[0];
+        AtomicLong clock = new AtomicLong(0);
+        DemandForecaster forecaster = new DemandForecaster(client, null, 5, clock::get);
+
+        forecaster.buildQueued(this.getQueuedBuild(1, "project"));
+        forecaster.buildDequeued(1);
+        clock.set(Long.MAX_VALUE / 2);
+
+        assertEquals(0, forecaster.getForecast(image));
+    }
+
+    public void when_build_project_is_not_in_pool_should_not_count_it() {
+        OrkaCloudClient client = this.getClient();
+        OrkaCloudImage image = (OrkaCloudImage) client.getImages().toArray()[0];
+        AgentPoolManager poolManager = mock(AgentPoolManager.class);
+        when(poolManager.getPoolProjects(100)).thenReturn(Collections.singleton("project"));
+        DemandForecaster forecaster = new DemandForecaster(client, poolManager, 5);
+
+        forecaster.buildQueued(this.getQueuedBuild(1, "other"));
+
+        assertEquals(0, forecaster.getForecast(image));
+    }
+
+    public void when_pool_has_no_projects_should_not_count_builds_of_unrelated_projects() {
+        OrkaCloudClient client = this.getClient();
+        OrkaCloudImage image = (OrkaCloudImage) client.getImages().toArray()[0];
+        AgentPoolManager poolManager = mock(AgentPoolManager.class);
+        when(poolManager.getPoolProjects(100)).thenReturn(Collections.emptySet());
+        DemandForecaster forecaster = new DemandForecaster(client, poolManager, 5);
+
+        forecaster.buildQueued(this.getQueuedBuild(1, "unrelated"));
+        forecaster.buildQueued(this.getQueuedBuild(2, null));
+        forecaster.evaluate();
+
+        assertEquals(0, forecaster.getForecast(image));
+        assertEquals(0, image.getInstances().size());
+    }
+
+    public void when_disabled_should_not_start_instances() {
+        OrkaCloudClient client = this.getClient();
+        OrkaCloudImage image = (OrkaCloudImage) client.getImages().toArray()[0];
+        DemandForecaster forecaster = new DemandForecaster(client, null, 0);
+
+        forecaster.buildQueued(this.getQueuedBuild(1, "project"));
+        forecaster.evaluate();
+
+        assertEquals(0, image.getInstances().size());
+    }
+
+    private OrkaCloudClient getClient() {
+        return new OrkaCloudClient(Utils.getCloudClientParametersMock("imageId"), mock(OrkaClient.class),
+                mock(ScheduledExecutorService.class), mock(RemoteAgent.class), mock(SSHUtil.class));
+    }
+
+    private SQueuedBuild getQueuedBuild(long promotionId, String projectId) {
+        BuildPromotion promotion = mock(BuildPromotion.class);
+        when(promotion.getId()).thenReturn(promotionId);
+        SBuildType buildType = mock(SBuildType.class);
+        when(buildType.getProjectId()).thenReturn(projectId);
+        SQueuedBuild queuedBuild = mock(SQueuedBuild.class);
+        when(queuedBuild.getBuildPromotion()).thenReturn(promotion);
+        when(queuedBuild.getBuildType()).thenReturn(buildType);
+        return queuedBuild;
+    }
+}
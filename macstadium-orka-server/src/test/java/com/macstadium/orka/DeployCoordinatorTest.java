@@ -0,0 +1,161 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.macstadium.orka.client.NodeResponse;
+import com.macstadium.orka.client.OrkaClient;
+import com.macstadium.orka.client.OrkaNode;
+import com.macstadium.orka.client.OrkaVMConfig;
+import com.macstadium.orka.client.VMConfigResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+@Test
+public class DeployCoordinatorTest {
+    private final Map<Long, List<Runnable>> scheduled = new TreeMap<Long, List<Runnable>>();
+
+    public void when_waves_are_disabled_should_deploy_batch_at_once() throws IOException {
+        List<String> deployed = new ArrayList<String>();
+        DeployCoordinator coordinator = new DeployCoordinator(this.getExecutor(),
+                this.getPlacement(PlacementStrategy.NONE, null), 0, 0, () -> 0);
+
+        coordinator.submit(this.getImage(), this.record(deployed, "first"));
+        coordinator.submit(this.getImage(), this.record(deployed, "second"));
+        assertEquals(0, deployed.size());
+
+        this.runScheduled(DeployCoordinator.BATCH_WINDOW);
+
+        assertEquals(Arrays.asList("first", "second"), deployed);
+        assertTrue(this.scheduled.isEmpty());
+        assertEquals(1, coordinator.getAllAtOnceStatistics().getBursts());
+        assertEquals(2, coordinator.getAllAtOnceStatistics().getInstances());
+    }
+
+    public void when_waves_are_enabled_should_release_deployments_in_waves_per_node() throws IOException {
+        List<String> deployed = new ArrayList<String>();
+        DeployCoordinator coordinator = new DeployCoordinator(this.getExecutor(),
+                this.getPlacement(PlacementStrategy.NONE, "node"), 2, TimeUnit.SECONDS.toMillis(30), () -> 0);
+
+        for (int i = 0; i < 5; i++) {
+            coordinator.submit(this.getImage(), this.record(deployed, null));
+        }
+        assertEquals(0, deployed.size());
+
+        this.runScheduled(DeployCoordinator.BATCH_WINDOW);
+
+        assertEquals(2, deployed.size());
+        assertEquals(2, this.scheduled.get(TimeUnit.SECONDS.toMillis(30)).size());
+        assertEquals(1, this.scheduled.get(TimeUnit.SECONDS.toMillis(60)).size());
+
+        this.runScheduled(TimeUnit.SECONDS.toMillis(30));
+        this.runScheduled(TimeUnit.SECONDS.toMillis(60));
+
+        assertEquals(Collections.nCopies(5, "node"), deployed);
+        assertEquals(1, coordinator.getWavesStatistics().getBursts());
+    }
+
+    public void when_burst_fits_in_one_wave_on_each_node_should_deploy_all_at_once() throws IOException {
+        List<String> deployed = new ArrayList<String>();
+        DeployCoordinator coordinator = new DeployCoordinator(this.getExecutor(),
+                this.getPlacement(PlacementStrategy.LEAST_LOADED, null), 2, TimeUnit.SECONDS.toMillis(30), () -> 0);
+
+        for (int i = 0; i < 4; i++) {
+            coordinator.submit(this.getImage(), this.record(deployed, null));
+        }
+        this.runScheduled(DeployCoordinator.BATCH_WINDOW);
+
+        assertEquals(4, deployed.size());
+        assertEquals(2, deployed.stream().filter("first"::equals).count());
+        assertEquals(1, coordinator.getAllAtOnceStatistics().getBursts());
+        assertEquals(0, coordinator.getWavesStatistics().getBursts());
+    }
+
+    public void when_waves_are_disabled_should_select_nodes_for_whole_batch() throws IOException {
+        List<String> deployed = new ArrayList<String>();
+        DeployCoordinator coordinator = new DeployCoordinator(this.getExecutor(),
+                this.getPlacement(PlacementStrategy.LEAST_LOADED, null), 0, 0, () -> 0);
+
+        for (int i = 0; i < 4; i++) {
+            coordinator.submit(this.getImage(), this.record(deployed, null));
+        }
+        this.runScheduled(DeployCoordinator.BATCH_WINDOW);
+
+        assertEquals(4, deployed.size());
+        assertEquals(2, deployed.stream().filter("first"::equals).count());
+        assertEquals(2, deployed.stream().filter("second"::equals).count());
+    }
+
+    public void when_agents_have_not_registered_should_not_record_burst() throws IOException {
+        CompletableFuture<Void> first = new CompletableFuture<Void>();
+        CompletableFuture<Void> second = new CompletableFuture<Void>();
+        DeployCoordinator coordinator = new DeployCoordinator(this.getExecutor(),
+                this.getPlacement(PlacementStrategy.NONE, null), 0, 0, () -> 0);
+
+        coordinator.submit(this.getImage(), node -> first);
+        coordinator.submit(this.getImage(), node -> second);
+        this.runScheduled(DeployCoordinator.BATCH_WINDOW);
+        first.complete(null);
+
+        assertEquals(0, coordinator.getAllAtOnceStatistics().getBursts());
+
+        second.completeExceptionally(new IOException("Error"));
+
+        assertEquals(1, coordinator.getAllAtOnceStatistics().getBursts());
+        assertEquals(2, coordinator.getAllAtOnceStatistics().getInstances());
+    }
+
+    private DeployCoordinator.Deployment record(List<String> deployed, String name) {
+        return node -> {
+            deployed.add(name != null ? name : node);
+            return null;
+        };
+    }
+
+    private void runScheduled(long delay) {
+        this.scheduled.remove(delay).forEach(Runnable::run);
+    }
+
+    private ScheduledExecutorService getExecutor() {
+        ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+        when(executor.submit(any(Runnable.class))).thenAnswer(invocation -> {
+            ((Runnable) invocation.getArguments()[0]).run();
+            return CompletableFuture.completedFuture(null);
+        });
+        when(executor.schedule(any(Runnable.class), anyLong(), any())).thenAnswer(invocation -> {
+            Object[] args = invocation.getArguments();
+            this.scheduled.computeIfAbsent((Long) args[1], k -> new ArrayList<Runnable>()).add((Runnable) args[0]);
+            return null;
+        });
+        return executor;
+    }
+
+    private NodePlacement getPlacement(PlacementStrategy strategy, String targetNode) throws IOException {
+        OrkaClient orkaClient = mock(OrkaClient.class);
+        when(orkaClient.getNodes(any())).thenReturn(new NodeResponse(Arrays.asList(
+                new OrkaNode("first", "10.0.0.1", 24, 24, "64Gi", "64Gi", "READY"),
+                new OrkaNode("second", "10.0.0.2", 24, 24, "64Gi", "64Gi", "READY")), null));
+        when(orkaClient.getVMConfigs()).thenReturn(
+                new VMConfigResponse(Collections.singletonList(new OrkaVMConfig("vm", 6, "image", 12)), null));
+        return new NodePlacement(orkaClient, "orka-default", "vm", strategy, targetNode);
+    }
+
+    private OrkaCloudImage getImage() {
+        return new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 10);
+    }
+}
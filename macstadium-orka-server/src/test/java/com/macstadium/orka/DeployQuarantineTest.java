@@ -0,0 +1,62 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.Test;
+
+@Test
+public class DeployQuarantineTest {
+    public void when_failures_reach_threshold_should_pause_deployments() {
+        AtomicLong now = new AtomicLong();
+        DeployQuarantine quarantine = new DeployQuarantine(now::get);
+
+        quarantine.failed("error");
+        quarantine.failed("error");
+        assertFalse(quarantine.isActive());
+
+        quarantine.failed("error");
+        assertTrue(quarantine.isActive());
+        assertNotNull(quarantine.getErrorInfo());
+
+        now.set(DeployQuarantine.BASE_COOLDOWN);
+        assertFalse(quarantine.isActive());
+        assertNull(quarantine.getErrorInfo());
+    }
+
+    public void when_failing_again_should_double_cooldown() {
+        AtomicLong now = new AtomicLong();
+        DeployQuarantine quarantine = new DeployQuarantine(now::get);
+        for (int i = 0; i < DeployQuarantine.FAILURE_THRESHOLD + 1; i++) {
+            quarantine.failed("error");
+        }
+
+        now.set(2 * DeployQuarantine.BASE_COOLDOWN - 1);
+        assertTrue(quarantine.isActive());
+        now.set(2 * DeployQuarantine.BASE_COOLDOWN);
+        assertFalse(quarantine.isActive());
+
+        for (int i = 0; i < 20; i++) {
+            quarantine.failed("error");
+        }
+        now.set(2 * DeployQuarantine.BASE_COOLDOWN + DeployQuarantine.MAX_COOLDOWN);
+        assertFalse(quarantine.isActive());
+    }
+
+    public void when_deployment_succeeds_should_end_quarantine() {
+        DeployQuarantine quarantine = new DeployQuarantine(() -> 0);
+        for (int i = 0; i < DeployQuarantine.FAILURE_THRESHOLD; i++) {
+            quarantine.failed("error");
+        }
+
+        quarantine.succeeded();
+
+        assertFalse(quarantine.isActive());
+        quarantine.failed("error");
+        assertFalse(quarantine.isActive());
+    }
+}
@@ -0,0 +1,113 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.macstadium.orka.client.HttpResponse;
+import com.macstadium.orka.client.OrkaClient;
+import com.macstadium.orka.client.VMResponse;
+import com.macstadium.orka.client.VMsResponse;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+
+import jetbrains.buildServer.clouds.InstanceStatus;
+
+import org.testng.annotations.Test;
+
+@Test
+public class HealthCheckTaskTest {
+    public void when_no_instances_are_running_should_not_list_vms() throws IOException {
+        OrkaClient orkaClient = this.getOrkaClientMock();
+        OrkaCloudClient client = this.getClient(orkaClient);
+        this.getImage(client).startNewInstance("starting");
+
+        new HealthCheckTask(client).run();
+
+        verify(orkaClient, never()).getVMs(any());
+    }
+
+    public void when_vms_exist_should_keep_instances_with_one_call() throws IOException {
+        OrkaClient orkaClient = this.getOrkaClientMock(new VMResponse("first", 22, "host", "Running", null),
+                new VMResponse("second", 22, "host", "Running", null));
+        OrkaCloudClient client = this.getClient(orkaClient);
+        OrkaCloudImage image = this.getImage(client);
+        image.startNewInstance("first").setStatus(InstanceStatus.RUNNING);
+        image.startNewInstance("second").setStatus(InstanceStatus.RUNNING);
+
+        new HealthCheckTask(client).run();
+
+        assertEquals(2, image.getInstances().size());
+        verify(orkaClient, times(1)).getVMs("orka-default");
+    }
+
+    public void when_vm_is_missing_twice_should_release_instance() throws IOException {
+        OrkaClient orkaClient = this.getOrkaClientMock();
+        OrkaCloudClient client = this.getClient(orkaClient);
+        OrkaCloudImage image = this.getImage(client);
+        OrkaCloudInstance instance = image.startNewInstance("missing");
+        instance.setStatus(InstanceStatus.RUNNING);
+        HealthCheckTask task = new HealthCheckTask(client);
+
+        task.run();
+        assertEquals(1, image.getInstances().size());
+
+        task.run();
+        assertEquals(0, image.getInstances().size());
+        assertEquals(InstanceStatus.STOPPED, instance.getStatus());
+    }
+
+    public void when_vm_failed_should_mark_instance_for_termination() throws IOException {
+        OrkaClient orkaClient = this.getOrkaClientMock(new VMResponse("failed", 22, "host", "Failed", null));
+        OrkaCloudClient client = this.getClient(orkaClient);
+        OrkaCloudInstance instance = this.getImage(client).startNewInstance("failed");
+        instance.setStatus(InstanceStatus.RUNNING);
+
+        new HealthCheckTask(client).run();
+
+        assertTrue(instance.isMarkedForTermination());
+        assertEquals(InstanceStatus.ERROR, instance.getStatus());
+    }
+
+    public void when_listing_fails_should_keep_instances() throws IOException {
+        OrkaClient orkaClient = mock(OrkaClient.class);
+        VMsResponse response = new VMsResponse(null, "Error");
+        response.setHttpResponse(new HttpResponse("", 500, false));
+        when(orkaClient.getVMs(any())).thenReturn(response);
+        OrkaCloudClient client = this.getClient(orkaClient);
+        OrkaCloudInstance instance = this.getImage(client).startNewInstance("instance");
+        instance.setStatus(InstanceStatus.RUNNING);
+        HealthCheckTask task = new HealthCheckTask(client);
+
+        task.run();
+        task.run();
+
+        assertEquals(1, this.getImage(client).getInstances().size());
+        assertFalse(instance.isMarkedForTermination());
+    }
+
+    private OrkaClient getOrkaClientMock(VMResponse... vms) throws IOException {
+        OrkaClient orkaClient = mock(OrkaClient.class);
+        VMsResponse response = new VMsResponse(Arrays.asList(vms), null);
+        response.setHttpResponse(new HttpResponse("", 200, true));
+        when(orkaClient.getVMs(any())).thenReturn(response);
+        return orkaClient;
+    }
+
+    private OrkaCloudClient getClient(OrkaClient orkaClient) {
+        return new OrkaCloudClient(Utils.getCloudClientParametersMock("imageId"), orkaClient,
+                mock(ScheduledExecutorService.class), mock(RemoteAgent.class), mock(SSHUtil.class));
+    }
+
+    private OrkaCloudImage getImage(OrkaCloudClient client) {
+        return (OrkaCloudImage) client.getImages().toArray()[0];
+    }
+}
@@ -0,0 +1,65 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jetbrains.buildServer.clouds.InstanceStatus;
+
+import org.testng.annotations.Test;
+
+@Test
+public class InstanceRegistryTest {
+    public void when_fingerprint_matches_should_adopt_instances() {
+        InstanceRegistry registry = new InstanceRegistry(Executors.newSingleThreadScheduledExecutor(),
+                TimeUnit.MINUTES.toMillis(1));
+        OrkaCloudImage previous = new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 5);
+        OrkaCloudInstance instance = previous.startNewInstance("vm-123");
+        instance.setHost("10.0.0.1");
+        instance.setPort(8822);
+        instance.setStatus(InstanceStatus.RUNNING);
+        registry.release("key", new InstanceRegistry.Handoff("settings", Collections.singletonList(instance),
+                Collections.emptyList(), Collections.emptyMap(), () -> {
+                }));
+
+        InstanceRegistry.Handoff handoff = registry.adopt("key", "settings");
+
+        assertNotNull(handoff);
+        OrkaCloudImage image = new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 5);
+        OrkaCloudInstance adopted = image.adoptInstance(handoff.getInstances().get(0));
+        assertEquals(InstanceStatus.RUNNING, adopted.getStatus());
+        assertEquals("10.0.0.1", adopted.getHost());
+        assertEquals(8822, adopted.getPort());
+        assertNull(registry.adopt("key", "settings"));
+    }
+
+    public void when_fingerprint_differs_should_run_fallback() throws InterruptedException {
+        InstanceRegistry registry = new InstanceRegistry(Executors.newSingleThreadScheduledExecutor(),
+                TimeUnit.MINUTES.toMillis(1));
+        CountDownLatch fallback = new CountDownLatch(1);
+        registry.release("key", new InstanceRegistry.Handoff("settings", Collections.emptyList(),
+                Collections.emptyList(), Collections.emptyMap(), fallback::countDown));
+
+        assertNull(registry.adopt("key", "changed"));
+        assertTrue(fallback.await(5, TimeUnit.SECONDS));
+    }
+
+    public void when_not_adopted_in_time_should_run_fallback() throws InterruptedException {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        InstanceRegistry registry = new InstanceRegistry(executor, 10);
+        CountDownLatch fallback = new CountDownLatch(1);
+        registry.release("key", new InstanceRegistry.Handoff("settings", Collections.emptyList(),
+                Collections.emptyList(), Collections.emptyMap(), fallback::countDown));
+
+        assertTrue(fallback.await(5, TimeUnit.SECONDS));
+        assertNull(registry.adopt("key", "settings"));
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,65 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import jetbrains.buildServer.clouds.InstanceStatus;
+
+import org.testng.annotations.Test;
+
+@Test
+public class MBeanRegistryTest {
+    public void when_image_is_registered_should_expose_state_and_tunables() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        OrkaCloudImage image = new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 5);
+        image.startNewInstance("vm-1").setStatus(InstanceStatus.RUNNING);
+        image.startNewInstance("vm-2");
+        ObjectName name = MBeanRegistry.getImageName("profile-1", image.getId());
+        CloudImageMonitor monitor = new CloudImageMonitor(image);
+
+        MBeanRegistry.register(name, monitor);
+        try {
+            assertEquals(2, server.getAttribute(name, "InstanceCount"));
+            TabularData counts = (TabularData) server.getAttribute(name, "InstanceCountsByStatus");
+            CompositeData running = counts.get(new Object[] { InstanceStatus.RUNNING.name() });
+            assertEquals(1, running.get("value"));
+
+            server.setAttribute(name, new Attribute("InstanceLimit", 10));
+            assertEquals(10, image.getInstanceLimit());
+        } finally {
+            MBeanRegistry.unregister(name, monitor);
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    public void when_mbean_is_replaced_should_keep_replacement_registered() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = MBeanRegistry.getImageName("profile-2", "vm");
+        CloudImageMonitor previous = new CloudImageMonitor(
+                new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 5));
+        CloudImageMonitor current = new CloudImageMonitor(
+                new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 5));
+
+        MBeanRegistry.register(name, previous);
+        MBeanRegistry.register(name, current);
+        MBeanRegistry.unregister(name, previous);
+
+        assertTrue(server.isRegistered(name));
+        MBeanRegistry.unregister(name, current);
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void when_instance_limit_is_invalid_should_throw() {
+        new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 5).setInstanceLimit(-2);
+    }
+}
@@ -0,0 +1,166 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.macstadium.orka.client.HttpResponse;
+import com.macstadium.orka.client.NodeResponse;
+import com.macstadium.orka.client.OrkaClient;
+import com.macstadium.orka.client.OrkaNode;
+import com.macstadium.orka.client.OrkaVMConfig;
+import com.macstadium.orka.client.VMConfigResponse;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.Test;
+
+@Test
+public class NodePlacementTest {
+    public void when_strategy_is_none_should_not_select_node() throws IOException {
+        OrkaClient orkaClient = this.getOrkaClientMock(this.getNode("first", 12, "READY"));
+        NodePlacement placement = new NodePlacement(orkaClient, "orka-default", "vm", PlacementStrategy.NONE, null);
+
+        assertNull(placement.selectNode());
+        verify(orkaClient, never()).getNodes(any());
+    }
+
+    public void when_target_node_is_set_should_select_it() throws IOException {
+        OrkaClient orkaClient = this.getOrkaClientMock(this.getNode("first", 12, "READY"));
+        NodePlacement placement = new NodePlacement(orkaClient, "orka-default", "vm", PlacementStrategy.PACK,
+                "target");
+
+        assertEquals("target", placement.selectNode());
+    }
+
+    public void when_least_loaded_should_select_node_with_most_available_cpu() throws IOException {
+        OrkaClient orkaClient = this.getOrkaClientMock(this.getNode("first", 6, "READY"),
+                this.getNode("second", 12, "READY"), this.getNode("third", 24, "NotReady"));
+        NodePlacement placement = new NodePlacement(orkaClient, "orka-default", "vm",
+                PlacementStrategy.LEAST_LOADED, null);
+
+        assertEquals("second", placement.selectNode());
+    }
+
+    public void when_placing_concurrently_should_account_for_reserved_cpu() throws IOException {
+        OrkaClient orkaClient = this.getOrkaClientMock(this.getNode("first", 10, "READY"),
+                this.getNode("second", 12, "READY"));
+        NodePlacement placement = new NodePlacement(orkaClient, "orka-default", "vm",
+                PlacementStrategy.LEAST_LOADED, null, () -> 0);
+
+        assertEquals("second", placement.selectNode());
+        assertEquals("first", placement.selectNode());
+        assertEquals("second", placement.selectNode());
+        assertNull(placement.selectNode());
+        verify(orkaClient, times(1)).getNodes(any());
+    }
+
+    public void when_vm_config_cpu_is_given_should_reserve_it() throws IOException {
+        OrkaClient orkaClient = this.getOrkaClientMock(this.getNode("first", 10, "READY"),
+                this.getNode("second", 12, "READY"));
+        NodePlacement placement = new NodePlacement(orkaClient, "orka-default", "vm",
+                PlacementStrategy.LEAST_LOADED, null, () -> 0);
+
+        assertEquals("second", placement.selectNode(12));
+        assertEquals(Arrays.asList("first", null), placement.selectNodes(Arrays.asList(6, 6)));
+        placement.deployFailed("second", 12);
+        assertEquals("second", placement.selectNode(12));
+    }
+
+    public void when_pack_should_select_fullest_node_that_fits() throws IOException {
+        OrkaClient orkaClient = this.getOrkaClientMock(this.getNode("first", 2, "READY"),
+                this.getNode("second", 6, "READY"), this.getNode("third", 12, "READY"));
+        NodePlacement placement = new NodePlacement(orkaClient, "orka-default", "vm", PlacementStrategy.PACK, null);
+
+        assertEquals("second", placement.selectNode());
+    }
+
+    public void when_spread_should_select_node_with_fewest_placed_vms() throws IOException {
+        OrkaClient orkaClient = this.getOrkaClientMock(this.getNode("first", 24, "READY"),
+                this.getNode("second", 12, "READY"));
+        NodePlacement placement = new NodePlacement(orkaClient, "orka-default", "vm", PlacementStrategy.SPREAD,
+                null);
+
+        placement.placed("vm-1", placement.selectNode());
+
+        assertEquals("second", placement.selectNode());
+    }
+
+    public void when_cache_expires_should_reload_nodes_and_clear_reservations() throws IOException {
+        AtomicLong clock = new AtomicLong(0);
+        OrkaClient orkaClient = this.getOrkaClientMock(this.getNode("first", 6, "READY"));
+        NodePlacement placement = new NodePlacement(orkaClient, "orka-default", "vm",
+                PlacementStrategy.LEAST_LOADED, null, clock::get);
+
+        assertEquals("first", placement.selectNode());
+        assertNull(placement.selectNode());
+        clock.set(60 * 1000);
+
+        assertEquals("first", placement.selectNode());
+        verify(orkaClient, times(2)).getNodes(any());
+    }
+
+    public void when_vm_configs_fail_on_reload_should_keep_vm_cpu() throws IOException {
+        AtomicLong clock = new AtomicLong(0);
+        OrkaClient orkaClient = this.getOrkaClientMock(this.getNode("first", 6, "READY"));
+        NodePlacement placement = new NodePlacement(orkaClient, "orka-default", "vm",
+                PlacementStrategy.LEAST_LOADED, null, clock::get);
+        assertEquals("first", placement.selectNode());
+
+        VMConfigResponse failed = new VMConfigResponse(null, "Error");
+        failed.setHttpResponse(new HttpResponse("Error", 500, false));
+        when(orkaClient.getVMConfigs()).thenReturn(failed);
+        clock.set(60 * 1000);
+
+        assertEquals("first", placement.selectNode());
+        assertNull(placement.selectNode());
+    }
+
+    public void when_nodes_are_reloading_should_place_from_current_snapshot() throws Exception {
+        AtomicLong clock = new AtomicLong(0);
+        OrkaClient orkaClient = this.getOrkaClientMock(this.getNode("first", 12, "READY"));
+        NodePlacement placement = new NodePlacement(orkaClient, "orka-default", "vm",
+                PlacementStrategy.LEAST_LOADED, null, clock::get);
+        assertEquals("first", placement.selectNode());
+
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(orkaClient.getNodes(any())).thenAnswer(invocation -> {
+            loading.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return new NodeResponse(Collections.singletonList(this.getNode("first", 12, "READY")), null);
+        });
+        clock.set(60 * 1000);
+        Thread reload = new Thread(placement::selectNode);
+        reload.start();
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+        assertEquals("first", placement.selectNode());
+        release.countDown();
+        reload.join(TimeUnit.SECONDS.toMillis(5));
+        verify(orkaClient, times(2)).getNodes(any());
+    }
+
+    private OrkaClient getOrkaClientMock(OrkaNode... nodes) throws IOException {
+        OrkaClient orkaClient = mock(OrkaClient.class);
+        when(orkaClient.getNodes(any())).thenReturn(new NodeResponse(Arrays.asList(nodes), null));
+        when(orkaClient.getVMConfigs()).thenReturn(
+                new VMConfigResponse(Collections.singletonList(new OrkaVMConfig("vm", 6, "image", 12)), null));
+        return orkaClient;
+    }
+
+    private OrkaNode getNode(String name, int availableCpu, String phase) {
+        return new OrkaNode(name, "10.0.0.1", 24, availableCpu, "64Gi", "64Gi", phase);
+    }
+}
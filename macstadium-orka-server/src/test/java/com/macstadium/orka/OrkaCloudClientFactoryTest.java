@@ -11,7 +11,10 @@ import java.util.Map;
 
 import jetbrains.buildServer.clouds.CloudRegistrar;
 import jetbrains.buildServer.serverSide.AgentDescription;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.agentPools.AgentPoolManager;
 import jetbrains.buildServer.serverSide.executors.ExecutorServices;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
 
 import org.testng.annotations.Test;
@@ -24,7 +27,8 @@ public class OrkaCloudClientFactoryTest {
         params.put(OrkaConstants.IMAGE_ID_PARAM_NAME, "imageId");
 
         OrkaCloudClientFactory factory = new OrkaCloudClientFactory(mock(CloudRegistrar.class),
-                mock(PluginDescriptor.class), mock(ExecutorServices.class));
+                mock(PluginDescriptor.class), mock(ExecutorServices.class), mock(EventDispatcher.class),
+                mock(AgentPoolManager.class), mock(OrkaResourceCache.class), mock(ServerPaths.class));
 
         AgentDescription agentDescription = mock(AgentDescription.class);
         when(agentDescription.getConfigurationParameters()).thenReturn(params);
@@ -33,7 +37,8 @@ public class OrkaCloudClientFactoryTest {
 
     public void when_can_be_agent_of_type_with_missing_image_id_should_return_false() throws IOException {
         OrkaCloudClientFactory factory = new OrkaCloudClientFactory(mock(CloudRegistrar.class),
-                mock(PluginDescriptor.class), mock(ExecutorServices.class));
+                mock(PluginDescriptor.class), mock(ExecutorServices.class), mock(EventDispatcher.class),
+                mock(AgentPoolManager.class), mock(OrkaResourceCache.class), mock(ServerPaths.class));
         Map<String, String> params = new HashMap<String, String>();
         params.put(OrkaConstants.INSTANCE_ID_PARAM_NAME, "instanceId");
 
@@ -44,7 +49,8 @@ public class OrkaCloudClientFactoryTest {
 
     public void when_can_be_agent_of_type_with_missing_instance_id_should_return_false() throws IOException {
         OrkaCloudClientFactory factory = new OrkaCloudClientFactory(mock(CloudRegistrar.class),
-                mock(PluginDescriptor.class), mock(ExecutorServices.class));
+                mock(PluginDescriptor.class), mock(ExecutorServices.class), mock(EventDispatcher.class),
+                mock(AgentPoolManager.class), mock(OrkaResourceCache.class), mock(ServerPaths.class));
         Map<String, String> params = new HashMap<String, String>();
         params.put(OrkaConstants.IMAGE_ID_PARAM_NAME, "imageId");
 
@@ -55,7 +61,8 @@ public class OrkaCloudClientFactoryTest {
 
     public void when_can_be_agent_of_type_with_missing_values_should_return_false() throws IOException {
         OrkaCloudClientFactory factory = new OrkaCloudClientFactory(mock(CloudRegistrar.class),
-                mock(PluginDescriptor.class), mock(ExecutorServices.class));
+                mock(PluginDescriptor.class), mock(ExecutorServices.class), mock(EventDispatcher.class),
+                mock(AgentPoolManager.class), mock(OrkaResourceCache.class), mock(ServerPaths.class));
         Map<String, String> params = new HashMap<String, String>();
 
         AgentDescription agentDescription = mock(AgentDescription.class);
@@ -1,31 +1,47 @@
 package com.macstadium.orka;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.macstadium.orka.client.DeletionResponse;
 import com.macstadium.orka.client.DeploymentResponse;
 import com.macstadium.orka.client.HttpResponse;
 import com.macstadium.orka.client.OrkaClient;
+import com.macstadium.orka.client.VMActionResponse;
 import com.macstadium.orka.client.VMResponse;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import jetbrains.buildServer.clouds.CloudImage;
 import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.clouds.QuotaException;
 import jetbrains.buildServer.serverSide.AgentDescription;
+import jetbrains.buildServer.serverSide.SBuildAgent;
 
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -133,9 +149,49 @@ public class OrkaCloudClientTest {
         assertEquals(imageId, instance.getImageId());
         assertEquals(host, instance.getHost());
         assertEquals(sshPort, instance.getPort());
+        assertEquals(InstanceStatus.STARTING, instance.getStatus());
+        this.registerAgent(client, instance);
         assertEquals(InstanceStatus.RUNNING, instance.getStatus());
     }
 
+    public void when_instance_is_pre_provisioned_should_match_agent_by_metadata_ids() throws IOException {
+        String imageId = "imageId";
+        RemoteAgent remoteAgent = mock(RemoteAgent.class);
+        OrkaCloudClient client = new OrkaCloudClient(Utils.getCloudClientParametersMock(imageId),
+                this.getOrkaClientMock("host", 22, "instanceId"), this.getScheduledExecutorService(), remoteAgent,
+                mock(SSHUtil.class));
+
+        OrkaCloudInstance instance = client.preProvisionInstance((OrkaCloudImage) this.getImage(client));
+
+        verify(remoteAgent).startAgent(eq("instanceId"), eq(imageId), any(), anyInt(), any(), any(), any(), isNull(),
+                any());
+        assertEquals(instance, client.findInstanceByAgent(this.getAgentDescriptionMock("instanceId", imageId)));
+        this.registerAgent(client, instance);
+        assertEquals(InstanceStatus.RUNNING, instance.getStatus());
+    }
+
+    public void when_agent_start_command_fails_should_terminate_instance_with_output() throws IOException {
+        String imageId = "imageId";
+        OrkaClient orkaClient = this.getOrkaClientMock("host", 22, "instanceId");
+        RemoteAgent remoteAgent = mock(RemoteAgent.class);
+        doAnswer(invocation -> {
+            AgentOutput output = new AgentOutput();
+            output.append("agent.sh: No such file or directory\n");
+            Consumer<RemoteAgent.StartResult> exitHandler = invocation.getArgument(8);
+            exitHandler.accept(new RemoteAgent.StartResult(1, output));
+            return null;
+        }).when(remoteAgent).startAgent(any(), any(), any(), anyInt(), any(), any(), any(), any(), any());
+        OrkaCloudClient client = new OrkaCloudClient(Utils.getCloudClientParametersMock(imageId), orkaClient,
+                this.getScheduledExecutorService(), remoteAgent, mock(SSHUtil.class));
+
+        OrkaCloudInstance instance = (OrkaCloudInstance) client.startNewInstance(this.getImage(client), null);
+
+        assertEquals(0, this.getImage(client).getInstances().size());
+        assertNotNull(instance.getErrorInfo());
+        assertTrue(instance.getErrorInfo().getDetailedMessage().contains("agent.sh: No such file or directory"));
+        verify(orkaClient).deleteVM(any(), any());
+    }
+
     public void when_start_new_instance_with_failing_vm_should_terminate_instance()
             throws IOException, InterruptedException {
         String imageId = "imageId";
@@ -254,6 +310,338 @@ public class OrkaCloudClientTest {
         assertEquals(privateHost, instance.getHost());
     }
 
+    public void when_terminate_instance_with_reuse_should_keep_vm_idle() throws IOException {
+        String imageId = "imageId";
+        OrkaClient orkaClient = this.getOrkaClientMock("host", 22, "instanceId");
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(OrkaConstants.REUSE_VMS, "true");
+        OrkaCloudClient client = new OrkaCloudClient(Utils.getCloudClientParametersMock(imageId, params), orkaClient,
+                this.getScheduledExecutorService(), mock(RemoteAgent.class), mock(SSHUtil.class));
+
+        OrkaCloudInstance instance = (OrkaCloudInstance) client.startNewInstance(this.getImage(client), null);
+        this.registerAgent(client, instance);
+        client.terminateInstance(instance);
+
+        OrkaCloudImage image = (OrkaCloudImage) this.getImage(client);
+        assertEquals(0, image.getInstances().size());
+        assertEquals(1, image.getIdleVms().size());
+        verify(orkaClient, never()).deleteVM(any(), any());
+    }
+
+    public void when_start_new_instance_with_idle_vm_should_reuse_vm() throws IOException {
+        String imageId = "imageId";
+        OrkaClient orkaClient = this.getOrkaClientMock("host", 22, "instanceId");
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(OrkaConstants.REUSE_VMS, "true");
+        OrkaCloudClient client = new OrkaCloudClient(Utils.getCloudClientParametersMock(imageId, params), orkaClient,
+                this.getScheduledExecutorService(), mock(RemoteAgent.class), mock(SSHUtil.class));
+
+        OrkaCloudInstance instance = (OrkaCloudInstance) client.startNewInstance(this.getImage(client), null);
+        this.registerAgent(client, instance);
+        client.terminateInstance(instance);
+        OrkaCloudInstance reused = (OrkaCloudInstance) client.startNewInstance(this.getImage(client), null);
+        this.registerAgent(client, reused);
+
+        assertEquals("instanceId", reused.getInstanceId());
+        assertEquals(InstanceStatus.RUNNING, reused.getStatus());
+        assertEquals(0, ((OrkaCloudImage) this.getImage(client)).getIdleVms().size());
+        verify(orkaClient, times(1)).deployVM(any(), any());
+    }
+
+    public void when_idle_vm_deletion_fails_should_queue_vm_without_instance() throws IOException {
+        String imageId = "imageId";
+        OrkaClient orkaClient = this.getOrkaClientMock("host", 22, "instanceId");
+        when(orkaClient.deleteVM("idle", "orka-default")).thenThrow(new IOException("Error"));
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(OrkaConstants.REUSE_VMS, "true");
+        params.put(OrkaConstants.REUSE_MAX_BUILDS, "1");
+        OrkaCloudClient client = new OrkaCloudClient(Utils.getCloudClientParametersMock(imageId, params), orkaClient,
+                this.getScheduledExecutorService(), mock(RemoteAgent.class), mock(SSHUtil.class));
+        OrkaCloudImage image = (OrkaCloudImage) this.getImage(client);
+        image.offerIdleVm(new PooledVm("idle", "orka-default", "host", 22, 0, 1));
+
+        OrkaCloudInstance instance = (OrkaCloudInstance) client.startNewInstance(image, null);
+
+        assertEquals("instanceId", instance.getInstanceId());
+        assertEquals(1, image.getInstances().size());
+        assertTrue(client.isDeletionPending("idle"));
+    }
+
+    public void when_terminate_instance_with_reuse_and_max_builds_reached_should_delete_vm() throws IOException {
+        String imageId = "imageId";
+        OrkaClient orkaClient = this.getOrkaClientMock("host", 22, "instanceId");
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(OrkaConstants.REUSE_VMS, "true");
+        params.put(OrkaConstants.REUSE_MAX_BUILDS, "1");
+        OrkaCloudClient client = new OrkaCloudClient(Utils.getCloudClientParametersMock(imageId, params), orkaClient,
+                this.getScheduledExecutorService(), mock(RemoteAgent.class), mock(SSHUtil.class));
+
+        OrkaCloudInstance instance = (OrkaCloudInstance) client.startNewInstance(this.getImage(client), null);
+        this.registerAgent(client, instance);
+        instance.incrementBuildCount();
+        client.terminateInstance(instance);
+
+        assertEquals(0, ((OrkaCloudImage) this.getImage(client)).getIdleVms().size());
+        verify(orkaClient).deleteVM(any(), any());
+    }
+
+    public void when_terminate_instance_with_reuse_and_max_builds_not_reached_should_keep_vm_idle()
+            throws IOException {
+        String imageId = "imageId";
+        OrkaClient orkaClient = this.getOrkaClientMock("host", 22, "instanceId");
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(OrkaConstants.REUSE_VMS, "true");
+        params.put(OrkaConstants.REUSE_MAX_BUILDS, "2");
+        OrkaCloudClient client = new OrkaCloudClient(Utils.getCloudClientParametersMock(imageId, params), orkaClient,
+                this.getScheduledExecutorService(), mock(RemoteAgent.class), mock(SSHUtil.class));
+
+        OrkaCloudInstance instance = (OrkaCloudInstance) client.startNewInstance(this.getImage(client), null);
+        this.registerAgent(client, instance);
+        instance.incrementBuildCount();
+        client.terminateInstance(instance);
+
+        OrkaCloudImage image = (OrkaCloudImage) this.getImage(client);
+        assertEquals(1, image.getIdleVms().size());
+        assertEquals(1, image.getIdleVms().get(0).getBuildCount());
+        verify(orkaClient, never()).deleteVM(any(), any());
+    }
+
+    public void when_terminate_instance_with_reuse_and_failing_cleanup_should_delete_vm() throws IOException {
+        String imageId = "imageId";
+        OrkaClient orkaClient = this.getOrkaClientMock("host", 22, "instanceId");
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(OrkaConstants.REUSE_VMS, "true");
+        params.put(OrkaConstants.REUSE_CLEANUP_SCRIPT, "./cleanup.sh");
+        RemoteAgent remoteAgent = mock(RemoteAgent.class);
+        when(remoteAgent.runScript(anyString(), anyInt(), anyString(), anyString(), anyString())).thenReturn(false);
+        OrkaCloudClient client = new OrkaCloudClient(Utils.getCloudClientParametersMock(imageId, params), orkaClient,
+                this.getScheduledExecutorService(), remoteAgent, mock(SSHUtil.class));
+
+        OrkaCloudInstance instance = (OrkaCloudInstance) client.startNewInstance(this.getImage(client), null);
+        this.registerAgent(client, instance);
+        client.terminateInstance(instance);
+
+        assertEquals(0, ((OrkaCloudImage) this.getImage(client)).getIdleVms().size());
+        verify(orkaClient).deleteVM(any(), any());
+    }
+
+    public void when_terminate_instance_with_park_mode_should_suspend_idle_vm() throws IOException {
+        String imageId = "imageId";
+        OrkaClient orkaClient = this.getOrkaClientMock("host", 22, "instanceId");
+        when(orkaClient.suspendVM("instanceId", "orka-default")).thenReturn(new VMActionResponse("Success"));
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(OrkaConstants.REUSE_VMS, "true");
+        params.put(OrkaConstants.REUSE_PARK_MODE, "suspend");
+        OrkaCloudClient client = new OrkaCloudClient(Utils.getCloudClientParametersMock(imageId, params), orkaClient,
+                this.getScheduledExecutorService(), mock(RemoteAgent.class), mock(SSHUtil.class));
+
+        OrkaCloudInstance instance = (OrkaCloudInstance) client.startNewInstance(this.getImage(client), null);
+        this.registerAgent(client, instance);
+        client.terminateInstance(instance);
+
+        assertEquals(1, ((OrkaCloudImage) this.getImage(client)).getIdleVms().size());
+        verify(orkaClient).suspendVM("instanceId", "orka-default");
+        verify(orkaClient, never()).deleteVM(any(), any());
+    }
+
+    public void when_start_new_instance_with_parked_vm_should_resume_vm_and_refresh_host() throws IOException {
+        String imageId = "imageId";
+        OrkaClient orkaClient = this.getOrkaClientMock("host", 22, "instanceId");
+        when(orkaClient.suspendVM("instanceId", "orka-default")).thenReturn(new VMActionResponse("Success"));
+        when(orkaClient.resumeVM("instanceId", "orka-default")).thenReturn(new VMActionResponse("Success"));
+        when(orkaClient.getVM("instanceId", "orka-default"))
+                .thenReturn(new VMResponse("instanceId", 8823, "10.0.0.5", null));
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(OrkaConstants.REUSE_VMS, "true");
+        params.put(OrkaConstants.REUSE_PARK_MODE, "suspend");
+        OrkaCloudClient client = new OrkaCloudClient(Utils.getCloudClientParametersMock(imageId, params), orkaClient,
+                this.getScheduledExecutorService(), mock(RemoteAgent.class), mock(SSHUtil.class));
+
+        OrkaCloudInstance instance = (OrkaCloudInstance) client.startNewInstance(this.getImage(client), null);
+        this.registerAgent(client, instance);
+        client.terminateInstance(instance);
+        OrkaCloudInstance reused = (OrkaCloudInstance) client.startNewInstance(this.getImage(client), null);
+        this.registerAgent(client, reused);
+
+        assertEquals(InstanceStatus.RUNNING, reused.getStatus());
+        assertEquals("10.0.0.5", reused.getHost());
+        assertEquals(8823, reused.getPort());
+        verify(orkaClient).resumeVM("instanceId", "orka-default");
+        verify(orkaClient, times(1)).deployVM(any(), any());
+    }
+
+    public void when_parking_vm_fails_should_delete_vm() throws IOException {
+        String imageId = "imageId";
+        OrkaClient orkaClient = this.getOrkaClientMock("host", 22, "instanceId");
+        VMActionResponse failed = new VMActionResponse("Error");
+        failed.setHttpResponse(new HttpResponse("Error", 500, false));
+        when(orkaClient.stopVM("instanceId", "orka-default")).thenReturn(failed);
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(OrkaConstants.REUSE_VMS, "true");
+        params.put(OrkaConstants.REUSE_PARK_MODE, "stop");
+        OrkaCloudClient client = new OrkaCloudClient(Utils.getCloudClientParametersMock(imageId, params), orkaClient,
+                this.getScheduledExecutorService(), mock(RemoteAgent.class), mock(SSHUtil.class));
+
+        OrkaCloudInstance instance = (OrkaCloudInstance) client.startNewInstance(this.getImage(client), null);
+        this.registerAgent(client, instance);
+        client.terminateInstance(instance);
+
+        assertEquals(0, ((OrkaCloudImage) this.getImage(client)).getIdleVms().size());
+        verify(orkaClient).stopVM("instanceId", "orka-default");
+        verify(orkaClient).deleteVM("instanceId", "orka-default");
+    }
+
+    public void when_idle_vm_exceeds_max_idle_time_should_evict_vm() throws IOException {
+        String imageId = "imageId";
+        OrkaClient orkaClient = this.getOrkaClientMock("host", 22, "instanceId");
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(OrkaConstants.REUSE_VMS, "true");
+        params.put(OrkaConstants.REUSE_MAX_IDLE_TIME, "10");
+        OrkaCloudClient client = new OrkaCloudClient(Utils.getCloudClientParametersMock(imageId, params), orkaClient,
+                this.getScheduledExecutorService(), mock(RemoteAgent.class), mock(SSHUtil.class));
+        OrkaCloudImage image = (OrkaCloudImage) this.getImage(client);
+        image.offerIdleVm(new PooledVm("idle", "orka-default", "host", 22, System.currentTimeMillis(), 0));
+
+        client.evictIdleVMs(System.currentTimeMillis());
+
+        assertEquals(1, image.getIdleVms().size());
+        verify(orkaClient, never()).deleteVM(any(), any());
+
+        client.evictIdleVMs(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(11));
+
+        assertEquals(0, image.getIdleVms().size());
+        verify(orkaClient).deleteVM("idle", "orka-default");
+    }
+
+    public void when_other_profile_is_refused_its_share_should_reclaim_idle_vm() throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(OrkaConstants.ORKA_ENDPOINT, "http://reclaim-endpoint");
+        params.put(OrkaConstants.CLUSTER_CAPACITY, "2");
+        params.put(OrkaConstants.REUSE_VMS, "true");
+        OrkaClient borrowerClient = this.getOrkaClientMock("host", 22, "borrowed");
+        OrkaCloudClient borrower = new OrkaCloudClient(Utils.getCloudClientParametersMock("first", params),
+                borrowerClient, this.getScheduledExecutorService(), mock(RemoteAgent.class), mock(SSHUtil.class));
+        OrkaCloudImage borrowerImage = (OrkaCloudImage) this.getImage(borrower);
+        borrowerImage.offerIdleVm(new PooledVm("idle-1", "orka-default", "host", 22, System.currentTimeMillis(), 0));
+        borrowerImage.offerIdleVm(new PooledVm("idle-2", "orka-default", "host", 22, System.currentTimeMillis(), 0));
+        OrkaClient orkaClient = this.getOrkaClientMock("host", 22, "instanceId");
+        OrkaCloudClient client = new OrkaCloudClient(Utils.getCloudClientParametersMock("second", params),
+                orkaClient, this.getScheduledExecutorService(), mock(RemoteAgent.class), mock(SSHUtil.class));
+
+        try {
+            client.startNewInstance(this.getImage(client), null);
+            fail("Expected the cluster capacity to be reached");
+        } catch (QuotaException e) {
+            assertEquals(1, borrowerImage.getIdleVms().size());
+            verify(borrowerClient).deleteVM("idle-1", "orka-default");
+        }
+
+        OrkaCloudInstance instance = (OrkaCloudInstance) client.startNewInstance(this.getImage(client), null);
+
+        assertEquals("instanceId", instance.getInstanceId());
+    }
+
+    public void when_disposed_should_delete_vms_without_agent_and_leave_running_instances() throws IOException {
+        OrkaClient orkaClient = this.getOrkaClientMock("host", 22, "instanceId");
+        when(orkaClient.deleteVM("broken", "orka-default")).thenThrow(new IOException("Error"));
+        OrkaCloudClient client = new OrkaCloudClient(Utils.getCloudClientParametersMock("imageId"), orkaClient,
+                this.getScheduledExecutorService(), mock(RemoteAgent.class), mock(SSHUtil.class));
+        OrkaCloudImage image = (OrkaCloudImage) this.getImage(client);
+        OrkaCloudInstance running = (OrkaCloudInstance) client.startNewInstance(image, null);
+        this.registerAgent(client, running);
+        image.offerIdleVm(new PooledVm("idle", "orka-default", "host", 22, 0, 0));
+        OrkaCloudInstance broken = image.startNewInstance("broken");
+        broken.setHost("host");
+        broken.setStatus(InstanceStatus.ERROR);
+
+        OrkaCloudClient.DisposeReport report = client.shutdown(TimeUnit.SECONDS.toMillis(5));
+
+        assertEquals(1, report.getDeleted());
+        assertEquals(1, report.getQueued());
+        assertEquals(1, report.getHandedOff());
+        assertTrue(client.isDeletionPending("broken"));
+        verify(orkaClient).deleteVM("idle", "orka-default");
+        verify(orkaClient, never()).deleteVM("instanceId", "orka-default");
+    }
+
+    public void when_handoff_fingerprint_is_computed_should_not_keep_credentials() {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(OrkaConstants.CLUSTER_TOKENS, "second=cluster-token");
+        String fingerprint = OrkaCloudClient.getHandoffFingerprint(Utils.getCloudClientParametersMock("imageId",
+                params));
+        params.put(OrkaConstants.TOKEN, "other-token");
+        String changed = OrkaCloudClient.getHandoffFingerprint(Utils.getCloudClientParametersMock("imageId", params));
+
+        assertEquals(64, fingerprint.length());
+        assertFalse(fingerprint.contains("token") || fingerprint.contains("vm_pass"));
+        assertFalse(fingerprint.equals(changed));
+    }
+
+    public void when_disposed_should_cancel_queued_workers() throws IOException {
+        OrkaClient orkaClient = this.getOrkaClientMock("host", 22, "instanceId");
+        List<Runnable> submitted = new ArrayList<Runnable>();
+        ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+        when(executor.submit(any(Runnable.class))).thenAnswer(invocation -> {
+            submitted.add((Runnable) invocation.getArguments()[0]);
+            return null;
+        });
+        when(executor.schedule(any(Runnable.class), eq(DeployCoordinator.BATCH_WINDOW), any()))
+                .thenAnswer(invocation -> {
+                    ((Runnable) invocation.getArguments()[0]).run();
+                    return null;
+                });
+        OrkaCloudClient client = new OrkaCloudClient(Utils.getCloudClientParametersMock("imageId"), orkaClient,
+                executor, mock(RemoteAgent.class), mock(SSHUtil.class));
+        CloudImage image = this.getImage(client);
+
+        client.startNewInstance(image, null);
+        submitted.remove(0).run();
+        client.shutdown(TimeUnit.SECONDS.toMillis(5));
+        submitted.forEach(Runnable::run);
+
+        assertEquals(1, submitted.size());
+        verify(orkaClient, never()).deployVM(any(), any());
+        assertEquals(0, client.getClusters().getAll().stream().mapToInt(c -> c.getDeploying().get()).sum());
+        assertTrue(image.getInstances().isEmpty());
+    }
+
+    public void when_worker_is_rejected_should_undo_the_deployment() throws IOException {
+        OrkaClient orkaClient = this.getOrkaClientMock("host", 22, "instanceId");
+        ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+        when(executor.submit(any(Runnable.class))).thenAnswer(invocation -> {
+            Runnable task = (Runnable) invocation.getArguments()[0];
+            if (task instanceof Future) {
+                throw new RejectedExecutionException();
+            }
+            task.run();
+            return null;
+        });
+        when(executor.schedule(any(Runnable.class), eq(DeployCoordinator.BATCH_WINDOW), any()))
+                .thenAnswer(invocation -> {
+                    ((Runnable) invocation.getArguments()[0]).run();
+                    return null;
+                });
+        OrkaCloudClient client = new OrkaCloudClient(Utils.getCloudClientParametersMock("imageId"), orkaClient,
+                executor, mock(RemoteAgent.class), mock(SSHUtil.class));
+        CloudImage image = this.getImage(client);
+
+        client.startNewInstance(image, null);
+
+        verify(orkaClient, never()).deployVM(any(), any());
+        assertEquals(0, client.getClusters().getAll().stream().mapToInt(c -> c.getDeploying().get()).sum());
+        assertTrue(image.getInstances().isEmpty());
+        assertEquals(1, client.getClusters().getAll().stream()
+                .mapToLong(c -> c.getDeployCoordinator().getAllAtOnceStatistics().getBursts()).sum());
+    }
+
+    private void registerAgent(OrkaCloudClient client, OrkaCloudInstance instance) {
+        SBuildAgent agent = mock(SBuildAgent.class);
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put(CommonConstants.INSTANCE_ID_PARAM_NAME, instance.getInstanceId());
+        when(agent.getConfigurationParameters()).thenReturn(parameters);
+        client.agentRegistered(agent, 0);
+    }
+
     private CloudImage getImage(OrkaCloudClient client) {
         return client.getImages().stream().findFirst().get();
     }
@@ -292,6 +680,11 @@ public class OrkaCloudClientTest {
                 return CompletableFuture.completedFuture(null);
             }
         });
+        when(scheduledExecutorService.schedule(any(Runnable.class), eq(DeployCoordinator.BATCH_WINDOW), any()))
+                .thenAnswer(invocation -> {
+                    ((Runnable) invocation.getArguments()[0]).run();
+                    return null;
+                });
 
         return scheduledExecutorService;
     }
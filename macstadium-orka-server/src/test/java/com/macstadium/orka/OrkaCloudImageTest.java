@@ -2,6 +2,8 @@ package com.macstadium.orka;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
@@ -72,4 +74,30 @@ public class OrkaCloudImageTest {
         image.startNewInstance("firstInstance");
         image.startNewInstance("secondInstance");
     }
+
+    public void when_instance_id_is_switched_to_vm_name_should_find_instance_by_both_ids() {
+        OrkaCloudImage image = new OrkaCloudImage("imageId", "orka-default", "user", "password", "0", 5);
+        OrkaCloudInstance instance = image.startNewInstance("pluginId");
+
+        instance.setInstanceId("vm-123");
+
+        assertSame(instance, image.findInstanceById("pluginId"));
+        assertSame(instance, image.findInstanceById("vm-123"));
+        assertEquals(1, image.getInstances().size());
+        assertEquals("vm-123", instance.getInstanceId());
+    }
+
+    public void when_instance_is_terminated_by_plugin_id_should_remove_both_ids() {
+        OrkaCloudImage image = new OrkaCloudImage("imageId", "orka-default", "user", "password", "0", 5);
+        OrkaCloudInstance instance = image.startNewInstance("pluginId");
+        instance.setInstanceId("vm-123");
+
+        image.terminateInstance("pluginId");
+
+        assertNull(image.findInstanceById("vm-123"));
+        assertEquals(0, image.getInstances().size());
+
+        instance.setInstanceId("vm-456");
+        assertNull(image.findInstanceById("vm-456"));
+    }
 }
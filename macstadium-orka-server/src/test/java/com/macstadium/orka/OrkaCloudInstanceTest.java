@@ -1,14 +1,18 @@
 package com.macstadium.orka;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import jetbrains.buildServer.clouds.InstanceStatus;
 import jetbrains.buildServer.serverSide.AgentDescription;
 
 import org.testng.annotations.Test;
@@ -42,6 +46,42 @@ public class OrkaCloudInstanceTest {
         assertFalse(instance.containsAgent(agentDescriptionMock));
     }
 
+    public void when_transition_is_not_allowed_should_keep_status() {
+        OrkaCloudImage image = new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 5);
+        OrkaCloudInstance instance = image.startNewInstance("vm-123");
+
+        assertTrue(instance.setStatus(InstanceStatus.SCHEDULED_TO_STOP));
+        assertFalse(instance.setStatus(InstanceStatus.RUNNING));
+        assertTrue(instance.setStatus(InstanceStatus.STOPPED));
+        assertFalse(instance.setStatus(InstanceStatus.STARTING));
+
+        assertEquals(InstanceStatus.STOPPED, instance.getStatus());
+    }
+
+    public void when_status_has_changed_should_fail_compare_and_set() {
+        OrkaCloudImage image = new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 5);
+        OrkaCloudInstance instance = image.startNewInstance("vm-123");
+        instance.setStatus(InstanceStatus.STARTING);
+        instance.setStatus(InstanceStatus.ERROR);
+
+        assertFalse(instance.compareAndSetStatus(InstanceStatus.STARTING, InstanceStatus.RUNNING));
+        assertEquals(InstanceStatus.ERROR, instance.getStatus());
+    }
+
+    public void when_status_changes_should_notify_listeners() {
+        OrkaCloudImage image = new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 5);
+        List<String> changes = new ArrayList<String>();
+        image.addInstanceListener((instance, from, to) -> changes.add(from + "->" + to));
+        OrkaCloudInstance instance = image.startNewInstance("vm-123");
+
+        instance.setStatus(InstanceStatus.STARTING);
+        instance.setStatus(InstanceStatus.STARTING);
+        instance.setStatus(InstanceStatus.RUNNING);
+
+        assertEquals(2, changes.size());
+        assertEquals("STARTING->RUNNING", changes.get(1));
+    }
+
     private OrkaCloudInstance getInstance(String instanceId, String imageId) {
         OrkaCloudImage image = new OrkaCloudImage(imageId, "orka-default", "user", "password", "0", 0);
         return new OrkaCloudInstance(image, instanceId, "orka-default");
@@ -0,0 +1,92 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jetbrains.buildServer.clouds.InstanceStatus;
+
+import org.testng.annotations.Test;
+
+@Test
+public class OrkaClustersTest {
+    public void when_parsing_clusters_should_read_tokens_capacity_and_mappings() {
+        List<OrkaClusters.Settings> settings = OrkaClusters.parse(
+                "east;http://10.0.0.1;4;10.0.0.5=east.example.com\nwest;http://10.1.0.1",
+                "east=token1 west=token2");
+
+        assertEquals(2, settings.size());
+        assertEquals("east", settings.get(0).getName());
+        assertEquals("token1", settings.get(0).getToken());
+        assertEquals(4, settings.get(0).getCapacity());
+        assertEquals("east.example.com", settings.get(0).getNodeMappings().get("10.0.0.5"));
+        assertEquals("http://10.1.0.1", settings.get(1).getEndpoint());
+        assertEquals(OrkaCluster.UNLIMITED, settings.get(1).getCapacity());
+    }
+
+    public void when_vm_is_on_secondary_cluster_should_qualify_instance_id() {
+        OrkaCluster primary = this.createCluster("primary", true, 0, new CircuitBreaker(3, 1000, () -> 0));
+        OrkaCluster east = this.createCluster("east", false, 0, new CircuitBreaker(3, 1000, () -> 0));
+        OrkaClusters clusters = new OrkaClusters(Arrays.asList(primary, east));
+
+        String instanceId = east.getInstanceId("vm-123");
+
+        assertEquals("vm-123@east", instanceId);
+        assertEquals("vm-123", OrkaCluster.getVmName(instanceId));
+        assertSame(east, clusters.forInstance(instanceId));
+        assertSame(primary, clusters.forInstance(primary.getInstanceId("vm-123")));
+    }
+
+    public void when_selecting_cluster_should_prefer_free_capacity() {
+        OrkaCloudImage image = new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 10);
+        OrkaCluster primary = this.createCluster("primary", true, 2, new CircuitBreaker(3, 1000, () -> 0));
+        OrkaCluster east = this.createCluster("east", false, 2, new CircuitBreaker(3, 1000, () -> 0));
+        OrkaClusters clusters = new OrkaClusters(Arrays.asList(primary, east));
+
+        image.startNewInstance("vm-1").setStatus(InstanceStatus.RUNNING);
+
+        assertSame(east, clusters.select(Collections.singletonList(image), Collections.emptySet()));
+        image.startNewInstance("vm-2").setStatus(InstanceStatus.RUNNING);
+        east.getDeploying().addAndGet(2);
+        assertNull(clusters.select(Collections.singletonList(image), Collections.emptySet()));
+    }
+
+    public void when_circuit_is_open_should_fail_over() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000, () -> 0);
+        OrkaCluster primary = this.createCluster("primary", true, 0, breaker);
+        OrkaCluster east = this.createCluster("east", false, 0, new CircuitBreaker(3, 1000, () -> 0));
+        OrkaClusters clusters = new OrkaClusters(Arrays.asList(primary, east));
+
+        breaker.failure();
+
+        assertFalse(primary.isAvailable());
+        assertSame(east, clusters.select(Collections.emptyList(), Collections.emptySet()));
+    }
+
+    public void when_open_interval_passes_should_let_one_trial_through() {
+        long[] now = {0};
+        CircuitBreaker breaker = new CircuitBreaker(2, 1000, () -> now[0]);
+        breaker.failure();
+        breaker.failure();
+        assertFalse(breaker.tryAcquire());
+
+        now[0] = 1000;
+
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        breaker.success();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    private OrkaCluster createCluster(String name, boolean primary, int capacity, CircuitBreaker breaker) {
+        NodePlacement nodePlacement = new NodePlacement(null, "orka-default", "vm", PlacementStrategy.NONE, null);
+        return new OrkaCluster(name, primary, null, Collections.emptyMap(), capacity, 1000, breaker, nodePlacement,
+                new DeployCoordinator(null, nodePlacement, 0, 0));
+    }
+}
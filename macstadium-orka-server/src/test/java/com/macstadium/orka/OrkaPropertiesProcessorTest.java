@@ -0,0 +1,79 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.macstadium.orka.client.OrkaVMConfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jetbrains.buildServer.serverSide.InvalidProperty;
+
+import org.testng.annotations.Test;
+
+@Test
+public class OrkaPropertiesProcessorTest {
+    public void when_properties_are_valid_should_return_no_errors() throws IOException {
+        OrkaResourceCache cache = mock(OrkaResourceCache.class);
+        when(cache.getVMConfigs("http://orka", "token"))
+                .thenReturn(Arrays.asList(new OrkaVMConfig("vm", 3, "image", 6)));
+
+        assertTrue(new OrkaPropertiesProcessor(cache).process(this.getProperties()).isEmpty());
+    }
+
+    public void when_values_are_invalid_should_not_call_orka() throws IOException {
+        OrkaResourceCache cache = mock(OrkaResourceCache.class);
+        Map<String, String> properties = this.getProperties();
+        properties.remove(OrkaConstants.VM_USER);
+        properties.put(OrkaConstants.PREWARM_INSTANCES, "two");
+
+        Collection<InvalidProperty> errors = new OrkaPropertiesProcessor(cache).process(properties);
+
+        assertEquals(2, errors.size());
+        verify(cache, never()).getVMConfigs(anyString(), anyString());
+    }
+
+    public void when_vm_config_is_missing_should_return_error() throws IOException {
+        OrkaResourceCache cache = mock(OrkaResourceCache.class);
+        when(cache.getVMConfigs("http://orka", "token")).thenReturn(new ArrayList<OrkaVMConfig>());
+
+        List<InvalidProperty> errors = new ArrayList<InvalidProperty>(
+                new OrkaPropertiesProcessor(cache).process(this.getProperties()));
+
+        assertEquals(1, errors.size());
+        assertEquals(OrkaConstants.VM_NAME, errors.get(0).getPropertyName());
+    }
+
+    public void when_orka_is_unreachable_should_return_error() throws IOException {
+        OrkaResourceCache cache = mock(OrkaResourceCache.class);
+        when(cache.getVMConfigs("http://orka", "token")).thenThrow(new IOException("Unauthorized"));
+
+        List<InvalidProperty> errors = new ArrayList<InvalidProperty>(
+                new OrkaPropertiesProcessor(cache).process(this.getProperties()));
+
+        assertEquals(1, errors.size());
+        assertEquals(OrkaConstants.TOKEN, errors.get(0).getPropertyName());
+    }
+
+    private Map<String, String> getProperties() {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(OrkaConstants.ORKA_ENDPOINT, "http://orka");
+        properties.put(OrkaConstants.TOKEN, "token");
+        properties.put(OrkaConstants.VM_NAME, "vm");
+        properties.put(OrkaConstants.NAMESPACE, "orka-default");
+        properties.put(OrkaConstants.VM_USER, "admin");
+        properties.put(OrkaConstants.VM_PASSWORD, "admin");
+        return properties;
+    }
+}
@@ -0,0 +1,90 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import jetbrains.buildServer.clouds.InstanceStatus;
+
+import org.testng.annotations.Test;
+
+@Test
+public class PoolChangeFeedTest {
+    public void when_instance_changes_should_publish_changes_in_order() {
+        PoolChangeFeed feed = new PoolChangeFeed(10);
+        OrkaCloudImage image = new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 5);
+        feed.register(image, "project1");
+        long sequence = feed.getSequence();
+
+        OrkaCloudInstance instance = new OrkaCloudInstance(image, "vm-123", "orka-default");
+        image.addInstance(instance);
+        feed.instanceChanged(instance);
+        image.removeInstance("vm-123");
+        feed.instanceRemoved(image, "vm-123");
+
+        List<PoolChangeFeed.Change> changes = feed.since(sequence);
+        assertEquals(2, changes.size());
+        assertEquals(PoolChangeFeed.Change.INSTANCE, changes.get(0).getType());
+        assertEquals(PoolChangeFeed.Change.REMOVED, changes.get(1).getType());
+        assertEquals(sequence + 2, changes.get(1).getSequence());
+    }
+
+    public void when_instance_is_not_in_image_should_not_publish() {
+        PoolChangeFeed feed = new PoolChangeFeed(10);
+        OrkaCloudImage image = new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 5);
+        feed.register(image, "project1");
+        long sequence = feed.getSequence();
+
+        feed.instanceChanged(new OrkaCloudInstance(image, "vm-123", "orka-default"));
+
+        assertEquals(sequence, feed.getSequence());
+    }
+
+    public void when_changes_are_no_longer_buffered_should_return_null() {
+        PoolChangeFeed feed = new PoolChangeFeed(2);
+        OrkaCloudImage image = new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 5);
+        feed.register(image, "project1");
+
+        for (int i = 0; i < 3; i++) {
+            feed.imageChanged(image);
+        }
+
+        assertNull(feed.since(0));
+        assertEquals(2, feed.since(feed.getSequence() - 2).size());
+    }
+
+    public void when_snapshot_is_taken_should_include_instances() {
+        PoolChangeFeed feed = new PoolChangeFeed(10);
+        OrkaCloudImage image = new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 5);
+        feed.register(image, "project1");
+        image.startNewInstance("vm-123").setStatus(InstanceStatus.RUNNING);
+
+        List<PoolChangeFeed.ImageState> snapshot = feed.snapshot("project1");
+
+        assertEquals(1, snapshot.size());
+        feed.unregister(image);
+        assertEquals(0, feed.snapshot("project1").size());
+    }
+
+    public void when_image_belongs_to_other_project_should_hide_it() {
+        PoolChangeFeed feed = new PoolChangeFeed(10);
+        OrkaCloudImage image = new OrkaCloudImage("vm", "orka-default", "user", "password", "0", 5);
+        OrkaCloudImage other = new OrkaCloudImage("other", "orka-default", "user", "password", "0", 5);
+        feed.register(image, "project1");
+        feed.register(other, "project2");
+        long sequence = feed.getSequence();
+
+        feed.imageChanged(image);
+        feed.imageChanged(other);
+
+        assertEquals(1, feed.snapshot("project1").size());
+        List<PoolChangeFeed.Change> changes = feed.since(sequence);
+        assertTrue(changes.get(0).isVisibleTo("project1"));
+        assertFalse(changes.get(1).isVisibleTo("project1"));
+        feed.unregister(other);
+        assertTrue(feed.since(sequence).get(2).isVisibleTo("project1"));
+    }
+}
@@ -0,0 +1,111 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import com.macstadium.orka.client.OrkaClient;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jetbrains.buildServer.clouds.InstanceStatus;
+
+import org.testng.annotations.Test;
+
+@Test
+public class RecycleInstancesTaskTest {
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    public void when_lifetime_is_exceeded_should_retire_instance_and_start_replacement() {
+        OrkaCloudClient client = this.getClient();
+        OrkaCloudImage image = this.getImage(client);
+        OrkaCloudInstance old = this.startRunningInstance(image, "old", 0);
+        this.startRunningInstance(image, "new", 10 * HOUR);
+
+        this.getTask(client, new RecyclePolicy(HOUR, 0, 1), 10 * HOUR).run();
+
+        assertTrue(old.isRetired());
+        assertEquals(3, image.getInstances().size());
+    }
+
+    public void when_at_minimum_should_start_replacement_before_retiring_instance() {
+        OrkaCloudClient client = this.getClient();
+        OrkaCloudImage image = this.getImage(client);
+        OrkaCloudInstance old = this.startRunningInstance(image, "old", 0);
+        RecycleInstancesTask task = this.getTask(client, new RecyclePolicy(HOUR, 0, 1), 10 * HOUR);
+
+        task.run();
+        assertFalse(old.isRetired());
+        assertEquals(2, image.getInstances().size());
+
+        task.run();
+        assertFalse(old.isRetired());
+
+        image.getInstances().stream().filter(i -> i != old)
+                .forEach(i -> ((OrkaCloudInstance) i).setStatus(InstanceStatus.RUNNING));
+        task.run();
+        assertTrue(old.isRetired());
+        assertEquals(2, image.getInstances().size());
+    }
+
+    public void when_instance_is_busy_should_not_recycle_it() {
+        OrkaCloudClient client = this.getClient();
+        OrkaCloudImage image = this.getImage(client);
+        OrkaCloudInstance old = this.startRunningInstance(image, "old", 0);
+        old.setBusy(true);
+
+        this.getTask(client, new RecyclePolicy(HOUR, 0, 0), 10 * HOUR).run();
+
+        assertFalse(old.isRetired());
+        assertEquals(1, image.getInstances().size());
+    }
+
+    public void when_idle_time_is_exceeded_should_retire_instance_above_minimum() {
+        OrkaCloudClient client = this.getClient();
+        OrkaCloudImage image = this.getImage(client);
+        OrkaCloudInstance first = this.startRunningInstance(image, "first", 0);
+        OrkaCloudInstance second = this.startRunningInstance(image, "second", 0);
+        RecycleInstancesTask task = this.getTask(client, new RecyclePolicy(0, HOUR, 1),
+                System.currentTimeMillis() + 2 * HOUR);
+
+        task.run();
+        task.run();
+
+        assertTrue(first.isRetired());
+        assertFalse(second.isRetired());
+        assertEquals(2, image.getInstances().size());
+    }
+
+    public void when_instance_is_starting_should_wait() {
+        OrkaCloudClient client = this.getClient();
+        OrkaCloudImage image = this.getImage(client);
+        OrkaCloudInstance old = this.startRunningInstance(image, "old", 0);
+        image.startNewInstance("starting");
+
+        this.getTask(client, new RecyclePolicy(HOUR, 0, 0), 10 * HOUR).run();
+
+        assertFalse(old.isRetired());
+    }
+
+    private OrkaCloudInstance startRunningInstance(OrkaCloudImage image, String instanceId, long createdTime) {
+        OrkaCloudInstance instance = image.startNewInstance(instanceId);
+        instance.setStatus(InstanceStatus.RUNNING);
+        instance.setVmCreatedTime(createdTime);
+        return instance;
+    }
+
+    private RecycleInstancesTask getTask(OrkaCloudClient client, RecyclePolicy policy, long now) {
+        return new RecycleInstancesTask(client, policy, () -> now);
+    }
+
+    private OrkaCloudClient getClient() {
+        return new OrkaCloudClient(Utils.getCloudClientParametersMock("imageId"), mock(OrkaClient.class),
+                mock(ScheduledExecutorService.class), mock(RemoteAgent.class), mock(SSHUtil.class));
+    }
+
+    private OrkaCloudImage getImage(OrkaCloudClient client) {
+        return (OrkaCloudImage) client.getImages().toArray()[0];
+    }
+}
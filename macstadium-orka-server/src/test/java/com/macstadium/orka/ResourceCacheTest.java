@@ -0,0 +1,90 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.Test;
+
+@Test
+public class ResourceCacheTest {
+    public void when_value_is_fresh_should_not_reload() throws IOException {
+        AtomicLong clock = new AtomicLong(0);
+        AtomicInteger loads = new AtomicInteger();
+        ResourceCache<Integer> cache = new ResourceCache<Integer>(Runnable::run, 100, 1000, clock::get);
+
+        assertEquals(Integer.valueOf(1), cache.get("key", () -> loads.incrementAndGet()));
+        clock.set(50);
+        assertEquals(Integer.valueOf(1), cache.get("key", () -> loads.incrementAndGet()));
+
+        assertEquals(1, loads.get());
+    }
+
+    public void when_value_is_stale_should_return_stale_value_and_refresh_in_background() throws IOException {
+        AtomicLong clock = new AtomicLong(0);
+        AtomicInteger loads = new AtomicInteger();
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        ResourceCache<Integer> cache = new ResourceCache<Integer>(tasks::add, 100, 1000, clock::get);
+
+        cache.get("key", () -> loads.incrementAndGet());
+        clock.set(200);
+
+        assertEquals(Integer.valueOf(1), cache.get("key", () -> loads.incrementAndGet()));
+        assertEquals(Integer.valueOf(1), cache.get("key", () -> loads.incrementAndGet()));
+        assertEquals(1, tasks.size());
+
+        tasks.get(0).run();
+        assertEquals(Integer.valueOf(2), cache.get("key", () -> loads.incrementAndGet()));
+    }
+
+    public void when_value_is_expired_should_load_synchronously() throws IOException {
+        AtomicLong clock = new AtomicLong(0);
+        AtomicInteger loads = new AtomicInteger();
+        ResourceCache<Integer> cache = new ResourceCache<Integer>(Runnable::run, 100, 1000, clock::get);
+
+        cache.get("key", () -> loads.incrementAndGet());
+        clock.set(2000);
+
+        assertEquals(Integer.valueOf(2), cache.get("key", () -> loads.incrementAndGet()));
+    }
+
+    public void when_background_refresh_fails_should_keep_stale_value() throws IOException {
+        AtomicLong clock = new AtomicLong(0);
+        ResourceCache<Integer> cache = new ResourceCache<Integer>(Runnable::run, 100, 1000, clock::get);
+
+        cache.get("key", () -> 1);
+        clock.set(200);
+
+        assertEquals(Integer.valueOf(1), cache.get("key", () -> {
+            throw new IOException("Error");
+        }));
+        assertEquals(Integer.valueOf(1), cache.get("key", () -> 3));
+    }
+
+    public void when_keys_differ_should_cache_separately() throws IOException {
+        ResourceCache<String> cache = new ResourceCache<String>(Runnable::run, 100, 1000, () -> 0);
+
+        assertEquals("first", cache.get("first", () -> "first"));
+        assertEquals("second", cache.get("second", () -> "second"));
+        assertEquals(2, cache.size());
+    }
+
+    public void when_load_fails_without_value_should_not_keep_entry() {
+        ResourceCache<String> cache = new ResourceCache<String>(Runnable::run, 100, 1000, () -> 0);
+
+        try {
+            cache.get("key", () -> {
+                throw new IOException("Error");
+            });
+            fail("Expected load to fail");
+        } catch (IOException e) {
+            assertEquals("Error", e.getMessage());
+        }
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,106 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+@Test
+public class TracerTest {
+    public void when_trace_is_active_should_record_spans_for_it() {
+        Tracer tracer = new Tracer(10, 100);
+        Tracer.Trace trace = tracer.start("tempId");
+
+        try (Tracer.Scope scope = trace.activate()) {
+            Tracer.span("deployVM").message("vm: %s", "vm").close();
+        }
+        tracer.alias(trace, "vm-123");
+        try (Tracer.Scope scope = trace.activate()) {
+            Tracer.span("startAgent").fail(new IOException("Error")).close();
+        }
+
+        List<Tracer.Span> spans = tracer.getSpans("vm-123");
+        assertEquals(2, spans.size());
+        assertEquals("deployVM", spans.get(0).getStep());
+        assertEquals("vm: vm", spans.get(0).getMessage());
+        assertTrue(spans.get(1).isFailed());
+        assertEquals(2, tracer.getSpans("tempId").size());
+    }
+
+    public void when_no_trace_is_active_should_not_record_spans() {
+        Tracer tracer = new Tracer(10, 100);
+        tracer.start("tempId");
+
+        Tracer.span("deployVM").close();
+
+        assertEquals(0, tracer.getSpans(null).size());
+    }
+
+    public void when_api_call_completes_should_record_span_on_active_trace() {
+        Tracer tracer = new Tracer(10, 100);
+        Tracer.Trace trace = tracer.start("tempId");
+
+        try (Tracer.Scope scope = trace.activate()) {
+            Tracer.API_CALL_LISTENER.started("GET", "/api/v1/vms").completed(200, null);
+            Tracer.API_CALL_LISTENER.started("POST", "/api/v1/vms").completed(-1, new IOException("Error"));
+        }
+
+        List<Tracer.Span> spans = tracer.getSpans("tempId");
+        assertEquals(2, spans.size());
+        assertEquals("orkaApi", spans.get(0).getStep());
+        assertEquals("GET /api/v1/vms: 200", spans.get(0).getMessage());
+        assertTrue(spans.get(1).isFailed());
+    }
+
+    public void when_buffer_is_full_should_keep_latest_spans() {
+        Tracer tracer = new Tracer(3, 100);
+        Tracer.Trace trace = tracer.start("tempId");
+
+        for (int i = 0; i < 5; i++) {
+            trace.span("step" + i).close();
+        }
+
+        List<Tracer.Span> spans = tracer.getSpans(null);
+        assertEquals(3, spans.size());
+        assertEquals("step2", spans.get(0).getStep());
+        assertEquals("step4", spans.get(2).getStep());
+    }
+
+    public void when_spans_are_read_for_project_should_return_only_its_profiles_spans() {
+        Tracer tracer = new Tracer(10, 100);
+        Tracer.Trace trace = tracer.start("tempId", "profile", "project");
+        Tracer.Trace other = tracer.start("otherId", "otherProfile", "otherProject");
+
+        trace.span("deployVM").close();
+        other.span("deployVM").close();
+
+        List<Tracer.Span> spans = tracer.getSpans(null, "project");
+        assertEquals(1, spans.size());
+        assertEquals("tempId", spans.get(0).getTraceId());
+        assertEquals("profile", spans.get(0).getProfileId());
+        assertEquals(0, tracer.getSpans("otherId", "project").size());
+    }
+
+    public void when_sampling_is_disabled_should_not_start_traces() {
+        Tracer tracer = new Tracer(10, 0);
+
+        assertNull(tracer.start("tempId"));
+    }
+
+    public void when_pending_span_is_taken_should_record_it() {
+        Tracer tracer = new Tracer(10, 100);
+        Tracer.Trace trace = tracer.start("tempId");
+
+        trace.begin("agentRegistration");
+        trace.take("agentRegistration").close();
+        tracer.end(trace);
+
+        assertNull(trace.take("agentRegistration"));
+        assertNull(tracer.find("tempId"));
+        assertEquals(1, tracer.getSpans("tempId").size());
+    }
+}
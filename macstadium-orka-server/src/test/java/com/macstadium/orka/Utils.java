@@ -15,10 +15,19 @@ import org.mockito.stubbing.Answer;
 
 public class Utils {
     public static CloudClientParameters getCloudClientParametersMock(String imageId) {
-        return getCloudClientParametersMock(imageId, null);
+        return getCloudClientParametersMock(imageId, (String) null);
     }
 
     public static CloudClientParameters getCloudClientParametersMock(String imageId, String nodeMappings) {
+        return getCloudClientParametersMock(imageId, nodeMappings, new HashMap<String, String>());
+    }
+
+    public static CloudClientParameters getCloudClientParametersMock(String imageId, Map<String, String> overrides) {
+        return getCloudClientParametersMock(imageId, null, overrides);
+    }
+
+    private static CloudClientParameters getCloudClientParametersMock(String imageId, String nodeMappings,
+            Map<String, String> overrides) {
         final Map<String, String> params = new HashMap<String, String>();
         params.put(OrkaConstants.AGENT_DIRECTORY, "dir");
         params.put(OrkaConstants.ORKA_ENDPOINT, "endpoint");
@@ -30,6 +39,7 @@ public class Utils {
         params.put(OrkaConstants.INSTANCE_LIMIT, "100");
         params.put(OrkaConstants.NODE_MAPPINGS, nodeMappings);
         params.put(OrkaConstants.NAMESPACE, "orka-default");
+        params.putAll(overrides);
 
         CloudClientParameters mock = mock(CloudClientParameters.class);
         when(mock.getParameter(anyString())).thenAnswer(new Answer<String>() {
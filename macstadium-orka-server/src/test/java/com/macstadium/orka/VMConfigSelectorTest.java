@@ -0,0 +1,54 @@
+package com.macstadium.orka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import com.macstadium.orka.client.OrkaVMConfig;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jetbrains.buildServer.requirements.Requirement;
+import jetbrains.buildServer.requirements.RequirementType;
+
+import org.testng.annotations.Test;
+
+@Test
+public class VMConfigSelectorTest {
+    private final List<OrkaVMConfig> sizes = Arrays.asList(new OrkaVMConfig("large", 12, "image", 30),
+            new OrkaVMConfig("small", 3, "image", 8), new OrkaVMConfig("medium", 6, "image", 16),
+            new OrkaVMConfig("other", 1, "image", 4));
+
+    public void when_build_declares_size_should_select_smallest_config_that_fits() {
+        VMConfigSelector selector = new VMConfigSelector("large", Arrays.asList("small", "medium"));
+        VMConfigSelector.Demand demand = VMConfigSelector.getDemand(Arrays.asList(
+                new Requirement(VMConfigSelector.CPU_PARAMETER, "4", RequirementType.NO_LESS_THAN),
+                new Requirement(VMConfigSelector.MEMORY_PARAMETER, "8192", RequirementType.MORE_THAN)), 0);
+
+        assertEquals("medium", selector.select(demand, this.sizes, -1));
+        assertEquals("small", selector.select(VMConfigSelector.getDemand(Collections.singletonList(
+                new Requirement(VMConfigSelector.CPU_PARAMETER, "2", RequirementType.EQUALS)), 0), this.sizes, -1));
+        assertEquals("large", selector.select(VMConfigSelector.getDemand(Collections.singletonList(
+                new Requirement(VMConfigSelector.CPU_PARAMETER, "24", RequirementType.NO_LESS_THAN)), 0),
+                this.sizes, -1));
+    }
+
+    public void when_build_declares_no_size_should_select_default_config_if_capacity_allows() {
+        VMConfigSelector selector = new VMConfigSelector("large", Arrays.asList("small", "medium"));
+
+        assertNull(VMConfigSelector.getDemand(Collections.singletonList(
+                new Requirement("env.XCODE", null, RequirementType.EXISTS)), 0));
+        assertEquals("large", selector.select(null, this.sizes, 24));
+        assertEquals("large", selector.select(null, this.sizes, -1));
+        assertEquals("medium", selector.select(null, this.sizes, 8));
+        assertEquals("small", selector.select(null, this.sizes, 0));
+    }
+
+    public void when_configs_are_listed_should_parse_them() {
+        assertEquals(Arrays.asList("small", "medium"), VMConfigSelector.parse(" small,medium\nsmall "));
+        assertEquals(Collections.emptyList(), VMConfigSelector.parse(" "));
+        assertFalse(new VMConfigSelector("large", VMConfigSelector.parse("large")).isEnabled());
+    }
+}
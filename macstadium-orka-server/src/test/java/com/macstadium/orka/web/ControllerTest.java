@@ -0,0 +1,152 @@
+package com.macstadium.orka.web;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
+
+import org.jdom.Element;
+import org.testng.annotations.Test;
+
+@Test
+public class ControllerTest {
+    public void when_handler_completes_should_write_result_once() throws IOException {
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        HttpServletResponse response = this.getResponseMock();
+        RequestHandler handler = mock(RequestHandler.class);
+        when(handler.handle(any())).thenReturn(new Element("vms"));
+        Controller.PendingRequest request = this.getRequest(asyncContext, response, handler);
+
+        request.run();
+        request.onTimeout(null);
+
+        verify(handler).handle(any());
+        verify(response, never()).setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        verify(asyncContext, times(1)).complete();
+    }
+
+    public void when_request_times_out_should_write_504_once_and_cancel_worker() throws IOException {
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        HttpServletResponse response = this.getResponseMock();
+        RequestHandler handler = mock(RequestHandler.class);
+        Controller.PendingRequest request = this.getRequest(asyncContext, response, handler);
+        Future<?> future = mock(Future.class);
+        ExecutorService executor = mock(ExecutorService.class);
+        when(executor.submit(request)).thenAnswer(invocation -> future);
+        Controller.submit(executor, request);
+
+        request.onTimeout(null);
+        request.onTimeout(null);
+        request.run();
+
+        verify(future).cancel(true);
+        verify(response, times(1)).setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        verify(asyncContext, times(1)).complete();
+        verify(handler, never()).handle(any());
+    }
+
+    public void when_queue_is_full_should_write_503() throws IOException {
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        HttpServletResponse response = this.getResponseMock();
+        RequestHandler handler = mock(RequestHandler.class);
+        Controller.PendingRequest request = this.getRequest(asyncContext, response, handler);
+        ExecutorService executor = mock(ExecutorService.class);
+        when(executor.submit(request)).thenThrow(new RejectedExecutionException());
+
+        Controller.submit(executor, request);
+
+        verify(response).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        verify(asyncContext, times(1)).complete();
+        verify(handler, never()).handle(any());
+    }
+
+    public void when_handler_throws_should_write_500() throws IOException {
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        HttpServletResponse response = this.getResponseMock();
+        RequestHandler handler = mock(RequestHandler.class);
+        when(handler.handle(any())).thenThrow(new IllegalStateException("Error"));
+        Controller.PendingRequest request = this.getRequest(asyncContext, response, handler);
+
+        request.run();
+
+        verify(response).setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        verify(asyncContext, times(1)).complete();
+    }
+
+    public void when_user_cannot_manage_project_clouds_should_deny_events() {
+        SUser user = mock(SUser.class);
+        when(user.isPermissionGrantedForProject("project1", Permission.MANAGE_AGENT_CLOUDS)).thenReturn(true);
+
+        assertTrue(Controller.canManageClouds(user, "project1"));
+        assertFalse(Controller.canManageClouds(user, "project2"));
+        assertFalse(Controller.canManageClouds(user, null));
+        assertFalse(Controller.canManageClouds(null, "project1"));
+    }
+
+    public void when_user_cannot_manage_project_clouds_should_answer_403_to_any_resource() throws IOException {
+        SUser user = mock(SUser.class);
+        when(user.isPermissionGrantedForProject("project1", Permission.MANAGE_AGENT_CLOUDS)).thenReturn(true);
+        HttpServletRequest allowed = mock(HttpServletRequest.class);
+        when(allowed.getParameter("projectId")).thenReturn("project1");
+        HttpServletRequest denied = mock(HttpServletRequest.class);
+        when(denied.getParameter("projectId")).thenReturn("project2");
+        HttpServletResponse response = this.getResponseMock();
+
+        assertTrue(Controller.authorize(allowed, response, user));
+        verify(response, never()).sendError(HttpServletResponse.SC_FORBIDDEN);
+
+        assertFalse(Controller.authorize(denied, response, user));
+        assertFalse(Controller.authorize(allowed, response, null));
+        verify(response, times(2)).sendError(HttpServletResponse.SC_FORBIDDEN);
+    }
+
+    private Controller.PendingRequest getRequest(AsyncContext asyncContext, HttpServletResponse response,
+            RequestHandler handler) {
+        return new Controller.PendingRequest(asyncContext, response, "vms", handler,
+                Collections.<String, String>emptyMap());
+    }
+
+    private HttpServletResponse getResponseMock() throws IOException {
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) {
+                output.write(b);
+            }
+        });
+        return response;
+    }
+}
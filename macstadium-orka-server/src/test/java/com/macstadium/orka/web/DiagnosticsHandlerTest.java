@@ -0,0 +1,163 @@
+package com.macstadium.orka.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.macstadium.orka.RemoteAgent;
+import com.macstadium.orka.SSHUtil;
+import com.macstadium.orka.client.DeletionResponse;
+import com.macstadium.orka.client.DeploymentResponse;
+import com.macstadium.orka.client.NodeResponse;
+import com.macstadium.orka.client.OrkaClient;
+import com.macstadium.orka.client.VMResponse;
+import com.macstadium.orka.client.VMsResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jdom.Element;
+import org.testng.annotations.Test;
+
+@Test
+public class DiagnosticsHandlerTest {
+    public void when_deploy_test_succeeds_should_report_boot_and_delete_probes() throws Exception {
+        OrkaClient client = this.getOrkaClientMock();
+        RemoteAgent remoteAgent = mock(RemoteAgent.class);
+        RemoteAgent.ConnectionTimes times = mock(RemoteAgent.ConnectionTimes.class);
+        when(remoteAgent.measureConnection(anyString(), anyInt(), any(), any())).thenReturn(times);
+        SSHUtil sshUtil = mock(SSHUtil.class);
+        ExecutorService cleanupExecutor = Executors.newSingleThreadExecutor();
+
+        Element result = new DiagnosticsHandler(remoteAgent, sshUtil, cleanupExecutor).handle(client,
+                this.getParams(), "password");
+
+        verify(sshUtil).waitForSSH("10.0.0.1", 8822, 12, 10);
+        assertEquals("1", this.getProbe(result, "deploy").getAttributeValue("samples"));
+        assertEquals("1", this.getProbe(result, "boot").getAttributeValue("samples"));
+        assertEquals("3", this.getProbe(result, "sshConnect").getAttributeValue("samples"));
+        assertEquals("1", this.getProbe(result, "delete").getAttributeValue("samples"));
+        verify(client).deleteVM("vm-123", "orka-default");
+        cleanupExecutor.shutdown();
+    }
+
+    public void when_vm_does_not_accept_ssh_should_report_boot_failure_and_delete_vm() throws Exception {
+        OrkaClient client = this.getOrkaClientMock();
+        RemoteAgent remoteAgent = mock(RemoteAgent.class);
+        SSHUtil sshUtil = mock(SSHUtil.class);
+        when(sshUtil.waitForSSH(anyString(), anyInt(), anyInt(), anyInt())).thenThrow(new IOException("Refused"));
+        ExecutorService cleanupExecutor = Executors.newSingleThreadExecutor();
+
+        Element result = new DiagnosticsHandler(remoteAgent, sshUtil, cleanupExecutor).handle(client,
+                this.getParams(), "password");
+
+        assertEquals("1", this.getProbe(result, "deploy").getAttributeValue("samples"));
+        assertEquals("1", this.getProbe(result, "boot").getAttributeValue("failures"));
+        assertEquals("1", this.getProbe(result, "delete").getAttributeValue("samples"));
+        verify(remoteAgent, never()).measureConnection(anyString(), anyInt(), any(), any());
+        verify(client).deleteVM("vm-123", "orka-default");
+        cleanupExecutor.shutdown();
+    }
+
+    public void when_cancelled_should_delete_test_vm_on_cleanup_executor() throws Exception {
+        OrkaClient client = this.getOrkaClientMock();
+        AtomicReference<Thread> deletingThread = new AtomicReference<Thread>();
+        when(client.deleteVM("vm-123", "orka-default")).thenAnswer(invocation -> {
+            deletingThread.set(Thread.currentThread());
+            return new DeletionResponse(null);
+        });
+        SSHUtil sshUtil = mock(SSHUtil.class);
+        when(sshUtil.waitForSSH(anyString(), anyInt(), anyInt(), anyInt())).thenThrow(new InterruptedException());
+        ExecutorService cleanupExecutor = Executors.newSingleThreadExecutor();
+
+        try {
+            new DiagnosticsHandler(mock(RemoteAgent.class), sshUtil, cleanupExecutor).handle(client,
+                    this.getParams(), "password");
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        cleanupExecutor.shutdown();
+        assertTrue(cleanupExecutor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertNotNull(deletingThread.get());
+        assertTrue(deletingThread.get() != Thread.currentThread());
+    }
+
+    public void when_cancelled_during_deployment_should_delete_vms_with_test_name() throws Exception {
+        OrkaClient client = this.getOrkaClientMock();
+        AtomicReference<String> testName = new AtomicReference<String>();
+        when(client.deployVM(eq("vm"), eq("orka-default"), isNull(), anyString())).thenAnswer(invocation -> {
+            testName.set((String) invocation.getArguments()[3]);
+            throw new InterruptedIOException();
+        });
+        when(client.getVMs("orka-default")).thenAnswer(invocation -> new VMsResponse(Arrays.asList(
+                new VMResponse(testName.get() + "-x7k2p", 8822, "10.0.0.1", null),
+                new VMResponse("vm-123", 8823, "10.0.0.1", null)), null));
+        ExecutorService cleanupExecutor = Executors.newSingleThreadExecutor();
+
+        Element result = new DiagnosticsHandler(mock(RemoteAgent.class), mock(SSHUtil.class), cleanupExecutor)
+                .handle(client, this.getParams(), "password");
+        cleanupExecutor.shutdown();
+        assertTrue(cleanupExecutor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals("1", this.getProbe(result, "deploy").getAttributeValue("failures"));
+        verify(client).deleteVM(testName.get() + "-x7k2p", "orka-default");
+        verify(client, never()).deleteVM("vm-123", "orka-default");
+    }
+
+    public void when_percentile_is_requested_should_return_nearest_rank() {
+        List<Long> sorted = Arrays.asList(10L, 20L, 30L, 40L, 50L, 60L, 70L, 80L, 90L, 100L);
+
+        assertEquals(50, DiagnosticsHandler.percentile(sorted, 50));
+        assertEquals(90, DiagnosticsHandler.percentile(sorted, 90));
+        assertEquals(100, DiagnosticsHandler.percentile(sorted, 99));
+        assertEquals(10, DiagnosticsHandler.percentile(Collections.singletonList(10L), 50));
+        assertEquals(0, DiagnosticsHandler.percentile(Collections.emptyList(), 50));
+    }
+
+    private OrkaClient getOrkaClientMock() throws IOException {
+        OrkaClient client = mock(OrkaClient.class);
+        when(client.getNodes("orka-default")).thenReturn(new NodeResponse(Collections.emptyList(), null));
+        when(client.deployVM(eq("vm"), eq("orka-default"), isNull(), anyString()))
+                .thenReturn(new DeploymentResponse("10.0.0.1", 8822, "vm-123", null));
+        when(client.deleteVM("vm-123", "orka-default")).thenReturn(new DeletionResponse(null));
+        return client;
+    }
+
+    private Map<String, String> getParams() {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("deployTest", "true");
+        params.put("vmName", "vm");
+        params.put("vmUser", "user");
+        return params;
+    }
+
+    private Element getProbe(Element result, String name) {
+        for (Object child : result.getChildren("probe")) {
+            Element probe = (Element) child;
+            if (name.equals(probe.getAttributeValue("name"))) {
+                return probe;
+            }
+        }
+        throw new AssertionError("No probe: " + name);
+    }
+}